@@ -1,12 +1,33 @@
 public class Acknowledgment extends Message {
     private static final long serialVersionUID = 1L;
     private String message;
+    private long sequence; // Sequence number given to the acknowledged write, 0 if not a write
+    private int origin; // Node whose sequence that is, -1 if not a write
 
     public Acknowledgment(String message) {
+        this(message, 0, -1);
+    }
+
+    public Acknowledgment(String message, long sequence, int origin) {
         this.message = message;
+        this.sequence = sequence;
+        this.origin = origin;
     }
 
     public String getMessage() {
         return message;
     }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.ACKNOWLEDGMENT;
+    }
 }
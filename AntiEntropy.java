@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Finds where this node's store differs from a replica's by walking both hash trees down from the root,
+// one level per round trip, following only subtrees whose hashes differ. A round descends into no more
+// than maxLeaves differing subtrees per level and returns at most maxLeaves leaves, so however far apart
+// the two stores are, one round only ever pulls a bounded slice of the keyspace; the rest is left for
+// later rounds.
+public class AntiEntropy {
+    private static final int NODES_PER_REQUEST = 1024;
+
+    private HashTree tree;
+    private int maxLeaves;
+    private LongAdder rounds;
+    private LongAdder differingLeaves;
+    private LongAdder repaired;
+
+    public AntiEntropy(HashTree tree, int maxLeaves) {
+        this.tree = tree;
+        this.maxLeaves = Math.max(1, maxLeaves);
+        this.rounds = new LongAdder();
+        this.differingLeaves = new LongAdder();
+        this.repaired = new LongAdder();
+    }
+
+    public HashTree getTree() {
+        return tree;
+    }
+
+    public List<Integer> findDifferingLeaves(PeerConnection replica) throws IOException {
+        rounds.increment();
+        List<Integer> leaves = new ArrayList<>();
+        List<Integer> frontier = List.of(HashTree.ROOT);
+        while (!frontier.isEmpty() && leaves.size() < maxLeaves) {
+            List<Integer> next = new ArrayList<>();
+            int differing = 0;
+            for (int from = 0; from < frontier.size(); from += NODES_PER_REQUEST) {
+                List<Integer> part = new ArrayList<>(frontier.subList(from, Math.min(frontier.size(), from + NODES_PER_REQUEST)));
+                Message resp = replica.call(new TreeHashRequest(tree.getDepth(), part));
+                if (!(resp instanceof TreeHashResponse) || ((TreeHashResponse) resp).getHashes().length != part.size()) {
+                    throw new IOException("Unexpected hash tree reply: " + (resp instanceof ErrorMessage
+                            ? ((ErrorMessage) resp).getError() : resp.getClass().getSimpleName()));
+                }
+                long[] hashes = ((TreeHashResponse) resp).getHashes();
+                for (int i = 0; i < hashes.length; i++) {
+                    int node = part.get(i);
+                    if (hashes[i] == tree.get(node)) {
+                        continue;
+                    }
+                    if (tree.isLeaf(node)) {
+                        if (leaves.size() < maxLeaves) {
+                            leaves.add(node);
+                        }
+                    } else if (differing++ < maxLeaves) {
+                        next.add(2 * node);
+                        next.add(2 * node + 1);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        differingLeaves.add(leaves.size());
+        return leaves;
+    }
+
+    public void repaired(int users) {
+        repaired.add(users);
+    }
+
+    public void addStats(Map<String, Long> stats) {
+        stats.put("antientropy.rounds", rounds.sum());
+        stats.put("antientropy.leaves.differing", differingLeaves.sum());
+        stats.put("antientropy.users.repaired", repaired.sum());
+        stats.put("antientropy.root.hash", tree.get(HashTree.ROOT));
+    }
+}
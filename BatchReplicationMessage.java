@@ -0,0 +1,32 @@
+import java.util.List;
+
+// Writes committed together on the primary. Record i carries sequence number firstSequence + i.
+public class BatchReplicationMessage extends Message {
+    private static final long serialVersionUID = 1L;
+    private int originId;
+    private long firstSequence;
+    private List<UserRecord> records;
+
+    public BatchReplicationMessage(int originId, long firstSequence, List<UserRecord> records) {
+        this.originId = originId;
+        this.firstSequence = firstSequence;
+        this.records = records;
+    }
+
+    public int getOriginId() {
+        return originId;
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    public List<UserRecord> getRecords() {
+        return records;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.BATCH_REPLICATION_MESSAGE;
+    }
+}
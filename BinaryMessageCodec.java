@@ -0,0 +1,591 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact encoding: a one-byte type tag followed by the message fields.
+// Strings are a varint of (byte length + 1), 0 meaning null, then the UTF-8 bytes.
+public class BinaryMessageCodec extends MessageCodec {
+    @Override
+    public void encode(Message msg, ByteBuffer buf) {
+        byte tag = msg.getTypeTag();
+        buf.put(tag);
+        switch (tag) {
+            case READ_REQUEST: {
+                ReadRequest req = (ReadRequest) msg;
+                putString(buf, req.getUsername());
+                buf.putLong(req.getMinSequence());
+                buf.putInt(req.getOrigin());
+                break;
+            }
+            case READ_RESPONSE: {
+                ReadResponse resp = (ReadResponse) msg;
+                putString(buf, resp.getUsername());
+                putString(buf, resp.getSsn());
+                buf.put(resp.isFound() ? (byte) 1 : (byte) 0);
+                buf.putLong(resp.getSequence());
+                buf.putInt(resp.getOrigin());
+                break;
+            }
+            case WRITE_REQUEST: {
+                WriteRequest req = (WriteRequest) msg;
+                putString(buf, req.getUsername());
+                putString(buf, req.getSsn());
+                break;
+            }
+            case ACKNOWLEDGMENT: {
+                Acknowledgment ack = (Acknowledgment) msg;
+                putString(buf, ack.getMessage());
+                buf.putLong(ack.getSequence());
+                buf.putInt(ack.getOrigin());
+                break;
+            }
+            case ERROR_MESSAGE:
+                putString(buf, ((ErrorMessage) msg).getError());
+                break;
+            case REPLICATION_MESSAGE: {
+                ReplicationMessage rep = (ReplicationMessage) msg;
+                putString(buf, rep.getUsername());
+                putString(buf, rep.getSsn());
+                break;
+            }
+            case BATCH_REPLICATION_MESSAGE: {
+                BatchReplicationMessage batch = (BatchReplicationMessage) msg;
+                buf.putInt(batch.getOriginId());
+                buf.putLong(batch.getFirstSequence());
+                putRecords(buf, batch.getRecords());
+                break;
+            }
+            case CATCH_UP_REQUEST: {
+                CatchUpRequest req = (CatchUpRequest) msg;
+                buf.putInt(req.getOrigin());
+                buf.putLong(req.getFromSequence());
+                buf.putInt(req.getMaxRecords());
+                break;
+            }
+            case CATCH_UP_RESPONSE: {
+                CatchUpResponse resp = (CatchUpResponse) msg;
+                buf.putLong(resp.getPrimarySequence());
+                buf.put(resp.isSnapshotRequired() ? (byte) 1 : (byte) 0);
+                putVarInt(buf, resp.getSequences().length);
+                for (long seq : resp.getSequences()) {
+                    buf.putLong(seq);
+                }
+                putRecords(buf, resp.getRecords());
+                break;
+            }
+            case SNAPSHOT_REQUEST:
+                break;
+            case SNAPSHOT_OFFER: {
+                SnapshotOffer offer = (SnapshotOffer) msg;
+                buf.putInt(offer.getPort());
+                buf.putLong(offer.getSizeBytes());
+                buf.putLong(offer.getSequence());
+                break;
+            }
+            case REDIRECT: {
+                Redirect redirect = (Redirect) msg;
+                buf.putInt(redirect.getNodeId());
+                putString(buf, redirect.getHost());
+                buf.putInt(redirect.getPort());
+                putString(buf, redirect.getReason());
+                break;
+            }
+            case INVALIDATION_SUBSCRIBE:
+                break;
+            case INVALIDATION: {
+                Invalidation invalidation = (Invalidation) msg;
+                buf.putInt(invalidation.getOrigin());
+                buf.putLong(invalidation.getSequence());
+                buf.putLong(invalidation.getTimestampMicros());
+                buf.put(invalidation.isClearAll() ? (byte) 1 : (byte) 0);
+                putVarInt(buf, invalidation.getUsernames().size());
+                for (String username : invalidation.getUsernames()) {
+                    putString(buf, username);
+                }
+                break;
+            }
+            case MULTI_GET_REQUEST: {
+                MultiGetRequest req = (MultiGetRequest) msg;
+                buf.putLong(req.getMinSequence());
+                buf.putInt(req.getOrigin());
+                putVarInt(buf, req.getUsernames().size());
+                for (String username : req.getUsernames()) {
+                    putString(buf, username);
+                }
+                break;
+            }
+            case MULTI_GET_RESPONSE: {
+                MultiGetResponse resp = (MultiGetResponse) msg;
+                buf.putLong(resp.getSequence());
+                buf.putInt(resp.getOrigin());
+                buf.put(resp.isLastChunk() ? (byte) 1 : (byte) 0);
+                putVarInt(buf, resp.getUsernames().size());
+                for (int i = 0; i < resp.getUsernames().size(); i++) {
+                    putString(buf, resp.getUsernames().get(i));
+                    putString(buf, resp.getSsns().get(i));
+                }
+                break;
+            }
+            case MULTI_PUT_REQUEST:
+                putRecords(buf, ((MultiPutRequest) msg).getRecords());
+                buf.put(((MultiPutRequest) msg).isIfAbsent() ? (byte) 1 : (byte) 0);
+                break;
+            case JOIN_REQUEST: {
+                JoinRequest req = (JoinRequest) msg;
+                putNode(buf, req.getNode());
+                buf.put(req.isReady() ? (byte) 1 : (byte) 0);
+                break;
+            }
+            case PARTITION_MAP_REQUEST:
+                break;
+            case PARTITION_MAP_UPDATE: {
+                PartitionMapUpdate update = (PartitionMapUpdate) msg;
+                buf.putInt(update.getPartitions());
+                buf.putLong(update.getVersion());
+                putVarInt(buf, update.getMembers().size());
+                for (NodeInfo member : update.getMembers()) {
+                    putNode(buf, member);
+                }
+                putIds(buf, update.getOwners());
+                break;
+            }
+            case PARTITION_HANDOFF: {
+                PartitionHandoff handoff = (PartitionHandoff) msg;
+                buf.putInt(handoff.getFromNodeId());
+                buf.putLong(handoff.getVersion());
+                buf.putLong(handoff.getFenceSequence());
+                putIds(buf, handoff.getPartitions());
+                break;
+            }
+            case STATS_REQUEST:
+                break;
+            case STATS_RESPONSE: {
+                Map<String, Long> stats = ((StatsResponse) msg).getStats();
+                putVarInt(buf, stats.size());
+                for (Map.Entry<String, Long> entry : stats.entrySet()) {
+                    putString(buf, entry.getKey());
+                    buf.putLong(entry.getValue());
+                }
+                break;
+            }
+            case RETRY_AFTER: {
+                RetryAfter retry = (RetryAfter) msg;
+                buf.putLong(retry.getRetryAfterMillis());
+                putString(buf, retry.getReason());
+                break;
+            }
+            case TREE_HASH_REQUEST:
+                putVarInt(buf, ((TreeHashRequest) msg).getDepth());
+                putIds(buf, ((TreeHashRequest) msg).getNodes());
+                break;
+            case TREE_HASH_RESPONSE: {
+                long[] hashes = ((TreeHashResponse) msg).getHashes();
+                putVarInt(buf, hashes.length);
+                for (long hash : hashes) {
+                    buf.putLong(hash);
+                }
+                break;
+            }
+            case TREE_LEAVES_REQUEST:
+                putVarInt(buf, ((TreeLeavesRequest) msg).getDepth());
+                putIds(buf, ((TreeLeavesRequest) msg).getLeaves());
+                break;
+            case TREE_LEAVES_RESPONSE: {
+                TreeLeavesResponse resp = (TreeLeavesResponse) msg;
+                buf.putInt(resp.getOriginId());
+                buf.putLong(resp.getSequence());
+                putRecords(buf, resp.getRecords());
+                break;
+            }
+            case SCAN_REQUEST: {
+                ScanRequest req = (ScanRequest) msg;
+                putString(buf, req.getStart());
+                putString(buf, req.getEnd());
+                putVarInt(buf, req.getLimit());
+                break;
+            }
+            case SCAN_RESPONSE:
+                putRecords(buf, ((ScanResponse) msg).getRecords());
+                putString(buf, ((ScanResponse) msg).getNextStart());
+                break;
+            case BULK_LOAD_REQUEST:
+                putVarInt(buf, ((BulkLoadRequest) msg).getRows());
+                putBytes(buf, ((BulkLoadRequest) msg).getBlock());
+                break;
+            case BULK_REPLICATION_MESSAGE: {
+                BulkReplicationMessage bulk = (BulkReplicationMessage) msg;
+                buf.putInt(bulk.getOriginId());
+                buf.putLong(bulk.getFirstSequence());
+                putVarInt(buf, bulk.getRows());
+                putBytes(buf, bulk.getBlock());
+                break;
+            }
+            case EXPORT_REQUEST:
+                putVarInt(buf, ((ExportRequest) msg).getChunkRows());
+                break;
+            case EXPORT_CHUNK: {
+                ExportChunk chunk = (ExportChunk) msg;
+                putVarInt(buf, chunk.getRows());
+                putBytes(buf, chunk.getBlock());
+                buf.put(chunk.isLastChunk() ? (byte) 1 : (byte) 0);
+                break;
+            }
+            case COMPRESSED_BATCH_MESSAGE: {
+                CompressedBatchMessage batch = (CompressedBatchMessage) msg;
+                buf.putInt(batch.getOriginId());
+                buf.putLong(batch.getFirstSequence());
+                putVarInt(buf, batch.getRows());
+                putBytes(buf, batch.getFrame());
+                break;
+            }
+            case HEARTBEAT: {
+                Heartbeat heartbeat = (Heartbeat) msg;
+                buf.putLong(heartbeat.getTerm());
+                buf.putInt(heartbeat.getLeaderId());
+                buf.putInt(heartbeat.getBaseOrigin());
+                buf.putLong(heartbeat.getBaseSequence());
+                break;
+            }
+            case HEARTBEAT_RESPONSE: {
+                HeartbeatResponse resp = (HeartbeatResponse) msg;
+                buf.putLong(resp.getTerm());
+                buf.put(resp.isAccepted() ? (byte) 1 : (byte) 0);
+                break;
+            }
+            case VOTE_REQUEST: {
+                VoteRequest req = (VoteRequest) msg;
+                buf.putLong(req.getTerm());
+                buf.putInt(req.getCandidateId());
+                buf.putLong(req.getLastTerm());
+                buf.putLong(req.getLastSequence());
+                break;
+            }
+            case VOTE_RESPONSE: {
+                VoteResponse resp = (VoteResponse) msg;
+                buf.putLong(resp.getTerm());
+                buf.put(resp.isGranted() ? (byte) 1 : (byte) 0);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("No binary encoding for " + msg.getClass().getSimpleName());
+        }
+    }
+
+    @Override
+    public Message decode(ByteBuffer buf) throws IOException {
+        byte tag = buf.get();
+        switch (tag) {
+            case READ_REQUEST:
+                return new ReadRequest(getString(buf), buf.getLong(), buf.getInt());
+            case READ_RESPONSE:
+                return new ReadResponse(getString(buf), getString(buf), buf.get() != 0, buf.getLong(), buf.getInt());
+            case WRITE_REQUEST:
+                return new WriteRequest(getString(buf), getString(buf));
+            case ACKNOWLEDGMENT:
+                return new Acknowledgment(getString(buf), buf.getLong(), buf.getInt());
+            case ERROR_MESSAGE:
+                return new ErrorMessage(getString(buf));
+            case REPLICATION_MESSAGE:
+                return new ReplicationMessage(getString(buf), getString(buf));
+            case BATCH_REPLICATION_MESSAGE:
+                return new BatchReplicationMessage(buf.getInt(), buf.getLong(), getRecords(buf));
+            case CATCH_UP_REQUEST:
+                return new CatchUpRequest(buf.getInt(), buf.getLong(), buf.getInt());
+            case CATCH_UP_RESPONSE: {
+                long primarySequence = buf.getLong();
+                boolean snapshotRequired = buf.get() != 0;
+                int count = getVarInt(buf);
+                if (count < 0 || count > buf.remaining() / Long.BYTES) {
+                    throw new IOException("Invalid sequence count: " + count);
+                }
+                long[] sequences = new long[count];
+                for (int i = 0; i < count; i++) {
+                    sequences[i] = buf.getLong();
+                }
+                return new CatchUpResponse(sequences, getRecords(buf), primarySequence, snapshotRequired);
+            }
+            case SNAPSHOT_REQUEST:
+                return new SnapshotRequest();
+            case SNAPSHOT_OFFER:
+                return new SnapshotOffer(buf.getInt(), buf.getLong(), buf.getLong());
+            case REDIRECT:
+                return new Redirect(buf.getInt(), getString(buf), buf.getInt(), getString(buf));
+            case INVALIDATION_SUBSCRIBE:
+                return new InvalidationSubscribe();
+            case INVALIDATION: {
+                int origin = buf.getInt();
+                long sequence = buf.getLong();
+                long timestampMicros = buf.getLong();
+                boolean clearAll = buf.get() != 0;
+                int count = getVarInt(buf);
+                if (count < 0 || count > buf.remaining()) {
+                    throw new IOException("Invalid username count: " + count);
+                }
+                List<String> usernames = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    usernames.add(getString(buf));
+                }
+                return new Invalidation(usernames, clearAll, origin, sequence, timestampMicros);
+            }
+            case MULTI_GET_REQUEST: {
+                long minSequence = buf.getLong();
+                int origin = buf.getInt();
+                int count = getVarInt(buf);
+                if (count < 0 || count > buf.remaining()) {
+                    throw new IOException("Invalid username count: " + count);
+                }
+                List<String> usernames = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    usernames.add(getString(buf));
+                }
+                return new MultiGetRequest(usernames, minSequence, origin);
+            }
+            case MULTI_GET_RESPONSE: {
+                long sequence = buf.getLong();
+                int origin = buf.getInt();
+                boolean last = buf.get() != 0;
+                int count = getVarInt(buf);
+                if (count < 0 || count > buf.remaining()) {
+                    throw new IOException("Invalid result count: " + count);
+                }
+                List<String> usernames = new ArrayList<>(count);
+                List<String> ssns = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    usernames.add(getString(buf));
+                    ssns.add(getString(buf));
+                }
+                return new MultiGetResponse(usernames, ssns, sequence, origin, last);
+            }
+            case MULTI_PUT_REQUEST:
+                return new MultiPutRequest(getRecords(buf), buf.get() != 0);
+            case JOIN_REQUEST:
+                return new JoinRequest(getNode(buf), buf.get() != 0);
+            case PARTITION_MAP_REQUEST:
+                return new PartitionMapRequest();
+            case PARTITION_MAP_UPDATE: {
+                int partitions = buf.getInt();
+                long version = buf.getLong();
+                int count = getVarInt(buf);
+                if (count < 0 || count > buf.remaining()) {
+                    throw new IOException("Invalid member count: " + count);
+                }
+                List<NodeInfo> members = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    members.add(getNode(buf));
+                }
+                return new PartitionMapUpdate(partitions, version, members, getIds(buf));
+            }
+            case PARTITION_HANDOFF: {
+                int fromNodeId = buf.getInt();
+                long version = buf.getLong();
+                long fenceSequence = buf.getLong();
+                return new PartitionHandoff(fromNodeId, version, getIds(buf), fenceSequence);
+            }
+            case STATS_REQUEST:
+                return new StatsRequest();
+            case STATS_RESPONSE: {
+                int count = getVarInt(buf);
+                if (count < 0 || count > buf.remaining()) {
+                    throw new IOException("Invalid stats count: " + count);
+                }
+                Map<String, Long> stats = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    stats.put(getString(buf), buf.getLong());
+                }
+                return new StatsResponse(stats);
+            }
+            case RETRY_AFTER:
+                return new RetryAfter(buf.getLong(), getString(buf));
+            case TREE_HASH_REQUEST:
+                return new TreeHashRequest(getVarInt(buf), getIds(buf));
+            case TREE_HASH_RESPONSE: {
+                int count = getVarInt(buf);
+                if (count < 0 || count > buf.remaining() / Long.BYTES) {
+                    throw new IOException("Invalid hash count: " + count);
+                }
+                long[] hashes = new long[count];
+                for (int i = 0; i < count; i++) {
+                    hashes[i] = buf.getLong();
+                }
+                return new TreeHashResponse(hashes);
+            }
+            case TREE_LEAVES_REQUEST:
+                return new TreeLeavesRequest(getVarInt(buf), getIds(buf));
+            case TREE_LEAVES_RESPONSE:
+                return new TreeLeavesResponse(buf.getInt(), buf.getLong(), getRecords(buf));
+            case SCAN_REQUEST:
+                return new ScanRequest(getString(buf), getString(buf), getVarInt(buf));
+            case SCAN_RESPONSE:
+                return new ScanResponse(getRecords(buf), getString(buf));
+            case BULK_LOAD_REQUEST: {
+                int rows = getVarInt(buf);
+                return new BulkLoadRequest(getBytes(buf), rows);
+            }
+            case BULK_REPLICATION_MESSAGE: {
+                int originId = buf.getInt();
+                long firstSequence = buf.getLong();
+                int rows = getVarInt(buf);
+                return new BulkReplicationMessage(originId, firstSequence, getBytes(buf), rows);
+            }
+            case EXPORT_REQUEST:
+                return new ExportRequest(getVarInt(buf));
+            case EXPORT_CHUNK: {
+                int rows = getVarInt(buf);
+                byte[] block = getBytes(buf);
+                return new ExportChunk(block, rows, buf.get() != 0);
+            }
+            case COMPRESSED_BATCH_MESSAGE: {
+                int originId = buf.getInt();
+                long firstSequence = buf.getLong();
+                int rows = getVarInt(buf);
+                return new CompressedBatchMessage(originId, firstSequence, rows, getBytes(buf));
+            }
+            case HEARTBEAT:
+                return new Heartbeat(buf.getLong(), buf.getInt(), buf.getInt(), buf.getLong());
+            case HEARTBEAT_RESPONSE:
+                return new HeartbeatResponse(buf.getLong(), buf.get() != 0);
+            case VOTE_REQUEST:
+                return new VoteRequest(buf.getLong(), buf.getInt(), buf.getLong(), buf.getLong());
+            case VOTE_RESPONSE:
+                return new VoteResponse(buf.getLong(), buf.get() != 0);
+            default:
+                throw new IOException("Unknown message tag: " + tag);
+        }
+    }
+
+    public static void putRecords(ByteBuffer buf, List<UserRecord> records) {
+        putVarInt(buf, records.size());
+        for (UserRecord record : records) {
+            putString(buf, record.getUsername());
+            putString(buf, record.getSsn());
+        }
+    }
+
+    public static List<UserRecord> getRecords(ByteBuffer buf) throws IOException {
+        int count = getVarInt(buf);
+        if (count < 0 || count > buf.remaining()) {
+            throw new IOException("Invalid record count: " + count);
+        }
+        List<UserRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new UserRecord(getString(buf), getString(buf)));
+        }
+        return records;
+    }
+
+    private static void putNode(ByteBuffer buf, NodeInfo node) {
+        buf.putInt(node.getId());
+        putString(buf, node.getHost());
+        buf.putInt(node.getPort());
+        buf.put(node.isPrimary() ? (byte) 1 : (byte) 0);
+    }
+
+    private static NodeInfo getNode(ByteBuffer buf) throws IOException {
+        return new NodeInfo(buf.getInt(), getString(buf), buf.getInt(), buf.get() != 0);
+    }
+
+    private static void putIds(ByteBuffer buf, List<Integer> ids) {
+        putVarInt(buf, ids.size());
+        for (int id : ids) {
+            putVarInt(buf, id);
+        }
+    }
+
+    private static List<Integer> getIds(ByteBuffer buf) throws IOException {
+        int count = getVarInt(buf);
+        if (count < 0 || count > buf.remaining()) {
+            throw new IOException("Invalid id count: " + count);
+        }
+        List<Integer> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(getVarInt(buf));
+        }
+        return ids;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        putVarInt(buf, bytes.length);
+        buf.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) throws IOException {
+        int length = getVarInt(buf);
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("Byte array length " + length + " exceeds frame");
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    public static void putVarInt(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static int getVarInt(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void putString(ByteBuffer buf, String s) {
+        if (s == null) {
+            putVarInt(buf, 0);
+            return;
+        }
+        int length = s.length();
+        // Usernames and SSNs are almost always ASCII: copy chars straight in without a temporary byte[]
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = s.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            putVarInt(buf, length + 1);
+            if (buf.remaining() < length) {
+                throw new BufferOverflowException();
+            }
+            for (int i = 0; i < length; i++) {
+                buf.put((byte) s.charAt(i));
+            }
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putVarInt(buf, bytes.length + 1);
+            buf.put(bytes);
+        }
+    }
+
+    public static String getString(ByteBuffer buf) throws IOException {
+        int length = getVarInt(buf) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buf.remaining()) {
+            throw new IOException("String length " + length + " exceeds frame");
+        }
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+}
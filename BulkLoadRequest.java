@@ -0,0 +1,26 @@
+// One chunk of a bulk load, as a compressed RecordBlock. Committed like a MultiPutRequest, as one unit,
+// and passed on to the backups in the same compressed form. Acknowledged once, with the sequence of
+// the last record.
+public class BulkLoadRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private byte[] block;
+    private int rows;
+
+    public BulkLoadRequest(byte[] block, int rows) {
+        this.block = block;
+        this.rows = rows;
+    }
+
+    public byte[] getBlock() {
+        return block;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.BULK_LOAD_REQUEST;
+    }
+}
@@ -0,0 +1,355 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// Loads users into a cluster from a file, or dumps them to one, far faster than one write at a time.
+//
+// Import reads the file in chunks on one thread; a pool parses, validates and compresses the chunks in
+// parallel, and a sender thread writes them to the cluster in file order, one BulkLoadRequest per chunk
+// (per owner when partitioned). Files are CSV, one "username,ssn" per line with no quoting, or binary,
+// in the write-ahead log's record format. Rows that fail validation are skipped and counted.
+//
+// Export streams a point-in-time copy of the store from one node (every owner when partitioned) into a
+// file in either format. Both directions print rows per second as they go and at the end.
+public class BulkLoader {
+    private static final String CSV_HEADER = "username,ssn";
+    private static final int MAX_REJECTS_SHOWN = 10;
+
+    private Client client;
+    private String format;
+    private int chunkRows;
+    private int threads;
+    private int maxFieldLength;
+    private Pattern ssnPattern; // null to accept any SSN
+    private LongAdder rows;
+    private LongAdder rejected;
+    private LongAdder compressedBytes;
+
+    public BulkLoader(Client client, Map<String, String> options) {
+        this.client = client;
+        this.format = options.getOrDefault("format", "csv");
+        if (!format.equals("csv") && !format.equals("binary")) {
+            throw new IllegalArgumentException("Unknown file format: " + format);
+        }
+        this.chunkRows = Math.max(1, Integer.parseInt(options.getOrDefault("chunk", "10000")));
+        this.threads = Math.max(1, Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        this.maxFieldLength = Integer.parseInt(options.getOrDefault("max.field.length", "256"));
+        String ssn = options.get("ssn.pattern");
+        this.ssnPattern = ssn != null ? Pattern.compile(ssn) : null;
+        this.rows = new LongAdder();
+        this.rejected = new LongAdder();
+        this.compressedBytes = new LongAdder();
+    }
+
+    // Returns whether every chunk was loaded; rows rejected by validation do not count against it
+    public boolean importFrom(Path file) throws IOException, InterruptedException {
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, daemonFactory("bulk-parse"));
+        // Chunks being prepared or waiting to be sent, in file order; bounded so reading cannot run far ahead
+        BlockingQueue<CompletableFuture<Map<Integer, BulkLoadRequest>>> prepared = new ArrayBlockingQueue<>(threads * 2);
+        CompletableFuture<Map<Integer, BulkLoadRequest>> end = CompletableFuture.completedFuture(null);
+        CompletableFuture<Message> sent = new CompletableFuture<>();
+        Thread sender = new Thread(() -> sent.complete(sendAll(prepared)), "bulk-send");
+        sender.setDaemon(true);
+        sender.start();
+        AtomicInteger rejectsShown = new AtomicInteger();
+        long start = System.nanoTime();
+        ScheduledExecutorService progress = startProgress("imported", rows);
+        try (InputStream in = Files.newInputStream(file)) {
+            ChunkReader reader = (chunk, firstLine) -> prepared.put(CompletableFuture.supplyAsync(() -> prepare(chunk, firstLine, rejectsShown), parsers));
+            if (format.equals("csv")) {
+                readCsv(in, reader);
+            } else {
+                readBinary(in, file.toString(), reader);
+            }
+        } finally {
+            prepared.put(end);
+        }
+        Message last = sent.join();
+        progress.shutdownNow();
+        parsers.shutdown();
+        report("Imported", start);
+        System.out.println(rejected.sum() + " rows rejected; compressed to " + compressedBytes.sum() + " bytes ("
+                + String.format("%.1f", (double) compressedBytes.sum() / Math.max(1, rows.sum())) + " bytes per row).");
+        if (last != null && !(last instanceof Acknowledgment)) {
+            System.err.println("Import stopped early: " + (last instanceof ErrorMessage ? ((ErrorMessage) last).getError() : last.getClass().getSimpleName()));
+            return false;
+        }
+        return true;
+    }
+
+    // Returns whether the whole store was exported
+    public boolean exportTo(Path file) throws IOException {
+        long start = System.nanoTime();
+        ScheduledExecutorService progress = startProgress("exported", rows);
+        IOException[] failed = new IOException[1];
+        Message last;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+             Writer csv = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16)) {
+            if (format.equals("csv")) {
+                csv.write(CSV_HEADER + "\n");
+            }
+            last = client.export(chunkRows, chunk -> {
+                try {
+                    if (failed[0] == null) {
+                        writeChunk(chunk, out, csv);
+                        rows.add(chunk.size());
+                    }
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+        }
+        progress.shutdownNow();
+        if (failed[0] != null) {
+            throw failed[0];
+        }
+        report("Exported", start);
+        if (!(last instanceof ExportChunk)) {
+            System.err.println("Export incomplete: " + (last instanceof ErrorMessage ? ((ErrorMessage) last).getError() : "no response"));
+            return false;
+        }
+        return true;
+    }
+
+    private void writeChunk(List<UserRecord> chunk, OutputStream out, Writer csv) throws IOException {
+        if (format.equals("csv")) {
+            for (UserRecord record : chunk) {
+                csv.write(record.getUsername());
+                csv.write(',');
+                csv.write(record.getSsn());
+                csv.write('\n');
+            }
+            return;
+        }
+        List<WriteAheadLog.Entry> entries = new ArrayList<>(chunk.size());
+        for (UserRecord record : chunk) {
+            entries.add(new WriteAheadLog.Entry(0, 0, record.getUsername(), record.getSsn()));
+        }
+        WriteAheadLog.writeRecords(out, entries);
+    }
+
+    // Sends prepared chunks in order until the end marker or the first failure; returns the last reply, or
+    // an ErrorMessage for a chunk that could not be prepared, so a load with rows missing never looks done
+    private Message sendAll(BlockingQueue<CompletableFuture<Map<Integer, BulkLoadRequest>>> prepared) {
+        Message last = null;
+        boolean failed = false;
+        while (true) {
+            Map<Integer, BulkLoadRequest> chunks;
+            try {
+                chunks = prepared.take().join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ErrorMessage("Interrupted while sending chunks.");
+            } catch (RuntimeException e) {
+                if (!failed) {
+                    last = new ErrorMessage("Could not prepare a chunk: " + e.getCause());
+                    failed = true;
+                }
+                continue;
+            }
+            if (chunks == null) {
+                return last;
+            }
+            if (failed) {
+                continue; // Keep draining so the reader is never left blocked on a full queue
+            }
+            last = client.bulkLoad(chunks);
+            if (!(last instanceof Acknowledgment)) {
+                failed = true;
+                continue;
+            }
+            for (BulkLoadRequest chunk : chunks.values()) {
+                rows.add(chunk.getRows());
+                compressedBytes.add(chunk.getBlock().length);
+            }
+        }
+    }
+
+    // Runs on a parser thread: turns raw CSV lines or decoded records into compressed requests
+    private Map<Integer, BulkLoadRequest> prepare(List<?> chunk, long firstLine, AtomicInteger rejectsShown) {
+        List<UserRecord> records = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            Object row = chunk.get(i);
+            UserRecord record = row instanceof String ? parseCsv((String) row) : (UserRecord) row;
+            String problem = record == null ? "expected username,ssn" : validate(record);
+            if (problem == null) {
+                records.add(record);
+            } else {
+                rejected.increment();
+                if (rejectsShown.incrementAndGet() <= MAX_REJECTS_SHOWN) {
+                    System.err.println("Rejected row " + (firstLine + i) + ": " + problem);
+                }
+            }
+        }
+        try {
+            return client.prepareBulkLoad(records);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static UserRecord parseCsv(String line) {
+        int comma = line.indexOf(',');
+        if (comma < 0 || line.indexOf(',', comma + 1) >= 0) {
+            return null;
+        }
+        return new UserRecord(line.substring(0, comma).trim(), line.substring(comma + 1).trim());
+    }
+
+    // Why the record cannot be loaded, or null if it can
+    private String validate(UserRecord record) {
+        String username = record.getUsername();
+        String ssn = record.getSsn();
+        if (username.isEmpty() || ssn.isEmpty()) {
+            return "empty username or SSN";
+        }
+        if (username.length() > maxFieldLength || ssn.length() > maxFieldLength) {
+            return "field longer than " + maxFieldLength + " characters";
+        }
+        for (int i = 0; i < username.length(); i++) {
+            if (Character.isISOControl(username.charAt(i))) {
+                return "control character in username";
+            }
+        }
+        if (ssnPattern != null && !ssnPattern.matcher(ssn).matches()) {
+            return "SSN does not match " + ssnPattern.pattern();
+        }
+        return null;
+    }
+
+    private void readCsv(InputStream in, ChunkReader reader) throws IOException, InterruptedException {
+        BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        List<String> chunk = new ArrayList<>(chunkRows);
+        long lineNumber = 0;
+        long firstLine = 1;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#") || (lineNumber == 1 && line.trim().equalsIgnoreCase(CSV_HEADER))) {
+                continue;
+            }
+            if (chunk.isEmpty()) {
+                firstLine = lineNumber;
+            }
+            chunk.add(line);
+            if (chunk.size() == chunkRows) {
+                reader.accept(chunk, firstLine);
+                chunk = new ArrayList<>(chunkRows);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            reader.accept(chunk, firstLine);
+        }
+    }
+
+    // Records are checksummed as they are read, so only the compression is left for the pool
+    private void readBinary(InputStream in, String source, ChunkReader reader) throws IOException, InterruptedException {
+        List<List<UserRecord>> chunk = new ArrayList<>(List.of(new ArrayList<>(chunkRows))); // The one being filled
+        long[] recordNumber = {0};
+        WriteAheadLog.readRecords(in, source, entry -> {
+            recordNumber[0]++;
+            chunk.get(0).add(new UserRecord(entry.getUsername(), entry.getSsn()));
+            if (chunk.get(0).size() < chunkRows) {
+                return true;
+            }
+            try {
+                reader.accept(chunk.get(0), recordNumber[0] - chunkRows + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            chunk.set(0, new ArrayList<>(chunkRows));
+            return true;
+        });
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (!chunk.get(0).isEmpty()) {
+            reader.accept(chunk.get(0), recordNumber[0] - chunk.get(0).size() + 1);
+        }
+    }
+
+    private ScheduledExecutorService startProgress(String verb, LongAdder counter) {
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(daemonFactory("bulk-progress"));
+        long[] last = new long[1];
+        progress.scheduleAtFixedRate(() -> {
+            long total = counter.sum();
+            System.out.println(total - last[0] + " rows/s, " + total + " " + verb + " so far");
+            last[0] = total;
+        }, 1, 1, TimeUnit.SECONDS);
+        return progress;
+    }
+
+    private void report(String verb, long startNanos) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        System.out.println(verb + " " + rows.sum() + " rows in " + String.format("%.2f", seconds) + " s: "
+                + Math.round(rows.sum() / seconds) + " rows/s.");
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Hands a chunk of raw rows, the first of them at the given line or record number, to the pipeline
+    private interface ChunkReader {
+        void accept(List<?> chunk, long firstLine) throws InterruptedException;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3 || !(args[1].equals("import") || args[1].equals("export"))) {
+            System.out.println("Usage: java BulkLoader <host:port>[,<host:port>...] import|export <file> [option=value ...]");
+            System.out.println("  format=csv|binary   file format (default csv: username,ssn per line)");
+            System.out.println("  chunk=10000         rows per chunk");
+            System.out.println("  threads=<cores>     parser threads for import");
+            System.out.println("  ssn.pattern=<regex> reject imported rows whose SSN does not match");
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 3; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                System.err.println("Ignoring option without a value: " + args[i]);
+                continue;
+            }
+            options.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        Client client = new Client(List.of(args[0].split(",")));
+        BulkLoader loader = new BulkLoader(client, options);
+        boolean complete = args[1].equals("import") ? loader.importFrom(Paths.get(args[2])) : loader.exportTo(Paths.get(args[2]));
+        client.close();
+        if (!complete) {
+            System.exit(1);
+        }
+    }
+}
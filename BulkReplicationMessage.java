@@ -0,0 +1,37 @@
+// A bulk-load chunk committed on the primary, replicated as the compressed RecordBlock the loader sent.
+// Record i carries sequence number firstSequence + i, as in BatchReplicationMessage.
+public class BulkReplicationMessage extends Message {
+    private static final long serialVersionUID = 1L;
+    private int originId;
+    private long firstSequence;
+    private byte[] block;
+    private int rows;
+
+    public BulkReplicationMessage(int originId, long firstSequence, byte[] block, int rows) {
+        this.originId = originId;
+        this.firstSequence = firstSequence;
+        this.block = block;
+        this.rows = rows;
+    }
+
+    public int getOriginId() {
+        return originId;
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    public byte[] getBlock() {
+        return block;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.BULK_REPLICATION_MESSAGE;
+    }
+}
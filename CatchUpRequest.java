@@ -0,0 +1,31 @@
+// Sent by a lagging backup to fetch the replicated writes it is missing from one origin's stream: the
+// node asked's own, or after a failover the previous primary's, which the new primary also holds
+public class CatchUpRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private int origin;
+    private long fromSequence;
+    private int maxRecords;
+
+    public CatchUpRequest(int origin, long fromSequence, int maxRecords) {
+        this.origin = origin;
+        this.fromSequence = fromSequence;
+        this.maxRecords = maxRecords;
+    }
+
+    public int getOrigin() {
+        return origin;
+    }
+
+    public long getFromSequence() {
+        return fromSequence;
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.CATCH_UP_REQUEST;
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.List;
+
+// A run of logged writes starting at the requested sequence, or a signal that the requester is too far
+// behind and must load a snapshot instead
+public class CatchUpResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private long[] sequences;
+    private List<UserRecord> records;
+    private long primarySequence;
+    private boolean snapshotRequired;
+
+    public CatchUpResponse(long[] sequences, List<UserRecord> records, long primarySequence, boolean snapshotRequired) {
+        this.sequences = sequences;
+        this.records = records;
+        this.primarySequence = primarySequence;
+        this.snapshotRequired = snapshotRequired;
+    }
+
+    public long[] getSequences() {
+        return sequences;
+    }
+
+    public List<UserRecord> getRecords() {
+        return records;
+    }
+
+    // The primary's latest sequence when it answered
+    public long getPrimarySequence() {
+        return primarySequence;
+    }
+
+    public boolean isSnapshotRequired() {
+        return snapshotRequired;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.CATCH_UP_RESPONSE;
+    }
+}
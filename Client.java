@@ -1,82 +1,673 @@
 // Client.java
 import java.io.*;
-import java.net.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Client {
-    private String host;
-    private int port;
+    private static final int MAX_REDIRECTS = 3;
+
+    private List<PeerConnection> nodes;
+    private ConnectionManager connections;
+    private AtomicInteger nextReadNode;
+    private AtomicInteger writeNode; // Endpoint unpartitioned writes go to; moves on when it cannot be reached
+    // Highest sequence this client has written or read, per origin node. Reads carry the one of the key's
+    // origin, so a node that has not caught up with this session's own writes never answers them.
+    private Map<Integer, Long> sessionSequences;
+    // Unpartitioned, the origin whose sequence reads carry: that of the latest ack or read. A new primary
+    // numbers its writes in a stream of its own, so after a failover the highest sequence seen from any
+    // origin may be one the current stream will not reach for a long time.
+    private volatile int sessionOrigin;
+    // Which node owns which keys when the cluster is partitioned (userstore.partitions > 0), else null.
+    // The latest fetch, done or still in flight.
+    private volatile CompletableFuture<PartitionMap> partitionMap;
+    private volatile long partitionMapFetchedAt;
+    private long partitionRefreshMillis;
+    // Optional near cache (userstore.client.cache.size > 0), invalidated by pushes from the first node
+    private NearCache nearCache;
+    private long subscribedGeneration;
+    private boolean subscribing;
+    private int multiGetRequestSize; // Usernames per MultiGetRequest
+    private int overloadRetries; // Times a request turned away with RetryAfter is sent again
+    private int scanPageSize; // Users asked for per ScanRequest
 
     public Client(String host, int port) {
-        this.host = host;
-        this.port = port;
+        this(List.of(host + ":" + port));
+    }
+
+    // Writes go to the owner of the key if the cluster is partitioned, else to the first node that can be
+    // reached, which forwards them to the primary if need be; reads rotate over all nodes
+    public Client(List<String> endpoints) {
+        this.connections = new ConnectionManager();
+        this.nodes = new ArrayList<>();
+        for (String endpoint : endpoints) {
+            int colon = endpoint.lastIndexOf(':');
+            nodes.add(connections.get(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1))));
+        }
+        this.nextReadNode = new AtomicInteger();
+        this.writeNode = new AtomicInteger();
+        this.sessionSequences = new ConcurrentHashMap<>();
+        this.sessionOrigin = -1;
+        this.partitionRefreshMillis = Config.getLong("userstore.client.partition.refresh.millis", 5000);
+        this.multiGetRequestSize = Math.max(1, Config.getInt("userstore.client.multi.get.request.size", 10000));
+        this.overloadRetries = Config.getInt("userstore.client.overload.retries", 5);
+        this.scanPageSize = Math.max(1, Config.getInt("userstore.client.scan.page.size", 1000));
+        int cacheSize = Config.getInt("userstore.client.cache.size", 0);
+        if (cacheSize > 0) {
+            this.nearCache = new NearCache(cacheSize);
+            this.subscribedGeneration = -1;
+            PeerConnection subscribed = nodes.get(0);
+            subscribed.setPushHandler(msg -> {
+                if (msg instanceof Invalidation) {
+                    nearCache.apply((Invalidation) msg);
+                }
+            });
+        }
     }
 
     public void start() {
         Scanner scanner = new Scanner(System.in);
         while (true) {
-            System.out.println("Choose operation: 1) Read 2) Write 3) Exit");
+            System.out.println("Choose operation: 1) Read 2) Write 3) Exit 4) Cache stats 5) Node stats 6) Scan by prefix");
             int choice = scanner.nextInt();
             scanner.nextLine(); // Consume newline
             try {
                 if (choice == 1) {
                     System.out.print("Enter username to read: ");
                     String username = scanner.nextLine();
-                    ReadRequest req = new ReadRequest(username);
-                    ReadResponse resp = (ReadResponse) sendMessage(req);
-                    if (resp.isFound()) {
-                        System.out.println("User: " + resp.getUsername() + ", SSN: " + resp.getSsn());
-                    } else {
+                    Message resp = read(username);
+                    if (resp instanceof ReadResponse && ((ReadResponse) resp).isFound()) {
+                        System.out.println("User: " + ((ReadResponse) resp).getUsername() + ", SSN: " + ((ReadResponse) resp).getSsn());
+                    } else if (resp instanceof ReadResponse) {
                         System.out.println("User not found.");
+                    } else {
+                        System.out.println("Read failed: " + describe(resp));
                     }
                 } else if (choice == 2) {
                     System.out.print("Enter username to write: ");
                     String username = scanner.nextLine();
                     System.out.print("Enter SSN: ");
                     String ssn = scanner.nextLine();
-                    WriteRequest req = new WriteRequest(username, ssn);
-                    sendMessage(req);
-                    System.out.println("Write operation acknowledged.");
+                    Message resp = write(username, ssn);
+                    if (resp instanceof Acknowledgment) {
+                        System.out.println("Write operation acknowledged.");
+                    } else {
+                        System.out.println("Write failed: " + describe(resp));
+                    }
                 } else if (choice == 3) {
                     break;
+                } else if (choice == 4) {
+                    System.out.println(nearCache == null ? "Near cache is off." : "Near cache: " + nearCache.stats());
+                } else if (choice == 6) {
+                    System.out.print("Enter username prefix: ");
+                    String prefix = scanner.nextLine();
+                    int[] count = {0};
+                    Message resp = scanPrefix(prefix, (username, ssn) -> {
+                        System.out.println("User: " + username + ", SSN: " + ssn);
+                        count[0]++;
+                    });
+                    System.out.println(resp instanceof ScanResponse ? count[0] + " users found." : "Scan failed: " + describe(resp));
+                } else if (choice == 5) {
+                    for (Map.Entry<String, Map<String, Long>> node : nodeStats().entrySet()) {
+                        System.out.println("Node at " + node.getKey() + ":");
+                        for (Map.Entry<String, Long> stat : node.getValue().entrySet()) {
+                            System.out.println("  " + stat.getKey() + " " + stat.getValue());
+                        }
+                    }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
         scanner.close();
+        close();
+    }
+
+    // Returns the ReadResponse, or the ErrorMessage / null if the read could not be served
+    public Message read(String username) {
+        return await(readMessage(username), "ReadRequest");
+    }
+
+    // Returns the Acknowledgment, or the ErrorMessage / null if the write failed
+    public Message write(String username, String ssn) {
+        return await(writeMessage(username, ssn), "WriteRequest");
+    }
+
+    // Non-blocking read. Any number may be in flight at once over the shared connections. Completes with the
+    // ReadResponse, or exceptionally if the read could not be served. Dependent actions run on a connection's
+    // reader thread unless given an executor, so they must not block.
+    public CompletableFuture<ReadResponse> readAsync(String username) {
+        return readMessage(username).thenApply(resp -> expect(resp, ReadResponse.class, "Read of user " + username));
+    }
+
+    // Non-blocking write, as readAsync(). Completes with the Acknowledgment once the write is committed.
+    public CompletableFuture<Acknowledgment> writeAsync(String username, String ssn) {
+        return writeMessage(username, ssn).thenApply(resp -> expect(resp, Acknowledgment.class, "Write of user " + username));
+    }
+
+    private CompletableFuture<Message> readMessage(String username) {
+        boolean cacheable = nearCache != null && ensureSubscribed();
+        if (cacheable) {
+            String cached = nearCache.get(username);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(new ReadResponse(username, cached, true, 0, -1));
+            }
+        }
+        return partitionMap().thenCompose(map -> {
+            int origin = map != null ? map.ownerOf(username) : sessionOrigin;
+            return requestRead(new ReadRequest(username, sessionSequence(origin), origin), 0);
+        }).thenApply(resp -> {
+            if (resp instanceof ReadResponse) {
+                ReadResponse readResponse = (ReadResponse) resp;
+                advanceSession(readResponse.getOrigin(), readResponse.getSequence());
+                if (cacheable && readResponse.isFound()) {
+                    nearCache.put(username, readResponse.getSsn(), readResponse.getOrigin(), readResponse.getSequence());
+                }
+            }
+            return resp;
+        });
+    }
+
+    private CompletableFuture<Message> writeMessage(String username, String ssn) {
+        if (nearCache != null) {
+            nearCache.invalidate(username);
+        }
+        return partitionMap().thenCompose(map -> {
+            int owner = map != null ? map.ownerOf(username) : -1;
+            WriteRequest req = new WriteRequest(username, ssn);
+            return (map != null ? request(ownerConnection(map, owner), req) : requestWrite(req, 0)).thenApply(resp -> {
+                if (resp instanceof Acknowledgment) {
+                    Acknowledgment ack = (Acknowledgment) resp;
+                    advanceSession(ack.getOrigin(), ack.getSequence());
+                    checkOwner(map, owner, ack);
+                }
+                return resp;
+            });
+        });
+    }
+
+    // A node that is behind this session sends us to one that is not
+    private CompletableFuture<Message> requestFollowingRedirects(PeerConnection node, Message req, int redirects) {
+        return request(node, req).thenCompose(resp -> {
+            if (resp instanceof Redirect && redirects < MAX_REDIRECTS) {
+                Redirect redirect = (Redirect) resp;
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Redirected to Node " + redirect.getNodeId() + ": " + redirect.getReason());
+                }
+                return requestFollowingRedirects(connections.get(redirect.getHost(), redirect.getPort()), req, redirects + 1);
+            }
+            return CompletableFuture.completedFuture(resp);
+        });
+    }
+
+    // Reads many users, handing each one's SSN (null if not found) to onResult as its chunk arrives, on the
+    // connection's reader thread. Large lists go out as several requests spread over the nodes, one group
+    // per owner when partitioned. Returns the last MultiGetResponse, or the ErrorMessage / null at the first
+    // request that could not be served.
+    public Message multiGet(List<String> usernames, BiConsumer<String, String> onResult) {
+        Message resp = null;
+        for (Map.Entry<Integer, List<String>> group : groupByOwner(usernames, name -> name).entrySet()) {
+            int origin = group.getKey() >= 0 ? group.getKey() : sessionOrigin;
+            List<String> names = group.getValue();
+            for (int from = 0; from < names.size() || from == 0; from += multiGetRequestSize) {
+                List<String> part = new ArrayList<>(names.subList(from, Math.min(names.size(), from + multiGetRequestSize)));
+                MultiGetRequest req = new MultiGetRequest(part, sessionSequence(origin), origin);
+                PeerConnection node = nodes.get(Math.floorMod(nextReadNode.getAndIncrement(), nodes.size()));
+                resp = streamMessage(node, req, onResult);
+                for (int redirects = 0; resp instanceof Redirect && redirects < MAX_REDIRECTS; redirects++) {
+                    Redirect redirect = (Redirect) resp;
+                    if (Log.isDebugEnabled()) {
+                        Log.debug("Redirected to Node " + redirect.getNodeId() + ": " + redirect.getReason());
+                    }
+                    resp = streamMessage(connections.get(redirect.getHost(), redirect.getPort()), req, onResult);
+                }
+                if (!(resp instanceof MultiGetResponse)) {
+                    return resp;
+                }
+                MultiGetResponse last = (MultiGetResponse) resp;
+                advanceSession(last.getOrigin(), last.getSequence());
+            }
+        }
+        return resp;
+    }
+
+    // Hands every user with a username starting with prefix to onResult, in username order, one page at a
+    // time. Returns the last ScanResponse, or the ErrorMessage / null for a page that could not be read.
+    public Message scanPrefix(String prefix, BiConsumer<String, String> onResult) {
+        return scan(prefix, ScanRequest.prefixEnd(prefix), onResult);
+    }
+
+    // As scanPrefix(), for usernames from start (inclusive) to end (exclusive; null for no end). Pages are
+    // spread over the nodes like reads; a scan does not wait for the session's own latest writes.
+    public Message scan(String start, String end, BiConsumer<String, String> onResult) {
+        Message resp = null;
+        String next = start;
+        while (next != null) {
+            PeerConnection node = nodes.get(Math.floorMod(nextReadNode.getAndIncrement(), nodes.size()));
+            resp = sendMessage(node, new ScanRequest(next, end, scanPageSize));
+            if (!(resp instanceof ScanResponse)) {
+                return resp;
+            }
+            for (UserRecord record : ((ScanResponse) resp).getRecords()) {
+                onResult.accept(record.getUsername(), record.getSsn());
+            }
+            next = ((ScanResponse) resp).getNextStart();
+        }
+        return resp;
+    }
+
+    // Writes all records with one log append and one replication round on the primary, or on each owner
+    // when partitioned. Returns the last Acknowledgment, or the ErrorMessage / null at the first write that
+    // failed.
+    public Message multiPut(List<UserRecord> records) {
+        if (nearCache != null) {
+            for (UserRecord record : records) {
+                nearCache.invalidate(record.getUsername());
+            }
+        }
+        PartitionMap map = partitionMap().join();
+        Message resp = null;
+        for (Map.Entry<Integer, List<UserRecord>> group : groupByOwner(records, UserRecord::getUsername).entrySet()) {
+            MultiPutRequest req = new MultiPutRequest(group.getValue());
+            resp = map != null ? sendMessage(ownerConnection(map, group.getKey()), req) : sendWrite(req);
+            if (!(resp instanceof Acknowledgment)) {
+                return resp;
+            }
+            Acknowledgment ack = (Acknowledgment) resp;
+            advanceSession(ack.getOrigin(), ack.getSequence());
+            checkOwner(map, group.getKey(), ack);
+        }
+        return resp;
+    }
+
+    // Compresses a bulk-load chunk, one block per owner when partitioned. Safe to call from many threads, so
+    // a loader can prepare chunks in parallel while earlier ones are being sent.
+    public Map<Integer, BulkLoadRequest> prepareBulkLoad(List<UserRecord> records) throws IOException {
+        Map<Integer, BulkLoadRequest> chunks = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<UserRecord>> group : groupByOwner(records, UserRecord::getUsername).entrySet()) {
+            List<UserRecord> part = group.getValue();
+            chunks.put(group.getKey(), new BulkLoadRequest(RecordBlock.compress(part), part.size()));
+        }
+        return chunks;
+    }
+
+    // Writes a chunk from prepareBulkLoad(), each block to its owner, committed as one unit per block. Returns
+    // as multiPut() does. The near cache is not touched: it learns of the new values from invalidations.
+    public Message bulkLoad(Map<Integer, BulkLoadRequest> chunks) {
+        PartitionMap map = partitionMap().join();
+        Message resp = null;
+        for (Map.Entry<Integer, BulkLoadRequest> chunk : chunks.entrySet()) {
+            resp = map != null ? sendMessage(ownerConnection(map, chunk.getKey()), chunk.getValue()) : sendWrite(chunk.getValue());
+            if (!(resp instanceof Acknowledgment)) {
+                return resp;
+            }
+            Acknowledgment ack = (Acknowledgment) resp;
+            advanceSession(ack.getOrigin(), ack.getSequence());
+            checkOwner(map, chunk.getKey(), ack);
+        }
+        return resp;
+    }
+
+    // Hands every user to onChunk, a chunk of about chunkRows at a time on the connection's reader thread.
+    // The users come from one node as they were at one moment, or when partitioned from each owner in
+    // turn, each as of its own moment. Returns the last ExportChunk, or the ErrorMessage / null if a node
+    // could not be read.
+    public Message export(int chunkRows, Consumer<List<UserRecord>> onChunk) {
+        PartitionMap map = partitionMap().join();
+        List<PeerConnection> sources = new ArrayList<>();
+        if (map == null) {
+            sources.add(nodes.get(Math.floorMod(nextReadNode.getAndIncrement(), nodes.size())));
+        } else {
+            for (NodeInfo member : map.getMembers()) {
+                sources.add(connections.get(member.getHost(), member.getPort()));
+            }
+        }
+        Message resp = null;
+        for (PeerConnection node : sources) {
+            resp = exportFrom(node, chunkRows, onChunk);
+            if (!(resp instanceof ExportChunk)) {
+                return resp;
+            }
+        }
+        return resp;
+    }
+
+    // Every node's metrics by host:port; nodes that do not answer are left out
+    public Map<String, Map<String, Long>> nodeStats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        for (PeerConnection node : nodes) {
+            Message resp = sendMessage(node, new StatsRequest());
+            if (resp instanceof StatsResponse) {
+                stats.put(node.getHost() + ":" + node.getPort(), ((StatsResponse) resp).getStats());
+            }
+        }
+        return stats;
+    }
+
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    public void close() {
+        connections.closeAll();
+    }
+
+    // The cached partition map, refetched from the first node every partitionRefreshMillis; operations started
+    // while a fetch is in flight wait for it without blocking a thread. Null when the cluster is not
+    // partitioned; nodes forward a write that reaches the wrong owner, so a stale map only costs a hop.
+    private CompletableFuture<PartitionMap> partitionMap() {
+        if (System.currentTimeMillis() - partitionMapFetchedAt < partitionRefreshMillis) {
+            return partitionMap;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() - partitionMapFetchedAt >= partitionRefreshMillis) {
+                CompletableFuture<PartitionMap> previous = partitionMap;
+                partitionMap = request(nodes.get(0), new PartitionMapRequest()).handle((resp, error) -> {
+                    if (resp instanceof PartitionMapUpdate) {
+                        return ((PartitionMapUpdate) resp).toPartitionMap();
+                    } else if (resp instanceof ErrorMessage) {
+                        return null; // Single primary
+                    }
+                    return previous != null ? previous.getNow(null) : null; // Keep routing by the map we had
+                });
+                partitionMapFetchedAt = System.currentTimeMillis();
+            }
+            return partitionMap;
+        }
+    }
+
+    // A write sequenced by some other node than the one the map names has moved: fetch the new map before
+    // the next operation, or a read of that user would be checked against the wrong origin
+    private void checkOwner(PartitionMap map, int owner, Acknowledgment ack) {
+        if (map != null && ack.getOrigin() != owner) {
+            partitionMapFetchedAt = 0;
+        }
+    }
+
+    private PeerConnection ownerConnection(PartitionMap map, int owner) {
+        NodeInfo member = map.getMember(owner);
+        return member != null ? connections.get(member.getHost(), member.getPort()) : nodes.get(0);
+    }
+
+    // Groups items by the owner of their key, keeping their order; everything is in group -1 (the node
+    // decides) when the cluster is not partitioned
+    private <T> Map<Integer, List<T>> groupByOwner(List<T> items, Function<T, String> key) {
+        PartitionMap map = partitionMap().join();
+        Map<Integer, List<T>> groups = new LinkedHashMap<>();
+        if (map == null) {
+            groups.put(-1, items);
+            return groups;
+        }
+        for (T item : items) {
+            groups.computeIfAbsent(map.ownerOf(key.apply(item)), owner -> new ArrayList<>()).add(item);
+        }
+        if (groups.isEmpty()) {
+            groups.put(-1, items);
+        }
+        return groups;
+    }
+
+    // Origin -1 means the node decides, which without partitions is always the primary
+    // 0 for an origin this session has seen nothing from, or none yet (-1)
+    private long sessionSequence(int origin) {
+        return origin >= 0 ? sessionSequences.getOrDefault(origin, 0L) : 0;
+    }
+
+    private void advanceSession(int origin, long sequence) {
+        if (origin >= 0) {
+            sessionSequences.merge(origin, sequence, Math::max);
+            sessionOrigin = origin;
+        }
+    }
+
+    // Invalidations are only pushed down a live subscription, so whenever the connection to the first node
+    // has been lost the cache may have missed some: drop it and subscribe again. Returns false, and the
+    // cache is not used, until the node has confirmed the subscription; nothing waits for it.
+    private synchronized boolean ensureSubscribed() {
+        PeerConnection subscribed = nodes.get(0);
+        if (subscribed.isConnected() && subscribed.getGeneration() == subscribedGeneration) {
+            return true;
+        }
+        if (subscribing) {
+            return false;
+        }
+        nearCache.clear();
+        subscribing = true;
+        CompletableFuture<Message> reply = request(subscribed, new InvalidationSubscribe());
+        long generation = subscribed.getGeneration(); // The connection the subscription went out on
+        reply.whenComplete((resp, error) -> {
+            synchronized (this) {
+                subscribing = false;
+                if (error == null) {
+                    subscribedGeneration = generation;
+                } else {
+                    Log.warn("Could not subscribe to invalidations from " + subscribed.getHost() + ":" + subscribed.getPort() + ": " + error);
+                }
+            }
+        });
+        return false;
+    }
+
+    // Unwraps the reply an operation expects, failing it with the node's error otherwise
+    private static <T extends Message> T expect(Message resp, Class<T> type, String operation) {
+        if (type.isInstance(resp)) {
+            return type.cast(resp);
+        }
+        throw new CompletionException(new IOException(operation + " failed: " + describe(resp)));
+    }
+
+    private static String describe(Message resp) {
+        if (resp instanceof ErrorMessage) {
+            return ((ErrorMessage) resp).getError();
+        }
+        if (resp instanceof RetryAfter) {
+            return ((RetryAfter) resp).getReason();
+        }
+        return resp == null ? "no response" : resp.getClass().getSimpleName();
+    }
+
+    private CompletableFuture<Message> request(PeerConnection node, Message msg) {
+        return request(node, msg, 0);
+    }
+
+    // A node too busy to take the request gets it again once the wait it asked for has passed
+    private CompletableFuture<Message> request(PeerConnection node, Message msg, int retries) {
+        return node.request(msg).orTimeout(PeerConnection.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).thenCompose(resp -> {
+            if (resp instanceof RetryAfter && retries < overloadRetries) {
+                Executor later = CompletableFuture.delayedExecutor(retryDelayMillis((RetryAfter) resp, retries), TimeUnit.MILLISECONDS);
+                return CompletableFuture.runAsync(() -> { }, later).thenCompose(ignored -> request(node, msg, retries + 1));
+            }
+            return CompletableFuture.completedFuture(resp);
+        });
+    }
+
+    // Reads rotate over the nodes; when one cannot be reached, e.g. it has just failed, the read goes to the next
+    private CompletableFuture<Message> requestRead(Message msg, int tried) {
+        PeerConnection node = nodes.get(Math.floorMod(nextReadNode.getAndIncrement(), nodes.size()));
+        CompletableFuture<Message> reply = requestFollowingRedirects(node, msg, 0);
+        if (tried + 1 >= nodes.size()) {
+            return reply;
+        }
+        return reply.handle((resp, error) -> error == null ? CompletableFuture.completedFuture(resp) : requestRead(msg, tried + 1))
+                .thenCompose(next -> next);
     }
 
-    private Message sendMessage(Message msg) {
-        try (Socket socket = new Socket(host, port);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-            System.out.println("Client connected to server at " + host + ":" + port);
-            out.writeObject(msg);
-            out.flush(); // Ensure data is sent immediately
-            System.out.println("Message sent: " + msg.getClass().getSimpleName());
+    // Any node takes writes and forwards them to the primary, so when the current write endpoint cannot be
+    // reached, e.g. it was the primary and has just failed, the write goes to the next one
+    private CompletableFuture<Message> requestWrite(Message msg, int tried) {
+        int index = writeNode.get();
+        CompletableFuture<Message> reply = request(nodes.get(Math.floorMod(index, nodes.size())), msg);
+        if (tried + 1 >= nodes.size()) {
+            return reply;
+        }
+        return reply.handle((resp, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(resp);
+            }
+            writeNode.compareAndSet(index, index + 1);
+            return requestWrite(msg, tried + 1);
+        }).thenCompose(next -> next);
+    }
 
-              Message response = (Message) in.readObject();
-            System.out.println("Received response: " + response.getClass().getSimpleName());
+    // Blocking form of requestWrite()
+    private Message sendWrite(Message msg) {
+        Message resp = null;
+        for (int tried = 0; resp == null && tried < nodes.size(); tried++) {
+            int index = writeNode.get();
+            resp = sendMessage(nodes.get(Math.floorMod(index, nodes.size())), msg);
+            if (resp == null) {
+                writeNode.compareAndSet(index, index + 1);
+            }
+        }
+        return resp;
+    }
+
+    // The node's hint, doubled on every further try, with jitter so turned-away clients do not come back in step
+    private static long retryDelayMillis(RetryAfter retry, int retries) {
+        long delay = Math.min(1000, retry.getRetryAfterMillis() << Math.min(retries, 10));
+        return delay + ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+    private Message await(CompletableFuture<Message> reply, String sent) {
+        try {
+            Message response = reply.get();
+            if (Log.isDebugEnabled()) {
+                Log.debug("Sent " + sent + ", received " + response.getClass().getSimpleName());
+            }
+            return response;
+        } catch (ExecutionException e) {
+            Log.warn("Error occurred while sending " + sent + ": " + e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private Message sendMessage(PeerConnection node, Message msg) {
+        try {
+            Message response = node.call(msg);
+            for (int retries = 0; response instanceof RetryAfter && retries < overloadRetries; retries++) {
+                Thread.sleep(retryDelayMillis((RetryAfter) response, retries));
+                response = node.call(msg);
+            }
+            if (Log.isDebugEnabled()) {
+                Log.debug("Sent " + msg.getClass().getSimpleName() + " to " + node.getHost() + ":" + node.getPort()
+                        + ", received " + response.getClass().getSimpleName());
+            }
             return response;
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error occurred while sending message.");
-            e.printStackTrace();
+        } catch (IOException e) {
+            Log.warn("Error occurred while sending message to " + node.getHost() + ":" + node.getPort() + ": " + e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
         }
     }
-    
+
+
+    private Message streamMessage(PeerConnection node, Message msg, BiConsumer<String, String> onResult) {
+        AtomicBoolean returned = new AtomicBoolean();
+        Consumer<Message> onChunk = chunk -> {
+            if (chunk instanceof MultiGetResponse && !returned.get()) {
+                MultiGetResponse resp = (MultiGetResponse) chunk;
+                for (int i = 0; i < resp.getUsernames().size(); i++) {
+                    onResult.accept(resp.getUsernames().get(i), resp.getSsns().get(i));
+                }
+            }
+        };
+        CompletableFuture<Message> reply = null;
+        try {
+            // A turned-away request delivered no chunks, so it can simply be sent again
+            reply = node.stream(msg, onChunk);
+            Message response = reply.get(PeerConnection.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            for (int retries = 0; response instanceof RetryAfter && retries < overloadRetries; retries++) {
+                Thread.sleep(retryDelayMillis((RetryAfter) response, retries));
+                reply = node.stream(msg, onChunk);
+                response = reply.get(PeerConnection.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return response;
+        } catch (ExecutionException | TimeoutException e) {
+            Log.warn("Error occurred while streaming from " + node.getHost() + ":" + node.getPort() + ": "
+                    + (e instanceof ExecutionException ? e.getCause() : e));
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            endStream(reply, returned);
+        }
+    }
+
+    // Chunks still arriving for a request given up on must not reach the caller once it has its answer.
+    // Cancelling the reply drops the connection's listener for it; the flag covers a chunk being handed
+    // over at that moment.
+    private static void endStream(CompletableFuture<Message> reply, AtomicBoolean returned) {
+        returned.set(true);
+        if (reply != null) {
+            reply.cancel(false);
+        }
+    }
+
+    // Waits for the whole export however long it runs; a lost connection still ends it
+    private Message exportFrom(PeerConnection node, int chunkRows, Consumer<List<UserRecord>> onChunk) {
+        IOException[] corrupt = new IOException[1];
+        AtomicBoolean returned = new AtomicBoolean();
+        Consumer<Message> onExportChunk = chunk -> {
+            if (chunk instanceof ExportChunk && corrupt[0] == null && !returned.get()) {
+                try {
+                    onChunk.accept(RecordBlock.decompress(((ExportChunk) chunk).getBlock()));
+                } catch (IOException e) {
+                    corrupt[0] = e;
+                }
+            }
+        };
+        CompletableFuture<Message> reply = null;
+        try {
+            reply = node.stream(new ExportRequest(chunkRows), onExportChunk);
+            Message response = reply.get();
+            if (corrupt[0] != null) {
+                throw new ExecutionException(corrupt[0]);
+            }
+            return response;
+        } catch (ExecutionException e) {
+            Log.warn("Error occurred while exporting from " + node.getHost() + ":" + node.getPort() + ": " + e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            endStream(reply, returned);
+        }
+    }
 
     // Main method
     public static void main(String[] args) {
-        if (args.length != 2) {
+        Client client;
+        if (args.length == 2) {
+            client = new Client(args[0], Integer.parseInt(args[1]));
+        } else if (args.length == 1) {
+            client = new Client(List.of(args[0].split(",")));
+        } else {
             System.out.println("Usage: java Client <host> <port>");
+            System.out.println("       java Client <host:port>[,<host:port>...]   (reads are spread over all nodes)");
             return;
         }
-        String host = args[0];
-        int port = Integer.parseInt(args[1]);
-        Client client = new Client(host, port);
         client.start();
     }
 }
-
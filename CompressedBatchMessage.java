@@ -0,0 +1,37 @@
+// A BatchReplicationMessage sent as a ReplicationCompressor frame, for links where that is quicker.
+// Record i carries sequence number firstSequence + i.
+public class CompressedBatchMessage extends Message {
+    private static final long serialVersionUID = 1L;
+    private int originId;
+    private long firstSequence;
+    private int rows;
+    private byte[] frame;
+
+    public CompressedBatchMessage(int originId, long firstSequence, int rows, byte[] frame) {
+        this.originId = originId;
+        this.firstSequence = firstSequence;
+        this.rows = rows;
+        this.frame = frame;
+    }
+
+    public int getOriginId() {
+        return originId;
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.COMPRESSED_BATCH_MESSAGE;
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Caps how many requests of one class a node works on at once, rejecting the rest straight away instead
+// of queueing them. The cap adapts to latency, much like TCP Vegas: the lowest average latency seen is
+// taken as the no-queueing baseline, and once a window's average climbs past tolerance times that, the
+// limit shrinks in proportion; while latency stays near the baseline and the limit is actually being
+// used, it grows by about its square root per window. adjust() is called once per window from a timer,
+// so the request path only touches an atomic counter and two LongAdders.
+public class ConcurrencyLimit {
+    private String name;
+    private int minLimit;
+    private int maxLimit;
+    private double tolerance;
+    private volatile int limit;
+    private AtomicInteger inFlight;
+    private AtomicInteger peakInFlight; // Highest inFlight this window
+    private LongAdder latencyNanos; // Sampled latencies this window
+    private LongAdder samples;
+    private LongAdder rejected;
+    private double baselineNanos; // Lowest window average seen, drifting up slowly so it can follow real changes
+    private double lastAverageNanos;
+
+    public ConcurrencyLimit(String name, int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = Math.max(1.0, tolerance);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.inFlight = new AtomicInteger();
+        this.peakInFlight = new AtomicInteger();
+        this.latencyNanos = new LongAdder();
+        this.samples = new LongAdder();
+        this.rejected = new LongAdder();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    // Takes a slot, or counts a rejection and returns false if all are busy
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                peakInFlight.accumulateAndGet(current + 1, Math::max);
+                return true;
+            }
+        }
+    }
+
+    // Frees the slot; sample is false for requests whose latency says nothing about load, e.g. multi-gets
+    public void release(long nanos, boolean sample) {
+        inFlight.decrementAndGet();
+        if (sample) {
+            latencyNanos.add(nanos);
+            samples.increment();
+        }
+    }
+
+    // A hint for rejected clients: about how long the average request is taking right now
+    public long getRetryAfterMillis() {
+        return Math.max(1, Math.round(lastAverageNanos / 1e6));
+    }
+
+    // Once per window, from a single thread
+    public void adjust() {
+        long count = samples.sumThenReset();
+        long total = latencyNanos.sumThenReset();
+        int peak = peakInFlight.getAndSet(inFlight.get());
+        if (count == 0) {
+            return;
+        }
+        double average = (double) total / count;
+        lastAverageNanos = average;
+        baselineNanos = baselineNanos == 0 ? average : Math.min(baselineNanos * 1.01, average);
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * baselineNanos / average));
+        double target = limit * gradient;
+        if (gradient == 1.0 && peak >= limit / 2) {
+            target += Math.sqrt(limit); // Room to spare and in use: probe for more
+        }
+        // Move a fifth of the way each window, so a single noisy window cannot swing the limit far
+        int next = (int) Math.round(limit * 0.8 + target * 0.2);
+        if (next == limit && target < limit) {
+            next--;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    public void addStats(Map<String, Long> stats) {
+        String prefix = "admission." + name;
+        stats.put(prefix + ".limit", (long) limit);
+        stats.put(prefix + ".in.flight", (long) inFlight.get());
+        stats.put(prefix + ".rejected", rejected.sum());
+        stats.put(prefix + ".baseline.us", Math.round(baselineNanos / 1000));
+    }
+
+    public String summary() {
+        return name + " limit " + limit + ", in flight " + inFlight.get() + ", rejected " + rejected.sum()
+                + ", baseline " + Math.round(baselineNanos / 1000) + " us, last window " + Math.round(lastAverageNanos / 1000) + " us";
+    }
+}
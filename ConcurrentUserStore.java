@@ -0,0 +1,51 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// On-heap store backed by a ConcurrentHashMap: reads take no locks and writes lock only their own bin
+public class ConcurrentUserStore extends UserStore {
+    // Rough per-entry overheads on a 64-bit JVM with compressed oops
+    private static final int ENTRY_OVERHEAD_BYTES = 32 + 8; // Map node plus its share of the table
+    private static final int STRING_OVERHEAD_BYTES = 24 + 16; // String object plus byte[] header
+
+    private ConcurrentHashMap<String, String> map;
+    private AtomicLong stringBytes;
+
+    public ConcurrentUserStore() {
+        this.map = new ConcurrentHashMap<>();
+        this.stringBytes = new AtomicLong();
+    }
+
+    @Override
+    public String get(String username) {
+        return map.get(username);
+    }
+
+    @Override
+    public void put(String username, String ssn) {
+        if (hasOpenViews()) {
+            updating(username, map.get(username));
+        }
+        String old = map.put(username, ssn);
+        updated(username, old, ssn);
+        long delta = old == null
+                ? 2L * STRING_OVERHEAD_BYTES + username.length() + ssn.length()
+                : ssn.length() - old.length();
+        stringBytes.addAndGet(delta);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        map.forEach(action);
+    }
+
+    @Override
+    public long memoryBytes() {
+        return (long) map.size() * ENTRY_OVERHEAD_BYTES + stringBytes.get();
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+// A long-lived link carrying a stream of request-ID framed messages in both directions.
+// Each frame is [int length][long requestId][payload], the payload produced by a MessageCodec.
+public abstract class Connection implements Closeable {
+    public static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    protected static final int INITIAL_BUFFER_BYTES = 4096;
+
+    // Send one frame; safe to call from any thread
+    public abstract void write(long requestId, Message msg) throws IOException;
+
+    @Override
+    public abstract void close();
+
+    // Block until at most maxBytes of earlier writes are still waiting for the socket, so a long streamed
+    // reply cannot pile up in memory. Connections whose writes block never queue anything.
+    public void awaitQueuedBelow(long maxBytes) throws IOException {
+    }
+
+    // Encode a whole frame into buf, growing it if needed. Returns the buffer used, flipped for reading.
+    public static ByteBuffer encodeFrame(MessageCodec codec, long requestId, Message msg, ByteBuffer buf) throws IOException {
+        while (true) {
+            try {
+                buf.clear();
+                buf.position(HEADER_BYTES);
+                codec.encode(msg, buf);
+                buf.putInt(0, buf.position() - Integer.BYTES);
+                buf.putLong(Integer.BYTES, requestId);
+                buf.flip();
+                return buf;
+            } catch (BufferOverflowException e) {
+                if (buf.capacity() >= MAX_FRAME_BYTES) {
+                    throw new IOException("Message exceeds maximum frame size: " + msg.getClass().getSimpleName());
+                }
+                buf = ByteBuffer.allocate(Math.min(buf.capacity() * 2, MAX_FRAME_BYTES));
+            }
+        }
+    }
+
+    // Check a frame length read off the wire before trusting it
+    protected static void checkFrameLength(int length) throws IOException {
+        if (length < Long.BYTES || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hands out one shared PeerConnection per host:port
+public class ConnectionManager {
+    private Map<String, PeerConnection> connections;
+
+    public ConnectionManager() {
+        this.connections = new ConcurrentHashMap<>();
+    }
+
+    public PeerConnection get(String host, int port) {
+        return connections.computeIfAbsent(host + ":" + port, key -> new PeerConnection(host, port));
+    }
+
+    public PeerConnection get(NodeInfo node) {
+        return get(node.getHost(), node.getPort());
+    }
+
+    public void closeAll() {
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+}
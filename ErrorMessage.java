@@ -9,4 +9,9 @@ public class ErrorMessage extends Message {
     public String getError() {
         return error;
     }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.ERROR_MESSAGE;
+    }
 }
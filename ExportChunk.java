@@ -0,0 +1,31 @@
+// One chunk of the answer to an ExportRequest: a compressed RecordBlock, in no particular order
+public class ExportChunk extends Message {
+    private static final long serialVersionUID = 1L;
+    private byte[] block;
+    private int rows;
+    private boolean last;
+
+    public ExportChunk(byte[] block, int rows, boolean last) {
+        this.block = block;
+        this.rows = rows;
+        this.last = last;
+    }
+
+    public byte[] getBlock() {
+        return block;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public boolean isLastChunk() {
+        return last;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.EXPORT_CHUNK;
+    }
+}
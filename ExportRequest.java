@@ -0,0 +1,19 @@
+// Stream every user the node holds, as it was when the request arrived, in ExportChunks of about
+// chunkRows users. With partitioning, only the partitions the node owns.
+public class ExportRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private int chunkRows;
+
+    public ExportRequest(int chunkRows) {
+        this.chunkRows = chunkRows;
+    }
+
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.EXPORT_REQUEST;
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// A message as it travels over a Connection, tagged with the request ID that pairs it with its reply
+public class Frame {
+    public static final long NO_REPLY = 0L; // One-way messages carry request ID 0
+
+    private static final AtomicReferenceFieldUpdater<Frame, ConcurrencyLimit> ADMITTED =
+            AtomicReferenceFieldUpdater.newUpdater(Frame.class, ConcurrencyLimit.class, "admitted");
+
+    private long requestId;
+    private Message message;
+    private Connection connection;
+    private long receivedNanos; // When it was read off the connection
+    private Metrics metrics; // Where reply() records the request's latency, if anywhere
+    private volatile ConcurrencyLimit admitted; // Slot this request holds until it is answered, if any
+    private boolean sampled; // Whether its latency is fed back to the limit
+
+    public Frame(long requestId, Message message, Connection connection) {
+        this.requestId = requestId;
+        this.message = message;
+        this.connection = connection;
+        this.receivedNanos = System.nanoTime();
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setAdmitted(ConcurrencyLimit admitted, boolean sampled) {
+        this.sampled = sampled;
+        this.admitted = admitted;
+    }
+
+    // Send a response back on the connection this frame arrived on, under the same request ID. The last
+    // chunk, or a failed send, frees the request's admission slot.
+    public void reply(Message response) throws IOException {
+        boolean last = response.isLastChunk();
+        try {
+            connection.write(requestId, response);
+        } catch (IOException e) {
+            last = true;
+            throw e;
+        } finally {
+            if (last) {
+                long nanos = System.nanoTime() - receivedNanos;
+                if (metrics != null) {
+                    metrics.recordLatency(message.getTypeTag(), nanos);
+                }
+                release(nanos);
+            }
+        }
+    }
+
+    // Frees the admission slot if it has not been already, e.g. when the request failed without a reply
+    public void release(long nanos) {
+        ConcurrencyLimit limit = ADMITTED.getAndSet(this, null);
+        if (limit != null) {
+            limit.release(nanos, sampled);
+        }
+    }
+}
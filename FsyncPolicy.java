@@ -0,0 +1,10 @@
+// When the write-ahead log forces appended records to disk
+public enum FsyncPolicy {
+    WRITE,    // After every record
+    BATCH,    // Once per group-committed or replicated batch
+    INTERVAL; // On a timer, every userstore.wal.fsync.interval.millis
+
+    public static FsyncPolicy fromConfig() {
+        return valueOf(Config.getString("userstore.wal.fsync", "batch").toUpperCase());
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Hash tree over the keyspace, for replicas to find where they differ without sending their data. Users
+// fall into 2^depth leaves by the top bits of their key hash; a leaf holds the sum of its entries' hashes
+// and every inner node the sum of its two children. Sums, unlike hashes of the children, can be kept
+// current on every put with one atomic add per level, no locks and no recomputation, and two stores
+// holding the same users with the same SSNs always end up with the same tree.
+//
+// Each leaf also keeps the usernames that fall in it, so the users of a differing leaf are found without
+// walking the whole store. There are no deletes, so a name is only ever added, when its user is new.
+public class HashTree {
+    public static final int ROOT = 1;
+
+    private int depth;
+    private AtomicLongArray nodes; // Heap order: children of i at 2i and 2i + 1, leaves from 2^depth on
+    private AtomicReferenceArray<Set<String>> usernames; // Per leaf, created with its first user
+
+    public HashTree(int depth) {
+        if (depth < 1 || depth > 24) {
+            throw new IllegalArgumentException("Hash tree depth must be between 1 and 24: " + depth);
+        }
+        this.depth = depth;
+        this.nodes = new AtomicLongArray(2 << depth);
+        this.usernames = new AtomicReferenceArray<>(1 << depth);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getNodeCount() {
+        return nodes.length();
+    }
+
+    public boolean isLeaf(int node) {
+        return node >= 1 << depth;
+    }
+
+    // Node index of the leaf the user falls in
+    public int leafOf(String username) {
+        return (1 << depth) + (int) (hash(username) >>> (64 - depth));
+    }
+
+    public long get(int node) {
+        return nodes.get(node);
+    }
+
+    // Every user added to the leaf so far; names added while iterating may or may not be seen
+    public Set<String> usernamesIn(int leaf) {
+        Set<String> names = isLeaf(leaf) && leaf < nodes.length() ? usernames.get(leaf - (1 << depth)) : null;
+        return names != null ? Collections.unmodifiableSet(names) : Collections.emptySet();
+    }
+
+    // oldSsn is null for a new user
+    public void update(String username, String oldSsn, String newSsn) {
+        long userHash = hash(username);
+        int leaf = (1 << depth) + (int) (userHash >>> (64 - depth));
+        if (oldSsn == null) {
+            leafUsernames(leaf).add(username);
+        }
+        long delta = entryHash(userHash, newSsn) - (oldSsn != null ? entryHash(userHash, oldSsn) : 0);
+        if (delta == 0) {
+            return;
+        }
+        for (int node = leaf; node >= ROOT; node >>>= 1) {
+            nodes.addAndGet(node, delta);
+        }
+    }
+
+    private Set<String> leafUsernames(int leaf) {
+        int i = leaf - (1 << depth);
+        Set<String> names = usernames.get(i);
+        if (names == null) {
+            usernames.compareAndSet(i, null, ConcurrentHashMap.newKeySet());
+            names = usernames.get(i);
+        }
+        return names;
+    }
+
+    private static long entryHash(long userHash, String ssn) {
+        return mix(userHash ^ hash(ssn) * 0x9e3779b97f4a7c15L);
+    }
+
+    // FNV-1a over the chars, then a final mix; works on the String directly so a put allocates nothing
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,38 @@
+// Sent by the primary to every other node several times per election timeout. Also says which stream
+// the primary had followed before it was elected, and how far: a node only counts itself as following
+// this term once it has applied that much of it.
+public class Heartbeat extends Message {
+    private static final long serialVersionUID = 1L;
+    private long term;
+    private int leaderId;
+    private int baseOrigin;
+    private long baseSequence;
+
+    public Heartbeat(long term, int leaderId, int baseOrigin, long baseSequence) {
+        this.term = term;
+        this.leaderId = leaderId;
+        this.baseOrigin = baseOrigin;
+        this.baseSequence = baseSequence;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    public int getLeaderId() {
+        return leaderId;
+    }
+
+    public int getBaseOrigin() {
+        return baseOrigin;
+    }
+
+    public long getBaseSequence() {
+        return baseSequence;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.HEARTBEAT;
+    }
+}
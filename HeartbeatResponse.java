@@ -0,0 +1,24 @@
+// Reply to a Heartbeat: not accepted if the receiver is already in a later term, which it gives
+public class HeartbeatResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private long term;
+    private boolean accepted;
+
+    public HeartbeatResponse(long term, boolean accepted) {
+        this.term = term;
+        this.accepted = accepted;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.HEARTBEAT_RESPONSE;
+    }
+}
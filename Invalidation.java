@@ -0,0 +1,45 @@
+import java.util.List;
+
+// Pushed to subscribed clients after a node applies writes: the usernames changed, the node's sequence for
+// their origin once they were applied, and when that happened in microseconds since the epoch
+public class Invalidation extends Message {
+    private static final long serialVersionUID = 1L;
+    private List<String> usernames;
+    private boolean clearAll; // Too much changed to list, e.g. after a snapshot load
+    private int origin;
+    private long sequence;
+    private long timestampMicros;
+
+    public Invalidation(List<String> usernames, boolean clearAll, int origin, long sequence, long timestampMicros) {
+        this.usernames = usernames;
+        this.clearAll = clearAll;
+        this.origin = origin;
+        this.sequence = sequence;
+        this.timestampMicros = timestampMicros;
+    }
+
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    public boolean isClearAll() {
+        return clearAll;
+    }
+
+    public int getOrigin() {
+        return origin;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestampMicros() {
+        return timestampMicros;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.INVALIDATION;
+    }
+}
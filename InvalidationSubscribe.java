@@ -0,0 +1,9 @@
+// Asks a node to push an Invalidation down this connection whenever it changes a user
+public class InvalidationSubscribe extends Message {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.INVALIDATION_SUBSCRIBE;
+    }
+}
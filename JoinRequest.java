@@ -0,0 +1,25 @@
+// Sent by a new node to the controller. First with ready=false, to start receiving replication; then, once
+// it has caught up, with ready=true so partitions move to it.
+public class JoinRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private NodeInfo node;
+    private boolean ready;
+
+    public JoinRequest(NodeInfo node, boolean ready) {
+        this.node = node;
+        this.ready = ready;
+    }
+
+    public NodeInfo getNode() {
+        return node;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.JOIN_REQUEST;
+    }
+}
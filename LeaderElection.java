@@ -0,0 +1,396 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+
+// Term-based election of the primary. The primary sends heartbeats; a node that hears none for its
+// election timeout, drawn afresh between one and two electionTimeoutMillis so that nodes rarely stand at
+// once, starts the next term and asks the others for their votes. Each node votes once per term, and only
+// for a candidate at least as up to date as itself: one that followed a primary in a later term, or in
+// the same term got further in that primary's stream. A candidate with a majority is primary, but takes
+// writes only once a majority has accepted its heartbeat, and gives up again when it stops hearing from a
+// majority. Term and vote are on disk before anything acts on them, so a restarted node cannot vote twice
+// in a term or come back as a primary that has been replaced. This class only keeps the state; Node sends
+// the messages.
+public class LeaderElection {
+    public static final int NO_LEADER = -1;
+
+    private int nodeId;
+    private int clusterSize;
+    private long electionTimeoutNanos;
+    private Path stateFile; // null if nothing is kept across restarts
+    private IntToLongFunction lastSequence; // How far this node has applied an origin's stream
+    private IntConsumer onLeaderChange; // Told the primary to take writes from, NO_LEADER while there is none
+    private long term;
+    private int votedFor;
+    private long followedTerm; // Last term this node followed a primary in, having applied its base
+    private int followedOrigin; // That primary
+    private int leaderId; // Confirmed primary of the current term, or NO_LEADER
+    private int lastLeaderId; // The one before, while there is none
+    private boolean candidate;
+    private boolean leading; // Won the current term
+    private boolean confirmed; // ...and a majority has accepted its heartbeat
+    private Set<Integer> votes;
+    private Map<Integer, Long> ackedNanos; // When each node last accepted this primary's heartbeat or batch
+    private int baseOrigin; // The stream this node followed when it won, and how far, sent in heartbeats
+    private long baseSequence;
+    private int leaderBaseOrigin; // The same, as heard from the current primary
+    private long leaderBaseSequence;
+    private long lastHeardNanos; // Last heartbeat accepted or vote given; the election timeout runs from here
+    private long leaderHeardNanos; // Last heartbeat from any primary, 0 if none yet
+    private long wonNanos;
+    private long lastTickNanos; // When the timer last asked for a heartbeat or an election
+    private long graceUntilNanos; // A primary just out of a stall does not count its acks before this
+    private long timeoutNanos;
+    private long started;
+    private long won;
+    private Histogram failoverMillis; // From the last heartbeat of the old primary to the new one taking writes
+
+    public LeaderElection(int nodeId, int clusterSize, long electionTimeoutMillis, Path stateFile,
+                          IntToLongFunction lastSequence, IntConsumer onLeaderChange) {
+        this.nodeId = nodeId;
+        this.clusterSize = clusterSize;
+        this.electionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, electionTimeoutMillis));
+        this.stateFile = stateFile;
+        this.lastSequence = lastSequence;
+        this.onLeaderChange = onLeaderChange;
+        this.votedFor = NO_LEADER;
+        this.followedOrigin = NO_LEADER;
+        this.leaderId = NO_LEADER;
+        this.lastLeaderId = NO_LEADER;
+        this.votes = new HashSet<>();
+        this.ackedNanos = new HashMap<>();
+        this.leaderBaseOrigin = NO_LEADER;
+        this.failoverMillis = new Histogram();
+        this.lastTickNanos = System.nanoTime();
+        this.graceUntilNanos = lastTickNanos;
+        load();
+    }
+
+    // Called once the store has been recovered. A node that has never seen an election starts out in term
+    // 0 under the configured primary; one that has waits to hear from the current primary, or stands.
+    public synchronized void begin(int configuredPrimary) {
+        long now = System.nanoTime();
+        lastHeardNanos = now;
+        timeoutNanos = randomTimeout();
+        if (term > 0) {
+            lastLeaderId = followedOrigin;
+            Log.info("Node " + nodeId + " resuming in term " + term + ", last following Node " + followedOrigin);
+            return;
+        }
+        followedOrigin = configuredPrimary;
+        if (configuredPrimary == nodeId) {
+            leading = true;
+            wonNanos = now;
+            baseOrigin = nodeId;
+            baseSequence = 0;
+            confirmIfMajority(now);
+        } else {
+            setLeader(configuredPrimary);
+        }
+    }
+
+    public synchronized long getTerm() {
+        return term;
+    }
+
+    public synchronized int getLeaderId() {
+        return leaderId;
+    }
+
+    // The primary, or while there is none the last one this node knew
+    public synchronized int getKnownLeaderId() {
+        return leaderId != NO_LEADER ? leaderId : lastLeaderId;
+    }
+
+    // The previous primary's stream, if this node has not yet applied as much of it as the current primary
+    // had when elected, or -1
+    public synchronized int getLaggingOrigin() {
+        if (leaderId == NO_LEADER || leaderId == nodeId || followedTerm >= term || leaderBaseOrigin == NO_LEADER) {
+            return -1;
+        }
+        return lastSequence.applyAsLong(leaderBaseOrigin) < leaderBaseSequence ? leaderBaseOrigin : -1;
+    }
+
+    // Starts the next term if no primary has been heard from for the election timeout; returns the request
+    // to send to every other node, or null
+    public synchronized VoteRequest startElectionIfDue() {
+        long now = System.nanoTime();
+        if (stalled(now) && !leading) {
+            lastHeardNanos = now; // This node was not listening, so the silence says nothing of the primary
+        }
+        if (leading || now - lastHeardNanos < timeoutNanos) {
+            return null;
+        }
+        long silentMillis = TimeUnit.NANOSECONDS.toMillis(now - lastHeardNanos);
+        term++;
+        votedFor = nodeId;
+        candidate = true;
+        votes.clear();
+        votes.add(nodeId);
+        lastHeardNanos = now;
+        timeoutNanos = randomTimeout();
+        started++;
+        save();
+        setLeader(NO_LEADER);
+        Log.info("Node " + nodeId + " heard from no primary for " + silentMillis + " ms; standing for term " + term);
+        VoteRequest request = new VoteRequest(term, nodeId, followedTerm, lastSequence.applyAsLong(followedOrigin));
+        if (votes.size() >= majority()) {
+            win(now); // A cluster of one
+        }
+        return request;
+    }
+
+    // Returns true if this vote won the election, so the caller can announce it straight away
+    public synchronized boolean onVoteResponse(int voterId, long electionTerm, VoteResponse resp) {
+        if (resp.getTerm() > term) {
+            stepDown(resp.getTerm());
+            return false;
+        }
+        if (!candidate || electionTerm != term || !resp.isGranted()) {
+            return false;
+        }
+        votes.add(voterId);
+        if (votes.size() < majority()) {
+            return false;
+        }
+        win(System.nanoTime());
+        return true;
+    }
+
+    public synchronized VoteResponse onVoteRequest(VoteRequest req) {
+        long now = System.nanoTime();
+        // A primary that is still being heard from keeps its place: a node that merely lost touch with it
+        // cannot unseat it
+        boolean primaryAlive = leaderId == nodeId || (leaderId != NO_LEADER && now - leaderHeardNanos < electionTimeoutNanos);
+        if (req.getTerm() < term || primaryAlive) {
+            return new VoteResponse(term, false);
+        }
+        if (req.getTerm() > term) {
+            stepDown(req.getTerm());
+        }
+        long ownSequence = lastSequence.applyAsLong(followedOrigin);
+        boolean upToDate = req.getLastTerm() > followedTerm
+                || (req.getLastTerm() == followedTerm && req.getLastSequence() >= ownSequence);
+        if (!upToDate || (votedFor != NO_LEADER && votedFor != req.getCandidateId())) {
+            return new VoteResponse(term, false);
+        }
+        votedFor = req.getCandidateId();
+        save();
+        lastHeardNanos = now;
+        Log.info("Node " + nodeId + " voted for Node " + req.getCandidateId() + " in term " + term);
+        return new VoteResponse(term, true);
+    }
+
+    // The heartbeat to send if this node is primary, else null. A confirmed primary that has not heard from
+    // a majority for twice the election timeout, the longest any follower waits, steps down: the others
+    // will have moved on without it. Not within an election timeout of a stall of its own (a long GC
+    // pause, say), though, while the answers to its first heartbeats since are still on their way; and one
+    // not yet confirmed takes no writes anyway, and keeps trying, e.g. while the others are starting up.
+    public synchronized Heartbeat heartbeat() {
+        if (!leading) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (stalled(now)) {
+            graceUntilNanos = now + electionTimeoutNanos;
+        }
+        if (confirmed && now - graceUntilNanos > 0 && countAcksWithin(now, 2 * electionTimeoutNanos) + 1 < majority()) {
+            Log.warn("Node " + nodeId + " has lost touch with a majority; no longer primary in term " + term);
+            leading = false;
+            confirmed = false;
+            lastHeardNanos = now;
+            leaderHeardNanos = now; // Its own last word as primary, for the failover time
+            setLeader(NO_LEADER);
+            return null;
+        }
+        return new Heartbeat(term, nodeId, baseOrigin, baseSequence);
+    }
+
+    public synchronized void onHeartbeatResponse(int followerId, long heartbeatTerm, HeartbeatResponse resp) {
+        if (resp.getTerm() > term) {
+            stepDown(resp.getTerm());
+            return;
+        }
+        if (!leading || heartbeatTerm != term || !resp.isAccepted()) {
+            return;
+        }
+        long now = System.nanoTime();
+        ackedNanos.put(followerId, now);
+        if (!confirmed) {
+            confirmIfMajority(now);
+        }
+    }
+
+    // A batch replicated by the primary counts as a heartbeat from it: under load the heartbeats queue up
+    // behind the batches, and a follower still taking batches from its primary must not turn on it
+    public synchronized void heardFromLeader(int origin) {
+        if (origin == leaderId && !leading) {
+            long now = System.nanoTime();
+            lastHeardNanos = now;
+            leaderHeardNanos = now;
+        }
+    }
+
+    // Likewise a backup acking one of this primary's batches has accepted it
+    public synchronized void acked(int followerId) {
+        if (leading && confirmed) {
+            ackedNanos.put(followerId, System.nanoTime());
+        }
+    }
+
+    public synchronized HeartbeatResponse onHeartbeat(Heartbeat heartbeat) {
+        if (heartbeat.getTerm() < term) {
+            return new HeartbeatResponse(term, false);
+        }
+        if (heartbeat.getTerm() > term) {
+            term = heartbeat.getTerm();
+            votedFor = NO_LEADER;
+            save();
+        }
+        candidate = false;
+        leading = false;
+        confirmed = false;
+        long now = System.nanoTime();
+        lastHeardNanos = now;
+        leaderHeardNanos = now;
+        leaderBaseOrigin = heartbeat.getBaseOrigin();
+        leaderBaseSequence = heartbeat.getBaseSequence();
+        if (followedTerm < term && lastSequence.applyAsLong(leaderBaseOrigin) >= leaderBaseSequence) {
+            followedTerm = term;
+            followedOrigin = heartbeat.getLeaderId();
+            save();
+        }
+        setLeader(heartbeat.getLeaderId());
+        return new HeartbeatResponse(term, true);
+    }
+
+    public synchronized void addStats(Map<String, Long> stats) {
+        stats.put("election.term", term);
+        stats.put("election.leader", (long) leaderId);
+        stats.put("election.started", started);
+        stats.put("election.won", won);
+        Metrics.addHistogram(stats, "election.failover.ms", failoverMillis);
+    }
+
+    private void win(long now) {
+        candidate = false;
+        leading = true;
+        wonNanos = now;
+        ackedNanos.clear();
+        baseOrigin = followedOrigin;
+        baseSequence = lastSequence.applyAsLong(followedOrigin);
+        followedTerm = term;
+        followedOrigin = nodeId;
+        won++;
+        save();
+        Log.info("Node " + nodeId + " won term " + term + " with " + votes.size() + " of " + clusterSize + " votes");
+        confirmIfMajority(now);
+    }
+
+    private void confirmIfMajority(long now) {
+        if (countAcksWithin(now, electionTimeoutNanos) + 1 < majority()) {
+            return;
+        }
+        confirmed = true;
+        if (leaderHeardNanos > 0) {
+            failoverMillis.record(TimeUnit.NANOSECONDS.toMillis(now - leaderHeardNanos));
+        }
+        setLeader(nodeId);
+        Log.info("Node " + nodeId + " is the primary for term " + term
+                + (leaderHeardNanos > 0 ? ", " + TimeUnit.NANOSECONDS.toMillis(now - leaderHeardNanos) + " ms after the last heartbeat" : ""));
+    }
+
+    // Some other node is in a later term: follow it, with no primary until one is heard from
+    private void stepDown(long newTerm) {
+        term = newTerm;
+        votedFor = NO_LEADER;
+        candidate = false;
+        leading = false;
+        confirmed = false;
+        lastHeardNanos = System.nanoTime();
+        save();
+        setLeader(NO_LEADER);
+    }
+
+    private void setLeader(int id) {
+        if (id == leaderId) {
+            return;
+        }
+        if (leaderId != NO_LEADER) {
+            lastLeaderId = leaderId;
+        }
+        leaderId = id;
+        onLeaderChange.accept(id);
+    }
+
+    // Whether the timer has gone longer than an election timeout without running, e.g. through a GC pause
+    private boolean stalled(long now) {
+        boolean stalled = now - lastTickNanos > electionTimeoutNanos;
+        lastTickNanos = now;
+        return stalled;
+    }
+
+    private int countAcksWithin(long now, long windowNanos) {
+        int count = 0;
+        for (long acked : ackedNanos.values()) {
+            if (acked > wonNanos && now - acked < windowNanos) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int majority() {
+        return clusterSize / 2 + 1;
+    }
+
+    private long randomTimeout() {
+        return electionTimeoutNanos + ThreadLocalRandom.current().nextLong(electionTimeoutNanos);
+    }
+
+    // "term votedFor followedTerm followedOrigin", replaced whole and synced, so a crash leaves the old or the new
+    private void save() {
+        if (stateFile == null) {
+            return;
+        }
+        String state = term + " " + votedFor + " " + followedTerm + " " + followedOrigin + "\n";
+        Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(stateFile.toAbsolutePath().getParent());
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                out.write(state.getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Node " + nodeId + " could not save its election state", e);
+        }
+    }
+
+    private void load() {
+        if (stateFile == null || !Files.exists(stateFile)) {
+            return;
+        }
+        try {
+            String[] fields = new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8).trim().split(" ");
+            term = Long.parseLong(fields[0]);
+            votedFor = Integer.parseInt(fields[1]);
+            followedTerm = Long.parseLong(fields[2]);
+            followedOrigin = Integer.parseInt(fields[3]);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Node " + nodeId + " could not read its election state from " + stateFile, e);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives a cluster through the asynchronous client API with a fixed number of operations in flight,
+// then prints throughput and latency percentiles. Nothing is measured during the warm-up.
+public class LoadGenerator {
+    private Client client;
+    private double readRatio;
+    private int keys;
+    private ZipfianGenerator zipfian; // null for uniform keys
+    private int concurrency;
+    private long warmupSeconds;
+    private long durationSeconds;
+    private boolean preload;
+    private Histogram readMicros;
+    private Histogram writeMicros;
+    private LongAdder errors;
+    private LongAdder completed; // Every operation, for the per-second progress line
+
+    public LoadGenerator(Client client, Map<String, String> options) {
+        this.client = client;
+        this.readRatio = Double.parseDouble(options.getOrDefault("reads", "0.9"));
+        this.keys = Integer.parseInt(options.getOrDefault("keys", "100000"));
+        String distribution = options.getOrDefault("distribution", "uniform");
+        if (distribution.equals("zipfian")) {
+            this.zipfian = new ZipfianGenerator(keys, Double.parseDouble(options.getOrDefault("theta", "0.99")));
+        } else if (!distribution.equals("uniform")) {
+            throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+        }
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        this.warmupSeconds = Long.parseLong(options.getOrDefault("warmup", "5"));
+        this.durationSeconds = Long.parseLong(options.getOrDefault("duration", "30"));
+        this.preload = Boolean.parseBoolean(options.getOrDefault("preload", "true"));
+        this.readMicros = new Histogram();
+        this.writeMicros = new Histogram();
+        this.errors = new LongAdder();
+        this.completed = new LongAdder();
+    }
+
+    public void run() throws InterruptedException {
+        if (preload) {
+            preload();
+        }
+        System.out.println("Running " + (int) (readRatio * 100) + "% reads over " + keys + " " + (zipfian != null ? "zipfian" : "uniform")
+                + " keys with " + concurrency + " in flight: " + warmupSeconds + "s warm-up, " + durationSeconds + "s measured.");
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "load-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastCompleted = new long[1];
+        progress.scheduleAtFixedRate(() -> {
+            long total = completed.sum();
+            System.out.println(total - lastCompleted[0] + " ops/s, " + errors.sum() + " errors so far");
+            lastCompleted[0] = total;
+        }, 1, 1, TimeUnit.SECONDS);
+
+        Semaphore inFlight = new Semaphore(concurrency);
+        long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (System.nanoTime() < end) {
+            inFlight.acquire();
+            issue(measureFrom, inFlight);
+        }
+        inFlight.acquire(concurrency); // Let the last operations finish
+        long measuredNanos = System.nanoTime() - measureFrom;
+        progress.shutdownNow();
+        report(measuredNanos);
+    }
+
+    private void issue(long measureFrom, Semaphore inFlight) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String username = "user" + (zipfian != null ? zipfian.next(random.nextDouble()) : random.nextInt(keys));
+        boolean read = random.nextDouble() < readRatio;
+        long start = System.nanoTime();
+        CompletableFuture<? extends Message> op = read
+                ? client.readAsync(username)
+                : client.writeAsync(username, String.format("%09d", random.nextInt(1000000000)));
+        op.whenComplete((resp, error) -> {
+            long micros = (System.nanoTime() - start) / 1000;
+            completed.increment();
+            if (error != null) {
+                errors.increment();
+            } else if (start >= measureFrom) {
+                (read ? readMicros : writeMicros).record(micros);
+            }
+            inFlight.release();
+        });
+    }
+
+    // Every key exists before the run, so reads measure lookups rather than misses
+    private void preload() {
+        long start = System.nanoTime();
+        for (int from = 0; from < keys; from += 10000) {
+            List<UserRecord> records = new ArrayList<>();
+            for (int i = from; i < Math.min(keys, from + 10000); i++) {
+                records.add(new UserRecord("user" + i, String.format("%09d", i)));
+            }
+            if (!(client.multiPut(records) instanceof Acknowledgment)) {
+                System.err.println("Preload failed at user" + from + "; running anyway.");
+                return;
+            }
+        }
+        System.out.println("Preloaded " + keys + " users in " + (System.nanoTime() - start) / 1000000 + " ms.");
+    }
+
+    private void report(long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        long ops = readMicros.getCount() + writeMicros.getCount();
+        System.out.println(String.format("Throughput: %.0f ops/s (%d ops in %.1f s, %d errors)", ops / seconds, ops, seconds, errors.sum()));
+        printLatency("Read", readMicros);
+        printLatency("Write", writeMicros);
+    }
+
+    private static void printLatency(String kind, Histogram micros) {
+        if (micros.getCount() == 0) {
+            return;
+        }
+        System.out.println(String.format("%s latency (us): p50=%d p99=%d p999=%d max=%d (%d ops)", kind,
+                micros.getValueAtPercentile(50), micros.getValueAtPercentile(99), micros.getValueAtPercentile(99.9),
+                micros.getMax(), micros.getCount()));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java LoadGenerator <host:port>[,<host:port>...] [option=value ...]");
+            System.out.println("  reads=0.9                       fraction of operations that are reads");
+            System.out.println("  keys=100000                     number of distinct users");
+            System.out.println("  distribution=uniform|zipfian    how users are picked (theta=0.99 sets the zipfian skew)");
+            System.out.println("  concurrency=64                  operations in flight at once");
+            System.out.println("  warmup=5 duration=30            seconds to run before and while measuring");
+            System.out.println("  preload=true                    write every user once before starting");
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                System.err.println("Ignoring option without a value: " + args[i]);
+                continue;
+            }
+            options.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        Client client = new Client(List.of(args[0].split(",")));
+        new LoadGenerator(client, options).run();
+        client.close();
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs a whole cluster in one JVM, every node on its own loopback port, so different cluster sizes can be
+// tried on one machine. The nodes talk over TCP just as separate processes would, and share this JVM's
+// settings. With "load" it runs LoadGenerator against the cluster once a primary is up, then stops the
+// nodes and exits; otherwise it runs until killed, and stops the nodes on the way out. Each run starts empty, in a fresh directory, unless userstore.wal.dir
+// is set (use {id} in it to keep the nodes' logs apart).
+public class LocalCluster {
+    private Topology topology;
+    private List<Node> nodes;
+
+    public LocalCluster(Topology topology) {
+        this.topology = topology;
+        this.nodes = new ArrayList<>();
+    }
+
+    public Topology getTopology() {
+        return topology;
+    }
+
+    public void start() {
+        for (NodeInfo info : topology.getNodes()) {
+            Node node = new Node(info.getId(), info.isPrimary(), info.getHost(), info.getPort(), topology.others(info.getId()));
+            node.start();
+            nodes.add(node);
+        }
+    }
+
+    // Stops every node, closing their write-ahead logs
+    public void stop() {
+        for (Node node : nodes) {
+            node.stop();
+        }
+    }
+
+    // True once every node names the same primary, or straight away if there are no elections
+    public boolean awaitPrimary(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            Long leader = null;
+            boolean agreed = true;
+            for (Node node : nodes) {
+                Long named = node.stats().get("election.leader");
+                if (named == null) {
+                    return true;
+                }
+                agreed &= named != LeaderElection.NO_LEADER && (leader == null || named.equals(leader));
+                leader = named;
+            }
+            if (agreed) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    public Map<String, Long> stats(int index) {
+        return nodes.get(index).stats();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java LocalCluster <nodes> [basePort] [load [option=value ...]]");
+            System.out.println("  nodes                           how many nodes to start, ids 1 up, node 1 primary");
+            System.out.println("  basePort                        port of node 1, 7001 by default; the others follow on the next ports");
+            System.out.println("  load                            run LoadGenerator with the options that follow, then exit");
+            System.out.println("  stats=false                     with load, print every node's stats at the end");
+            return;
+        }
+        int size = Integer.parseInt(args[0]);
+        int next = 1;
+        int basePort = 7001;
+        if (args.length > next && !args[next].equals("load")) {
+            basePort = Integer.parseInt(args[next++]);
+        }
+        boolean load = args.length > next && args[next++].equals("load");
+        Map<String, String> options = new HashMap<>();
+        for (int i = next; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                System.err.println("Ignoring option without a value: " + args[i]);
+                continue;
+            }
+            options.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        if (Config.getString("userstore.wal.dir", null) == null && Config.getBoolean("userstore.wal.enabled", true)) {
+            try {
+                System.setProperty("userstore.wal.dir", Files.createTempDirectory("userstore-local-").resolve("node-{id}").toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create a directory for the nodes' logs", e);
+            }
+        }
+
+        LocalCluster cluster = new LocalCluster(Topology.loopback(size, basePort));
+        cluster.start();
+        String endpoints = cluster.getTopology().endpoints();
+        if (!cluster.awaitPrimary(10000)) {
+            System.err.println("No primary after 10 s; the cluster may not take writes.");
+        }
+        System.out.println(size + " nodes up at " + endpoints + " on " + Runtime.getRuntime().availableProcessors() + " processors.");
+        if (!load) {
+            Runtime.getRuntime().addShutdownHook(new Thread(cluster::stop, "local-cluster-stop"));
+            return;
+        }
+        Client client = new Client(List.of(endpoints.split(",")));
+        new LoadGenerator(client, options).run();
+        client.close();
+        if (Boolean.parseBoolean(options.getOrDefault("stats", "false"))) {
+            for (int i = 0; i < size; i++) {
+                System.out.println("Node " + (i + 1) + ":");
+                for (Map.Entry<String, Long> stat : cluster.stats(i).entrySet()) {
+                    System.out.println("  " + stat.getKey() + " " + stat.getValue());
+                }
+            }
+        }
+        cluster.stop();
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Levelled logging for the servers. The level is read once at startup from userstore.log.level (error,
+// warn, info or debug; info by default) and lines are written by a background thread, so the thread
+// that logs never waits on the console. A line that finds the queue full is dropped and counted rather
+// than blocking. Guard debug lines that build strings with isDebugEnabled(): the check is a static
+// final, so with debug off the JIT removes the whole statement.
+public final class Log {
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+
+    private static final int LEVEL = parseLevel(Config.getString("userstore.log.level", "info"));
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(Math.max(1, Config.getInt("userstore.log.queue.size", 65536)));
+    private static final LongAdder DROPPED = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::drain, "userstore-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still queued when the JVM exits is written out first
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "userstore-log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isDebugEnabled() {
+        return LEVEL >= DEBUG;
+    }
+
+    public static boolean isInfoEnabled() {
+        return LEVEL >= INFO;
+    }
+
+    public static void debug(String message) {
+        if (LEVEL >= DEBUG) {
+            enqueue(DEBUG, message, null);
+        }
+    }
+
+    public static void info(String message) {
+        if (LEVEL >= INFO) {
+            enqueue(INFO, message, null);
+        }
+    }
+
+    public static void warn(String message) {
+        if (LEVEL >= WARN) {
+            enqueue(WARN, message, null);
+        }
+    }
+
+    public static void error(String message) {
+        enqueue(ERROR, message, null);
+    }
+
+    // The stack trace is printed by the writer thread as well
+    public static void error(String message, Throwable error) {
+        enqueue(ERROR, message, error);
+    }
+
+    // Lines lost to a full queue since startup
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    private static void enqueue(int level, String message, Throwable error) {
+        if (!QUEUE.offer(new Entry(level, message, error))) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                write(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void flush() {
+        Entry entry;
+        while ((entry = QUEUE.poll()) != null) {
+            write(entry);
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static void write(Entry entry) {
+        // Warnings and errors go to stderr, as they always have
+        PrintStream out = entry.level <= WARN ? System.err : System.out;
+        out.println(entry.message);
+        if (entry.error != null) {
+            entry.error.printStackTrace(out);
+        }
+    }
+
+    private static int parseLevel(String level) {
+        switch (level.toLowerCase()) {
+            case "error":
+                return ERROR;
+            case "warn":
+                return WARN;
+            case "info":
+                return INFO;
+            case "debug":
+                return DEBUG;
+            default:
+                throw new IllegalArgumentException("Unknown log level: " + level);
+        }
+    }
+
+    private static class Entry {
+        private final int level;
+        private final String message;
+        private final Throwable error;
+
+        private Entry(int level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
@@ -3,16 +3,12 @@ import java.util.List;
 
 public class Main {
     public static void main(String[] args) {
-        // Try to read node ID from environment variable, fallback to default if not present
+        // Node ID from the first argument, else the NODE_ID environment variable, else 1
         String nodeIdEnv = System.getenv("NODE_ID");
-        int resolvedNodeId = nodeIdEnv != null ? Integer.parseInt(nodeIdEnv) : 1;  // Default to 1 if NODE_ID is not set
+        int resolvedNodeId = args.length > 0 ? Integer.parseInt(args[0]) : nodeIdEnv != null ? Integer.parseInt(nodeIdEnv) : 1;
 
-        // Define node configurations
-        List<NodeInfo> nodes = new ArrayList<>();
-        nodes.add(new NodeInfo(1, "node1", 5001, true)); // Primary
-        nodes.add(new NodeInfo(2, "node2", 5002, false));
-        nodes.add(new NodeInfo(3, "node3", 5003, false));
-        nodes.add(new NodeInfo(4, "node4", 5004, false));
+        // Node configurations from userstore.topology (see Topology), by default node1..node4 on ports 5001-5004
+        List<NodeInfo> nodes = Topology.fromConfig().getNodes();
 
         System.out.println("Node configuration complete. Starting node with ID: " + resolvedNodeId);
 
@@ -31,6 +27,8 @@ public class Main {
         if (myNodeInfo != null) {
             Node node = new Node(myNodeInfo.getId(), myNodeInfo.isPrimary(), myNodeInfo.getHost(), myNodeInfo.getPort(), otherNodes);
             node.start();
+            // Kill or Ctrl-C: commit what is queued and close the write-ahead log before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(node::stop, "node-" + myNodeInfo.getId() + "-stop"));
             System.out.println("Node " + myNodeInfo.getId() + " started successfully.");
         } else {
             System.err.println("Node ID not found in the configuration.");
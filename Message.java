@@ -2,6 +2,14 @@ import java.io.Serializable;
 
 public abstract class Message implements Serializable {
     private static final long serialVersionUID = 1L;
+
+    // The one-byte tag identifying this message type on the wire (see MessageCodec)
+    public abstract byte getTypeTag();
+
+    // A streamed reply arrives as several messages under one request ID; all but the final one return false
+    public boolean isLastChunk() {
+        return true;
+    }
 }
 
 
@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Turns messages into frame payloads and back. The wire format is chosen with userstore.wire.format:
+// "binary" (default) for the compact tagged encoding, or "java" for plain Java serialization.
+public abstract class MessageCodec {
+    // One-byte type tags, written first in every binary payload
+    public static final byte READ_REQUEST = 1;
+    public static final byte READ_RESPONSE = 2;
+    public static final byte WRITE_REQUEST = 3;
+    public static final byte ACKNOWLEDGMENT = 4;
+    public static final byte ERROR_MESSAGE = 5;
+    public static final byte REPLICATION_MESSAGE = 6;
+    // 7 to 10 were the write token's messages
+    public static final byte BATCH_REPLICATION_MESSAGE = 11;
+    public static final byte CATCH_UP_REQUEST = 12;
+    public static final byte CATCH_UP_RESPONSE = 13;
+    public static final byte SNAPSHOT_REQUEST = 14;
+    public static final byte SNAPSHOT_OFFER = 15;
+    public static final byte REDIRECT = 16;
+    public static final byte INVALIDATION_SUBSCRIBE = 17;
+    public static final byte INVALIDATION = 18;
+    public static final byte MULTI_GET_REQUEST = 19;
+    public static final byte MULTI_GET_RESPONSE = 20;
+    public static final byte MULTI_PUT_REQUEST = 21;
+    public static final byte JOIN_REQUEST = 22;
+    public static final byte PARTITION_MAP_REQUEST = 23;
+    public static final byte PARTITION_MAP_UPDATE = 24;
+    public static final byte PARTITION_HANDOFF = 25;
+    public static final byte STATS_REQUEST = 26;
+    public static final byte STATS_RESPONSE = 27;
+    public static final byte RETRY_AFTER = 28;
+    public static final byte TREE_HASH_REQUEST = 29;
+    public static final byte TREE_HASH_RESPONSE = 30;
+    public static final byte TREE_LEAVES_REQUEST = 31;
+    public static final byte TREE_LEAVES_RESPONSE = 32;
+    public static final byte SCAN_REQUEST = 33;
+    public static final byte SCAN_RESPONSE = 34;
+    public static final byte BULK_LOAD_REQUEST = 35;
+    public static final byte BULK_REPLICATION_MESSAGE = 36;
+    public static final byte EXPORT_REQUEST = 37;
+    public static final byte EXPORT_CHUNK = 38;
+    public static final byte COMPRESSED_BATCH_MESSAGE = 39;
+    public static final byte HEARTBEAT = 40;
+    public static final byte HEARTBEAT_RESPONSE = 41;
+    public static final byte VOTE_REQUEST = 42;
+    public static final byte VOTE_RESPONSE = 43;
+
+    private static final MessageCodec CONFIGURED = forFormat(Config.getString("userstore.wire.format", "binary"));
+
+    public static MessageCodec forFormat(String format) {
+        switch (format) {
+            case "binary":
+                return new BinaryMessageCodec();
+            case "java":
+                return new SerializedMessageCodec();
+            default:
+                throw new IllegalArgumentException("Unknown wire format: " + format);
+        }
+    }
+
+    public static MessageCodec configured() {
+        return CONFIGURED;
+    }
+
+    // Append the payload for msg at buf's position; throws BufferOverflowException if it does not fit
+    public abstract void encode(Message msg, ByteBuffer buf) throws IOException;
+
+    // Read one payload spanning buf's remaining bytes
+    public abstract Message decode(ByteBuffer buf) throws IOException;
+}
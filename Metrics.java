@@ -0,0 +1,70 @@
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms per message type, kept by each node. Recording takes no locks and, once
+// a type has been seen, allocates nothing: counts are LongAdders indexed by type tag, and latencies go
+// into a Histogram made the first time the type arrives. Everything is cumulative since startup.
+public class Metrics {
+    private static final int TYPES = 128; // Type tags are non-negative bytes
+
+    private LongAdder[] received;
+    private LongAdder[] failed;
+    private AtomicReferenceArray<Histogram> latencyMicros; // Arrival to reply, or to handled for one-way messages
+    private AtomicReferenceArray<String> names;
+
+    public Metrics() {
+        this.received = new LongAdder[TYPES];
+        this.failed = new LongAdder[TYPES];
+        for (int i = 0; i < TYPES; i++) {
+            received[i] = new LongAdder();
+            failed[i] = new LongAdder();
+        }
+        this.latencyMicros = new AtomicReferenceArray<>(TYPES);
+        this.names = new AtomicReferenceArray<>(TYPES);
+    }
+
+    public void received(Message msg) {
+        byte tag = msg.getTypeTag();
+        received[tag].increment();
+        if (latencyMicros.get(tag) == null) {
+            names.compareAndSet(tag, null, msg.getClass().getSimpleName());
+            latencyMicros.compareAndSet(tag, null, new Histogram());
+        }
+    }
+
+    public void failed(Message msg) {
+        failed[msg.getTypeTag()].increment();
+    }
+
+    // Only types already passed to received() are recorded
+    public void recordLatency(byte tag, long nanos) {
+        Histogram histogram = latencyMicros.get(tag);
+        if (histogram != null) {
+            histogram.record(nanos / 1000);
+        }
+    }
+
+    // Adds "messages.<type>.count", ".failed" and ".latency.us.*" for every type seen so far
+    public void addStats(Map<String, Long> stats) {
+        for (int tag = 0; tag < TYPES; tag++) {
+            Histogram histogram = latencyMicros.get(tag);
+            if (histogram == null) {
+                continue;
+            }
+            String prefix = "messages." + names.get(tag);
+            stats.put(prefix + ".count", received[tag].sum());
+            stats.put(prefix + ".failed", failed[tag].sum());
+            addHistogram(stats, prefix + ".latency.us", histogram);
+        }
+    }
+
+    public static void addHistogram(Map<String, Long> stats, String prefix, Histogram histogram) {
+        stats.put(prefix + ".count", histogram.getCount());
+        stats.put(prefix + ".mean", Math.round(histogram.getMean()));
+        stats.put(prefix + ".p50", histogram.getValueAtPercentile(50));
+        stats.put(prefix + ".p99", histogram.getValueAtPercentile(99));
+        stats.put(prefix + ".p999", histogram.getValueAtPercentile(99.9));
+        stats.put(prefix + ".max", histogram.getMax());
+    }
+}
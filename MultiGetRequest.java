@@ -0,0 +1,32 @@
+import java.util.List;
+
+// Read many users in one round trip. The answer streams back as MultiGetResponse chunks.
+public class MultiGetRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private List<String> usernames;
+    private long minSequence; // As in ReadRequest
+    private int origin;
+
+    public MultiGetRequest(List<String> usernames, long minSequence, int origin) {
+        this.usernames = usernames;
+        this.minSequence = minSequence;
+        this.origin = origin;
+    }
+
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    public long getMinSequence() {
+        return minSequence;
+    }
+
+    public int getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.MULTI_GET_REQUEST;
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.List;
+
+// One chunk of the answer to a MultiGetRequest, in request order. An SSN of null means the user was not found.
+public class MultiGetResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private List<String> usernames;
+    private List<String> ssns;
+    private long sequence; // Node's applied sequence when the lookups started, as in ReadResponse
+    private int origin;
+    private boolean last;
+
+    public MultiGetResponse(List<String> usernames, List<String> ssns, long sequence, int origin, boolean last) {
+        this.usernames = usernames;
+        this.ssns = ssns;
+        this.sequence = sequence;
+        this.origin = origin;
+        this.last = last;
+    }
+
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    public List<String> getSsns() {
+        return ssns;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public boolean isLastChunk() {
+        return last;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.MULTI_GET_RESPONSE;
+    }
+}
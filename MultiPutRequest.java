@@ -0,0 +1,31 @@
+import java.util.List;
+
+// Write many users as one unit: a single log append and replication round on the primary.
+// Acknowledged once, with the sequence of the last record.
+public class MultiPutRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private List<UserRecord> records;
+    private boolean ifAbsent; // Only users the primary does not have yet are written, decided as the batch commits
+
+    public MultiPutRequest(List<UserRecord> records) {
+        this(records, false);
+    }
+
+    public MultiPutRequest(List<UserRecord> records, boolean ifAbsent) {
+        this.records = records;
+        this.ifAbsent = ifAbsent;
+    }
+
+    public List<UserRecord> getRecords() {
+        return records;
+    }
+
+    public boolean isIfAbsent() {
+        return ifAbsent;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.MULTI_PUT_REQUEST;
+    }
+}
@@ -0,0 +1,106 @@
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded client-side LRU cache of username -> SSN, kept fresh by invalidations pushed from a node.
+// A value is only cached if the node that served it had applied every invalidation seen so far, so a
+// lagging node cannot put back a value that was just invalidated.
+public class NearCache {
+    private int capacity;
+    private LinkedHashMap<String, String> entries;
+    private Map<Integer, Long> invalidatedThrough; // Highest invalidated sequence per origin, guarded by this
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder evictions;
+    private LongAdder invalidations;
+    private Histogram invalidationLagMicros;
+
+    public NearCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true); // Access order, eldest is least recently used
+        this.invalidatedThrough = new HashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.invalidations = new LongAdder();
+        this.invalidationLagMicros = new Histogram();
+    }
+
+    public synchronized String get(String username) {
+        String ssn = entries.get(username);
+        if (ssn != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return ssn;
+    }
+
+    // servedAtSequence is the serving node's applied sequence of the key's origin, from ReadResponse
+    public synchronized void put(String username, String ssn, int origin, long servedAtSequence) {
+        if (servedAtSequence < invalidatedThrough.getOrDefault(origin, 0L)) {
+            return;
+        }
+        entries.put(username, ssn);
+        if (entries.size() > capacity) {
+            Map.Entry<String, String> eldest = entries.entrySet().iterator().next();
+            entries.remove(eldest.getKey());
+            evictions.increment();
+        }
+    }
+
+    public synchronized void invalidate(String username) {
+        entries.remove(username);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public void apply(Invalidation invalidation) {
+        synchronized (this) {
+            invalidatedThrough.merge(invalidation.getOrigin(), invalidation.getSequence(), Math::max);
+            if (invalidation.isClearAll()) {
+                entries.clear();
+            } else {
+                for (String username : invalidation.getUsernames()) {
+                    entries.remove(username);
+                }
+            }
+        }
+        invalidations.increment();
+        invalidationLagMicros.record(currentTimeMicros() - invalidation.getTimestampMicros());
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // Measured against the node's clock, so it includes any clock skew between the two machines
+    public Histogram getInvalidationLagMicros() {
+        return invalidationLagMicros;
+    }
+
+    public String stats() {
+        int size;
+        synchronized (this) {
+            size = entries.size();
+        }
+        return String.format("size=%d/%d hits=%d misses=%d hitRate=%.3f evictions=%d invalidations=%d lagMicros[%s]",
+                size, capacity, hits.sum(), misses.sum(), getHitRate(), evictions.sum(), invalidations.sum(),
+                invalidationLagMicros.summary());
+    }
+
+    public static long currentTimeMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+    }
+}
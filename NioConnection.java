@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+// Connection over a non-blocking channel owned by a SelectorServer event loop. Reads happen only on the
+// loop thread; writes may come from any thread and are queued when the socket buffer is full.
+public class NioConnection extends Connection {
+    private SocketChannel channel;
+    private SelectionKey key;
+    private MessageCodec codec;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private ArrayDeque<ByteBuffer> pendingWrites;
+    private long queuedBytes; // Total left in pendingWrites, guarded by this
+
+    public NioConnection(SocketChannel channel, SelectionKey key, MessageCodec codec) {
+        this.channel = channel;
+        this.key = key;
+        this.codec = codec;
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        this.writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        this.pendingWrites = new ArrayDeque<>();
+    }
+
+    @Override
+    public synchronized void write(long requestId, Message msg) throws IOException {
+        if (!channel.isOpen()) {
+            throw new IOException("Connection closed");
+        }
+        writeBuffer = encodeFrame(codec, requestId, msg, writeBuffer);
+        if (pendingWrites.isEmpty()) {
+            channel.write(writeBuffer);
+            if (!writeBuffer.hasRemaining()) {
+                return;
+            }
+        }
+        // The socket is backed up: keep the rest and let the event loop finish it
+        ByteBuffer rest = ByteBuffer.allocate(writeBuffer.remaining());
+        rest.put(writeBuffer).flip();
+        pendingWrites.add(rest);
+        queuedBytes += rest.capacity();
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        key.selector().wakeup();
+    }
+
+    // Called by the event loop when the channel becomes writable
+    synchronized void flushPending() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer buf = pendingWrites.peek();
+            channel.write(buf);
+            if (buf.hasRemaining()) {
+                return;
+            }
+            pendingWrites.poll();
+            queuedBytes -= buf.capacity();
+            notifyAll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    // Never call this on the event loop thread: only the loop can drain the queue
+    @Override
+    public synchronized void awaitQueuedBelow(long maxBytes) throws IOException {
+        while (queuedBytes > maxBytes) {
+            if (!channel.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+            try {
+                wait(100); // Also wakes periodically to notice a close
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the connection to drain");
+            }
+        }
+    }
+
+    // Called by the event loop when the channel is readable; hands every complete frame to sink.
+    // Returns false once the peer has closed the connection.
+    boolean readFrames(Consumer<Frame> sink) throws IOException {
+        int read = channel.read(readBuffer);
+        readBuffer.flip();
+        while (readBuffer.remaining() >= Integer.BYTES) {
+            int start = readBuffer.position();
+            int length = readBuffer.getInt(start);
+            checkFrameLength(length);
+            int frameEnd = start + Integer.BYTES + length;
+            if (readBuffer.limit() < frameEnd) {
+                break;
+            }
+            int limit = readBuffer.limit();
+            readBuffer.position(start + Integer.BYTES).limit(frameEnd);
+            long requestId = readBuffer.getLong();
+            Message msg = codec.decode(readBuffer);
+            readBuffer.limit(limit).position(frameEnd);
+            sink.accept(new Frame(requestId, msg, this));
+        }
+        readBuffer.compact();
+        // Make room for a frame larger than the buffer
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_FRAME_BYTES + Integer.BYTES));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        return read >= 0;
+    }
+
+    @Override
+    public void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
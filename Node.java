@@ -1,22 +1,70 @@
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Node {
+    private static final Acknowledgment REPLICATION_ACK = new Acknowledgment("Replicated.");
+    private static final long MULTI_GET_QUEUED_BYTES = 1024 * 1024; // Unsent multi-get output allowed per connection
+
     private int nodeId;
-    private boolean isPrimary;
+    private volatile boolean isPrimary; // Changes with elections
     private String host;
     private int port;
-    private Map<String, String> userStore;
+    private UserStore userStore;
     private List<NodeInfo> otherNodes;
-    private ConcurrentLinkedQueue<Integer> requestQueue;
-    private volatile int tokenHolderId;
-    private volatile boolean isTokenRequested;
-    private volatile boolean hasToken;
-    private ExecutorService connectionPool;
+    private String serverMode;
+    private ExecutorService requestPool;
+    private Executor internalExecutor;
+    private Executor electionExecutor; // Heartbeats and votes, which can fsync the election state
+    private ConnectionManager peers;
+    private WriteBatcher writeBatcher;
+    private Replicator replicator;
+    private ReplicationCompressor compressor; // Shared by the replicator's sends and the handling of compressed batches
+    private WriteAheadLog writeAheadLog; // null when userstore.wal.enabled=false
+    private Map<Integer, OriginStream> streams; // Replication position per node that sequences writes
+    private long readWaitMillis;
+    private int multiGetChunkSize;
+    private ExecutorService catchUpPool;
+    private AtomicBoolean catchUpRunning;
+    private AtomicBoolean catchUpWanted;
+    private ScheduledExecutorService scheduler;
+    private Set<Connection> invalidationSubscribers; // Client connections that keep a near cache
+    private boolean partitioned; // userstore.partitions > 0: every owner sequences its own partitions' writes
+    private volatile PartitionMap partitionMap; // null unless partitioned, and until a joining node is admitted
+    private PartitionMap fencedMap; // Map the batcher thread last committed under
+    private Map<Long, CompletableFuture<Void>> handoffs; // Partitions taken over, keyed by handoffKey()
+    private long handoffTimeoutMillis;
+    private volatile boolean joining;
+    private Metrics metrics;
+    private ConcurrencyLimit readLimit; // null when userstore.admission.enabled=false
+    private ConcurrencyLimit writeLimit;
+    private AntiEntropy antiEntropy; // null when userstore.antientropy.enabled=false
+    private AtomicBoolean antiEntropyRunning;
+    private int antiEntropyRound;
+    private int scanMaxPage;
+    private int exportMaxChunk;
+    private LongAdder bulkRowsLoaded; // Rows of bulk-load chunks this node committed as primary or owner
+    private LongAdder bulkBytesLoaded; // Their compressed size
+    private LongAdder rowsExported;
+    private LeaderElection election; // null with partitioning or userstore.election.enabled=false
+    private ScheduledExecutorService electionTimer; // Apart from scheduler, so a slow stats report cannot delay a heartbeat
+    private long heartbeatMillis;
+    private long electionTimeoutMillis;
+    private Set<Integer> heartbeatsInFlight; // Nodes a heartbeat is out to, so an unreachable one is not sent more
+    private volatile boolean stopped;
+    private Thread listener;
+    private volatile SelectorServer selectorServer; // Selector mode only
+    private volatile ServerSocket serverSocket; // Threaded and virtual modes only
+    private Set<Socket> openSockets; // Connections accepted by acceptLoop() and not yet closed
+    private HttpServer statsServer; // null unless userstore.stats.http.port is set
 
     // Constructor
     public Node(int nodeId, boolean isPrimary, String host, int port, List<NodeInfo> otherNodes) {
@@ -24,157 +72,1750 @@ public class Node {
         this.isPrimary = isPrimary;
         this.host = host;
         this.port = port;
-        this.otherNodes = otherNodes;
-        this.userStore = Collections.synchronizedMap(new HashMap<>());
-        this.requestQueue = new ConcurrentLinkedQueue<>();
-        this.isTokenRequested = false;
-        this.hasToken = isPrimary; // Primary starts with the token
-        this.tokenHolderId = isPrimary ? nodeId : -1;
-        this.connectionPool = Executors.newFixedThreadPool(10); // Limit to 10 concurrent connections
-        System.out.println("Node " + nodeId + " initialized. isPrimary: " + isPrimary + ", hasToken: " + hasToken);
+        this.otherNodes = new CopyOnWriteArrayList<>(otherNodes); // Grows as nodes join
+        this.userStore = UserStore.fromConfig();
+        if (Config.getBoolean("userstore.antientropy.enabled", true)) {
+            // Set before recovery, so the tree covers everything the store will hold
+            HashTree tree = new HashTree(Config.getInt("userstore.antientropy.depth", 12));
+            userStore.setHashTree(tree);
+            this.antiEntropy = new AntiEntropy(tree, Config.getInt("userstore.antientropy.max.leaves", 64));
+        }
+        this.antiEntropyRunning = new AtomicBoolean();
+        if (Config.getBoolean("userstore.index.enabled", true)) {
+            userStore.setIndex(new UsernameIndex()); // Like the tree, filled in by recovery
+        }
+        this.scanMaxPage = Math.max(1, Config.getInt("userstore.scan.max.page", 1000));
+        this.exportMaxChunk = Math.max(1, Config.getInt("userstore.export.max.chunk", 50000));
+        this.bulkRowsLoaded = new LongAdder();
+        this.bulkBytesLoaded = new LongAdder();
+        this.rowsExported = new LongAdder();
+        this.serverMode = Config.getString("userstore.server.mode", "selector");
+        this.peers = new ConnectionManager();
+        this.writeBatcher = new WriteBatcher(Config.getInt("userstore.batch.max.size", 256),
+                Config.getLong("userstore.batch.linger.micros", 0), this::commitBatch);
+        this.compressor = new ReplicationCompressor(Config.getInt("userstore.replication.compression.level", 1));
+        this.replicator = new Replicator(nodeId, peers, ReplicationQuorum.fromConfig(),
+                Config.getLong("userstore.replication.timeout.millis", 5000), ReplicationCompression.fromConfig(), compressor,
+                Config.getInt("userstore.replication.compression.min.bytes", 1024),
+                Config.getInt("userstore.replication.compression.probe.every", 16), this::replicaAcked);
+        this.writeAheadLog = Config.getBoolean("userstore.wal.enabled", true) ? WriteAheadLog.fromConfig(nodeId) : null;
+        this.streams = new ConcurrentHashMap<>();
+        this.readWaitMillis = Config.getLong("userstore.read.wait.millis", 50);
+        this.multiGetChunkSize = Math.max(1, Config.getInt("userstore.multi.get.chunk.size", 1000));
+        this.catchUpPool = Executors.newCachedThreadPool();
+        this.catchUpRunning = new AtomicBoolean();
+        this.catchUpWanted = new AtomicBoolean();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.invalidationSubscribers = ConcurrentHashMap.newKeySet();
+        this.openSockets = ConcurrentHashMap.newKeySet();
+        int partitions = Config.getInt("userstore.partitions", 0);
+        this.partitioned = partitions > 0;
+        // A node added to a running cluster starts without a map and asks the controller (the primary) to join
+        this.joining = partitioned && Config.getBoolean("userstore.partition.join", false);
+        if (partitioned && !joining) {
+            List<NodeInfo> all = new ArrayList<>(otherNodes);
+            all.add(new NodeInfo(nodeId, host, port, isPrimary));
+            this.partitionMap = PartitionMap.initial(partitions, all);
+        }
+        this.fencedMap = partitionMap;
+        this.handoffs = new ConcurrentHashMap<>();
+        this.handoffTimeoutMillis = Config.getLong("userstore.partition.handoff.timeout.millis", 5000);
+        if (!partitioned && Config.getBoolean("userstore.election.enabled", true)) {
+            // Kept with the write-ahead log: without one, a restarted node remembers nothing else either
+            this.heartbeatMillis = Math.max(1, Config.getLong("userstore.election.heartbeat.millis", 50));
+            this.electionTimeoutMillis = Math.max(heartbeatMillis * 2, Config.getLong("userstore.election.timeout.millis", 200));
+            this.election = new LeaderElection(nodeId, otherNodes.size() + 1, electionTimeoutMillis,
+                    writeAheadLog != null ? writeAheadLog.getDir().resolve("election.state") : null,
+                    origin -> stream(origin).getLastSequence().get(), this::leaderChanged);
+            this.electionTimer = Executors.newSingleThreadScheduledExecutor();
+            this.heartbeatsInFlight = ConcurrentHashMap.newKeySet();
+            this.isPrimary = false; // Until the election confirms it
+        }
+        this.metrics = new Metrics();
+        if (Config.getBoolean("userstore.admission.enabled", true)) {
+            int minLimit = Config.getInt("userstore.admission.min.limit", 16);
+            int maxLimit = Config.getInt("userstore.admission.max.limit", 4096);
+            double tolerance = Config.getDouble("userstore.admission.tolerance", 2.0);
+            this.readLimit = new ConcurrencyLimit("reads", Config.getInt("userstore.admission.read.limit", 512), minLimit, maxLimit, tolerance);
+            this.writeLimit = new ConcurrencyLimit("writes", Config.getInt("userstore.admission.write.limit", 256), minLimit, maxLimit, tolerance);
+        }
+        Log.info("Node " + nodeId + " initialized. isPrimary: " + isPrimary);
     }
 
     // Start the node server
     public void start() {
-        System.out.println("Node " + nodeId + " starting...");
-        new Thread(() -> listen()).start();
+        Log.info("Node " + nodeId + " starting...");
+        recoverFromLog();
+        writeBatcher.start("node-" + nodeId + "-write-batcher");
+        if (election != null) {
+            election.begin(configuredPrimaryId());
+            electionTimer.scheduleWithFixedDelay(this::electionTick, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        long statsInterval = Config.getLong("userstore.stats.interval.seconds", 30);
+        scheduler.scheduleAtFixedRate(this::reportStats, statsInterval, statsInterval, TimeUnit.SECONDS);
+        if (readLimit != null) {
+            long window = Config.getLong("userstore.admission.window.millis", 100);
+            scheduler.scheduleAtFixedRate(() -> {
+                readLimit.adjust();
+                writeLimit.adjust();
+            }, window, window, TimeUnit.MILLISECONDS);
+        }
+        listener = new Thread(() -> listen(), "node-" + nodeId + "-listener");
+        listener.start();
+        int statsPort = Config.getInt("userstore.stats.http.port", 0);
+        if (statsPort > 0) {
+            startStatsEndpoint(statsPort);
+        }
+        if (!isPrimary || partitioned || election != null) {
+            // Fetch anything written while this node was down, then keep checking in case a batch goes missing
+            long catchUpInterval = Config.getLong("userstore.catchup.interval.millis", 5000);
+            scheduler.scheduleWithFixedDelay(this::scheduleCatchUp, 0, catchUpInterval, TimeUnit.MILLISECONDS);
+        }
+        if (antiEntropy != null && (!isPrimary || partitioned || election != null)) {
+            long antiEntropyInterval = Config.getLong("userstore.antientropy.interval.millis", 10000);
+            scheduler.scheduleWithFixedDelay(this::scheduleAntiEntropy, antiEntropyInterval, antiEntropyInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Shuts the node down: stops taking requests, commits the writes already queued for the batcher, then
+    // forces and closes the write-ahead log, so a restart from the same directory recovers every acked write.
+    // Replies still owed to clients may be lost. The node cannot be started again.
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        Log.info("Node " + nodeId + " stopping...");
+        if (electionTimer != null) {
+            electionTimer.shutdownNow();
+        }
+        scheduler.shutdownNow();
+        if (statsServer != null) {
+            statsServer.stop(0);
+        }
+        stopListening();
+        awaitShutdown(requestPool); // Its writes reach the batcher before the batcher drains
+        try {
+            writeBatcher.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.warn("Node " + nodeId + " interrupted while draining the write batcher");
+        }
+        awaitShutdown(internalExecutor);
+        awaitShutdown(electionExecutor);
+        catchUpPool.shutdownNow();
+        awaitShutdown(catchUpPool);
+        replicator.close();
+        peers.closeAll();
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        Log.info("Node " + nodeId + " stopped.");
+    }
+
+    // Closes the listening socket and every connection, then waits for the listener thread to finish
+    private void stopListening() {
+        SelectorServer server = selectorServer;
+        if (server != null) {
+            server.stop();
+        }
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        for (Socket open : openSockets) {
+            try {
+                open.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        if (listener != null) {
+            try {
+                listener.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Refuses new tasks and waits a few seconds for queued ones; executors that run tasks inline have none
+    private void awaitShutdown(Executor executor) {
+        if (!(executor instanceof ExecutorService)) {
+            return;
+        }
+        ExecutorService service = (ExecutorService) executor;
+        service.shutdown();
+        try {
+            if (!service.awaitTermination(5, TimeUnit.SECONDS)) {
+                Log.warn("Node " + nodeId + " stopping without waiting further for " + queueDepth(service) + " queued tasks");
+                service.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Rebuild userStore from the write-ahead log before serving anything
+    private void recoverFromLog() {
+        if (writeAheadLog == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            writeAheadLog.open(entry -> {
+                userStore.put(entry.getUsername(), entry.getSsn());
+                stream(entry.getOrigin()).getLastSequence().accumulateAndGet(entry.getSeq(), Math::max);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Node " + nodeId + " could not recover its write-ahead log", e);
+        }
+        for (OriginStream stream : streams.values()) {
+            stream.getApplied().advance(stream.getLastSequence().get());
+        }
+        Log.info("Node " + nodeId + " recovered " + userStore.size() + " users up to sequences " + sequences()
+                + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+    }
+
+    private void reportStats() {
+        Histogram batchSizes = writeBatcher.getBatchSizes();
+        if (batchSizes.getCount() > 0) {
+            Log.info("Node " + nodeId + " write batch sizes: " + batchSizes.summary());
+        }
+        replicator.reportStats();
+        PartitionMap map = partitionMap;
+        if (map != null) {
+            Log.info("Node " + nodeId + " owns " + map.countOwnedBy(nodeId) + " of " + map.getPartitions()
+                    + " partitions (map version " + map.getVersion() + "), sequences " + sequences());
+        }
+        Log.info("Node " + nodeId + " store: " + userStore.size() + " users, ~"
+                + String.format("%.1f", userStore.bytesPerEntry()) + " bytes per entry (" + userStore.getClass().getSimpleName() + ")");
+        Log.info("Node " + nodeId + " queues: request " + queueDepth(requestPool) + ", internal " + queueDepth(internalExecutor)
+                + ", write batcher " + writeBatcher.getQueueDepth());
+        if (readLimit != null) {
+            Log.info("Node " + nodeId + " admission: " + readLimit.summary() + "; " + writeLimit.summary());
+        }
+    }
+
+    // Everything a StatsRequest or the HTTP endpoint reports, by name; LocalCluster reads it directly
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new TreeMap<>();
+        metrics.addStats(stats);
+        replicator.addStats(stats);
+        Metrics.addHistogram(stats, "writes.batch.size", writeBatcher.getBatchSizes());
+        if (readLimit != null) {
+            readLimit.addStats(stats);
+            writeLimit.addStats(stats);
+        }
+        stats.put("queue.request", (long) queueDepth(requestPool));
+        stats.put("queue.internal", (long) queueDepth(internalExecutor));
+        stats.put("queue.write.batcher", (long) writeBatcher.getQueueDepth());
+        for (NodeInfo other : otherNodes) {
+            // Requests this node has out to the peer and not yet had answered
+            stats.put("peer.node" + other.getId() + ".pending", (long) peers.get(other).getPendingCount());
+        }
+        for (Map.Entry<Integer, OriginStream> entry : streams.entrySet()) {
+            stats.put("sequence.origin" + entry.getKey() + ".applied", entry.getValue().getApplied().current());
+        }
+        if (antiEntropy != null) {
+            antiEntropy.addStats(stats);
+        }
+        stats.put("store.users", (long) userStore.size());
+        if (userStore.getIndex() != null) {
+            stats.put("index.usernames", (long) userStore.getIndex().size());
+        }
+        stats.put("bulk.load.rows", bulkRowsLoaded.sum());
+        stats.put("bulk.load.compressed.bytes", bulkBytesLoaded.sum());
+        stats.put("bulk.export.rows", rowsExported.sum());
+        if (election != null) {
+            election.addStats(stats);
+        }
+        stats.put("log.dropped", Log.getDropped());
+        return stats;
+    }
+
+    // Tasks waiting for a thread; 0 for executors without a queue, such as virtual threads
+    private static int queueDepth(Executor executor) {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    // Plain-text "name value" lines at http://localhost:<port>/stats, bound to loopback only
+    private void startStatsEndpoint(int statsPort) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), statsPort), 0);
+            server.createContext("/stats", exchange -> {
+                StringBuilder body = new StringBuilder();
+                for (Map.Entry<String, Long> entry : stats().entrySet()) {
+                    body.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+                }
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            });
+            server.start();
+            statsServer = server;
+            Log.info("Node " + nodeId + " serving stats on http://localhost:" + statsPort + "/stats");
+        } catch (IOException e) {
+            Log.error("Node " + nodeId + " could not serve stats on port " + statsPort, e);
+        }
     }
 
     private void listen() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Node " + nodeId + " listening on port " + port);
+        Log.info("Node " + nodeId + " using server mode: " + serverMode);
+        try {
+            switch (serverMode) {
+                case "selector":
+                    // The event loop must never block, so replication traffic gets its own ordered thread
+                    requestPool = Executors.newFixedThreadPool(Config.getInt("userstore.request.threads", 10));
+                    // A bare ThreadPoolExecutor rather than newSingleThreadExecutor(), so its queue can be measured
+                    internalExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+                    electionExecutor = Executors.newSingleThreadExecutor();
+                    Log.info("Node " + nodeId + " listening on port " + port);
+                    selectorServer = new SelectorServer(port, MessageCodec.configured(), this::routeFrame);
+                    if (stopped) {
+                        selectorServer.stop(); // stop() may have run before there was a server to stop
+                    }
+                    selectorServer.run();
+                    break;
+                case "virtual":
+                    ExecutorService virtualThreads = newVirtualThreadExecutor();
+                    if (virtualThreads != null) {
+                        requestPool = virtualThreads;
+                        internalExecutor = Runnable::run;
+                        electionExecutor = Runnable::run;
+                        acceptLoop(virtualThreads);
+                        break;
+                    }
+                    Log.warn("Virtual threads need Java 21 or later; falling back to threaded mode.");
+                    // fall through
+                case "threaded":
+                    requestPool = Executors.newFixedThreadPool(Config.getInt("userstore.request.threads", 10));
+                    internalExecutor = Runnable::run;
+                    electionExecutor = Runnable::run;
+                    acceptLoop(null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown server mode: " + serverMode);
+            }
+        } catch (IOException e) {
+            if (stopped) {
+                Log.info("Node " + nodeId + " stopped listening on port " + port);
+            } else {
+                Log.error("Node " + nodeId + " server stopped", e);
+            }
+        }
+    }
+
+    // Blocking accept loop with one reader per connection: a platform thread, or a task on readers if given
+    private void acceptLoop(ExecutorService readers) throws IOException {
+        try (ServerSocket socket = new ServerSocket(port, 1024)) {
+            serverSocket = socket; // stop() closes it, which ends accept() with an exception
+            Log.info("Node " + nodeId + " listening on port " + port);
+            while (!stopped) {
+                Socket clientSocket = socket.accept();
+                Log.info("Node " + nodeId + " accepted connection from " + clientSocket.getRemoteSocketAddress());
+                openSockets.add(clientSocket);
+                if (stopped) {
+                    clientSocket.close(); // Accepted after stop() closed the others
+                    break;
+                }
+                if (readers != null) {
+                    readers.submit(() -> handleConnection(clientSocket));
+                } else {
+                    // Each connection is long-lived, so it gets its own reader thread
+                    Thread reader = new Thread(() -> handleConnection(clientSocket), "node-" + nodeId + "-conn");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            }
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() when the runtime has it, otherwise null
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (SocketConnection conn = new SocketConnection(socket)) {
+            if (Log.isDebugEnabled()) {
+                Log.debug("Node " + nodeId + " handling connection. Streams established.");
+            }
+            // The connection stays open for as many messages as the peer sends
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Node " + nodeId + " accepted connection from " + clientSocket.getRemoteSocketAddress());
-                connectionPool.submit(() -> handleConnection(clientSocket));
+                routeFrame(conn.readFrame());
             }
+        } catch (EOFException e) {
+            Log.info("Node " + nodeId + " connection closed by " + socket.getRemoteSocketAddress());
         } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-  private void handleConnection(Socket socket) {
-    try (
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-    ) {
-        System.out.println("Node " + nodeId + " handling connection. Streams established.");
-        Message msg = (Message) in.readObject();
-        System.out.println("Node " + nodeId + " received message: " + msg.getClass().getSimpleName());
-        
-        if (msg instanceof ReadRequest) {
-            handleReadRequest((ReadRequest) msg, out);
-        } else if (msg instanceof WriteRequest) {
-            handleWriteRequest((WriteRequest) msg, out);
-        } else if (msg instanceof TokenRequest) {
-            handleTokenRequest((TokenRequest) msg);
-        } else if (msg instanceof TokenGrant) {
-            handleTokenGrant();
-        } else if (msg instanceof ReplicationMessage) {
-            handleReplicationMessage((ReplicationMessage) msg);
-        } else if (msg instanceof TokenHolderUpdate) {
-            handleTokenHolderUpdate((TokenHolderUpdate) msg);
-        } else {
-            System.err.println("Unknown message type received: " + msg.getClass());
+            if (!stopped) {
+                Log.error("Exception in handleConnection for node " + nodeId, e);
+            }
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    // Reads never wait on anything, so they are answered right where they arrive. Writes can wait for the
+    // batcher and go to the request pool, so a burst of slow writes cannot hold up reads. Heartbeats and votes
+    // get a thread of their own: a new term is saved to disk before they are answered, which must not stall
+    // the event loop, and they must not queue behind replication either, or a busy node is taken for a dead one.
+    private void routeFrame(Frame frame) {
+        Message msg = frame.getMessage();
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " received message: " + msg.getClass().getSimpleName());
+        }
+        metrics.received(msg);
+        frame.setMetrics(metrics);
+        if (!admit(frame)) {
+            return;
+        }
+        switch (msg.getTypeTag()) {
+            case MessageCodec.READ_REQUEST:
+            case MessageCodec.INVALIDATION_SUBSCRIBE:
+            case MessageCodec.PARTITION_MAP_REQUEST:
+            case MessageCodec.STATS_REQUEST:
+                dispatch(frame);
+                break;
+            case MessageCodec.HEARTBEAT:
+            case MessageCodec.VOTE_REQUEST:
+                electionExecutor.execute(() -> dispatch(frame));
+                break;
+            case MessageCodec.WRITE_REQUEST:
+            case MessageCodec.MULTI_PUT_REQUEST:
+            case MessageCodec.BULK_LOAD_REQUEST:
+            case MessageCodec.MULTI_GET_REQUEST: // Can stream for a long time, so kept off the event loop
+            case MessageCodec.SCAN_REQUEST:
+                requestPool.execute(() -> dispatch(frame));
+                break;
+            case MessageCodec.CATCH_UP_REQUEST:
+            case MessageCodec.SNAPSHOT_REQUEST:
+            case MessageCodec.TREE_HASH_REQUEST:
+            case MessageCodec.TREE_LEAVES_REQUEST:
+            case MessageCodec.EXPORT_REQUEST:
+                // Served from disk or by walking the store, well away from the live write path
+                catchUpPool.execute(() -> dispatch(frame));
+                break;
+            default:
+                // Replication and partition traffic is handled in arrival order
+                internalExecutor.execute(() -> dispatch(frame));
+        }
+    }
+
+    // Client reads and writes each get a bounded number of slots; a request that finds them all busy is
+    // told to come back later rather than queued. Replication and partition traffic is what frees
+    // the slots, so it is never held back. Exports run on the catch-up pool and would hold a slot for
+    // minutes, so they are not counted either.
+    private boolean admit(Frame frame) {
+        ConcurrencyLimit limit;
+        switch (frame.getMessage().getTypeTag()) {
+            case MessageCodec.READ_REQUEST:
+            case MessageCodec.MULTI_GET_REQUEST:
+            case MessageCodec.SCAN_REQUEST:
+                limit = readLimit;
+                break;
+            case MessageCodec.WRITE_REQUEST:
+            case MessageCodec.MULTI_PUT_REQUEST:
+            case MessageCodec.BULK_LOAD_REQUEST:
+                limit = writeLimit;
+                break;
+            default:
+                return true;
+        }
+        if (limit == null || frame.getRequestId() == Frame.NO_REPLY) {
+            return true;
+        }
+        if (limit.tryAcquire()) {
+            // Multi-key requests run for as long as they are big, which says little about load
+            byte tag = frame.getMessage().getTypeTag();
+            frame.setAdmitted(limit, tag == MessageCodec.READ_REQUEST || tag == MessageCodec.WRITE_REQUEST);
+            return true;
         }
-    } catch (IOException | ClassNotFoundException e) {
-        System.err.println("Exception in handleConnection for node " + nodeId);
-        e.printStackTrace();
-    } finally {
         try {
-            socket.close();  // Ensure socket is closed after processing
-            System.out.println("Node " + nodeId + " closed socket.");
+            frame.reply(new RetryAfter(limit.getRetryAfterMillis(), "Node " + nodeId + " is at its limit of " + limit.getLimit()
+                    + " " + limit.getName() + " in flight."));
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Node " + nodeId + " could not turn away " + frame.getMessage().getClass().getSimpleName() + ": " + e);
         }
+        return false;
     }
-}
 
-    
+    private void dispatch(Frame frame) {
+        Message msg = frame.getMessage();
+        try {
+            switch (msg.getTypeTag()) {
+                case MessageCodec.READ_REQUEST:
+                    handleReadRequest((ReadRequest) msg, frame);
+                    break;
+                case MessageCodec.WRITE_REQUEST:
+                    handleWriteRequest((WriteRequest) msg, frame);
+                    break;
+                case MessageCodec.REPLICATION_MESSAGE:
+                    handleReplicationMessage((ReplicationMessage) msg, frame);
+                    break;
+                case MessageCodec.BATCH_REPLICATION_MESSAGE:
+                    handleBatchReplicationMessage((BatchReplicationMessage) msg, frame);
+                    break;
+                case MessageCodec.CATCH_UP_REQUEST:
+                    handleCatchUpRequest((CatchUpRequest) msg, frame);
+                    break;
+                case MessageCodec.SNAPSHOT_REQUEST:
+                    handleSnapshotRequest(frame);
+                    break;
+                case MessageCodec.INVALIDATION_SUBSCRIBE:
+                    handleInvalidationSubscribe(frame);
+                    break;
+                case MessageCodec.MULTI_GET_REQUEST:
+                    handleMultiGetRequest((MultiGetRequest) msg, frame);
+                    break;
+                case MessageCodec.MULTI_PUT_REQUEST:
+                    handleMultiPutRequest((MultiPutRequest) msg, frame);
+                    break;
+                case MessageCodec.JOIN_REQUEST:
+                    handleJoinRequest((JoinRequest) msg, frame);
+                    break;
+                case MessageCodec.PARTITION_MAP_REQUEST:
+                    handlePartitionMapRequest(frame);
+                    break;
+                case MessageCodec.PARTITION_MAP_UPDATE:
+                    handlePartitionMapUpdate((PartitionMapUpdate) msg);
+                    break;
+                case MessageCodec.PARTITION_HANDOFF:
+                    handlePartitionHandoff((PartitionHandoff) msg);
+                    break;
+                case MessageCodec.STATS_REQUEST:
+                    frame.reply(new StatsResponse(stats()));
+                    break;
+                case MessageCodec.TREE_HASH_REQUEST:
+                    handleTreeHashRequest((TreeHashRequest) msg, frame);
+                    break;
+                case MessageCodec.TREE_LEAVES_REQUEST:
+                    handleTreeLeavesRequest((TreeLeavesRequest) msg, frame);
+                    break;
+                case MessageCodec.SCAN_REQUEST:
+                    handleScanRequest((ScanRequest) msg, frame);
+                    break;
+                case MessageCodec.BULK_LOAD_REQUEST:
+                    handleBulkLoadRequest((BulkLoadRequest) msg, frame);
+                    break;
+                case MessageCodec.BULK_REPLICATION_MESSAGE:
+                    handleBulkReplicationMessage((BulkReplicationMessage) msg, frame);
+                    break;
+                case MessageCodec.COMPRESSED_BATCH_MESSAGE:
+                    handleCompressedBatchMessage((CompressedBatchMessage) msg, frame);
+                    break;
+                case MessageCodec.EXPORT_REQUEST:
+                    handleExportRequest((ExportRequest) msg, frame);
+                    break;
+                case MessageCodec.HEARTBEAT:
+                    handleHeartbeat((Heartbeat) msg, frame);
+                    break;
+                case MessageCodec.VOTE_REQUEST:
+                    handleVoteRequest((VoteRequest) msg, frame);
+                    break;
+                default:
+                    Log.warn("Unknown message type received: " + msg.getClass());
+            }
+        } catch (IOException e) {
+            metrics.failed(msg);
+            frame.release(System.nanoTime() - frame.getReceivedNanos());
+            Log.error("Node " + nodeId + " failed to reply to " + msg.getClass().getSimpleName(), e);
+        } catch (RuntimeException e) {
+            handlerFailed(frame, e);
+        }
+        if (frame.getRequestId() == Frame.NO_REPLY) {
+            metrics.recordLatency(msg.getTypeTag(), System.nanoTime() - frame.getReceivedNanos());
+        }
+    }
 
-    private void handleReadRequest(ReadRequest req, ObjectOutputStream out) throws IOException {
+    private void handlerFailed(Frame frame, RuntimeException e) {
+        Message msg = frame.getMessage();
+        metrics.failed(msg);
+        Log.error("Node " + nodeId + " failed to handle " + msg.getClass().getSimpleName(), e);
+        if (frame.getRequestId() != Frame.NO_REPLY) {
+            // Otherwise the caller waits out its timeout for a reply that is never coming
+            try {
+                frame.reply(new ErrorMessage("Node " + nodeId + " failed to handle " + msg.getClass().getSimpleName() + ": " + e));
+            } catch (IOException replyError) {
+                Log.warn("Node " + nodeId + " could not report the failure of " + msg.getClass().getSimpleName() + ": " + replyError);
+            }
+        }
+        frame.release(System.nanoTime() - frame.getReceivedNanos());
+    }
+
+    private void handleReadRequest(ReadRequest req, Frame frame) throws IOException {
+        int origin = req.getOrigin() >= 0 ? req.getOrigin() : originOf(req.getUsername());
+        SequenceGate applied = stream(origin).getApplied();
+        if (req.getMinSequence() > applied.current()) {
+            // This node has not applied the client's latest write yet: give replication a moment to deliver
+            // it, then send the client to the node that sequenced it, which always has it. The reply goes
+            // out from the request pool, not from whichever thread applied the awaited write.
+            applied.await(req.getMinSequence(), readWaitMillis).thenAcceptAsync(reached -> {
+                try {
+                    if (reached) {
+                        replyToRead(req, origin, frame);
+                    } else {
+                        frame.reply(redirectTo(origin, req.getMinSequence()));
+                    }
+                } catch (IOException e) {
+                    Log.error("Node " + nodeId + " failed to reply to ReadRequest", e);
+                } catch (RuntimeException e) {
+                    handlerFailed(frame, e);
+                }
+            }, requestPool);
+            return;
+        }
+        replyToRead(req, origin, frame);
+    }
+
+    private void replyToRead(ReadRequest req, int origin, Frame frame) throws IOException {
+        long sequence = stream(origin).getApplied().current(); // Read before the lookup, so the value is at least this new
         String ssn = userStore.get(req.getUsername());
         boolean found = ssn != null;
-        ReadResponse resp = new ReadResponse(req.getUsername(), ssn, found);
-        out.writeObject(resp);
-        System.out.println("Node " + nodeId + " handled ReadRequest for user: " + req.getUsername());
-    }
-
-    private void handleWriteRequest(WriteRequest req, ObjectOutputStream out) throws IOException {
-        System.out.println("Node " + nodeId + " handling WriteRequest for user: " + req.getUsername());
-        if (isPrimary) {
-            // Request the token if not held
-            if (!hasToken) {
-                System.out.println("Node " + nodeId + " does not have the token. Requesting token...");
-                requestToken();
-                // Wait until the token is granted
-                synchronized (this) {
-                    while (!hasToken) {
-                        try {
-                            wait(); // Wait until notified that the token has been granted
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+        ReadResponse resp = new ReadResponse(req.getUsername(), ssn, found, sequence, origin);
+        frame.reply(resp);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " handled ReadRequest for user: " + req.getUsername());
+        }
+    }
+
+    private Redirect redirectTo(int origin, long minSequence) {
+        NodeInfo target = getNodeInfoById(origin);
+        return new Redirect(target.getId(), target.getHost(), target.getPort(),
+                "Node " + nodeId + " has not applied sequence " + minSequence + " of Node " + origin + " yet.");
+    }
+
+    private void handleWriteRequest(WriteRequest req, Frame frame) throws IOException {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " handling WriteRequest for user: " + req.getUsername());
+        }
+        routeWrite(Collections.singletonList(new UserRecord(req.getUsername(), req.getSsn())), null, req, frame);
+    }
+
+    private void handleMultiPutRequest(MultiPutRequest req, Frame frame) throws IOException {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " handling MultiPutRequest for " + req.getRecords().size() + " users.");
+        }
+        if (req.getRecords().isEmpty()) {
+            frame.reply(new Acknowledgment("Nothing to write."));
+        } else if (req.isIfAbsent() && partitioned) {
+            frame.reply(new ErrorMessage("Put-if-absent needs a single primary."));
+        } else {
+            routeWrite(req.getRecords(), null, req, frame);
+        }
+    }
+
+    // Committed like a multi-put, but the loader's compressed block is kept for replication
+    private void handleBulkLoadRequest(BulkLoadRequest req, Frame frame) throws IOException {
+        List<UserRecord> records = RecordBlock.decompress(req.getBlock());
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " handling BulkLoadRequest for " + records.size() + " users in " + req.getBlock().length + " bytes.");
+        }
+        if (records.size() != req.getRows()) {
+            frame.reply(new ErrorMessage("Bulk-load chunk holds " + records.size() + " rows, not " + req.getRows() + "."));
+        } else if (records.isEmpty()) {
+            frame.reply(new Acknowledgment("Nothing to write."));
+        } else {
+            routeWrite(records, req.getBlock(), req, frame);
+        }
+    }
+
+    // Queue a client write for the next group commit if this node sequences it; the batcher replies once it
+    // is replicated. Otherwise pass it on to the node that does. block is set for a bulk-load chunk.
+    private void routeWrite(List<UserRecord> records, byte[] block, Message req, Frame frame) {
+        if (!partitioned) {
+            if (isPrimary && req instanceof MultiPutRequest && ((MultiPutRequest) req).isIfAbsent()) {
+                writeBatcher.submitIfAbsent(records, frame);
+            } else if (isPrimary) {
+                writeBatcher.submit(records, block, frame);
+            } else if (election != null && election.getLeaderId() == LeaderElection.NO_LEADER) {
+                retryLater(frame, "Node " + nodeId + " knows of no primary while one is being elected.");
+            } else {
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Node " + nodeId + " is forwarding " + req.getClass().getSimpleName() + " to the primary node.");
+                }
+                forwardTo(getPrimaryInfo(), req, frame);
+            }
+            return;
+        }
+        PartitionMap map = partitionMap;
+        if (map == null) {
+            // Not admitted yet: the controller knows where the write belongs
+            forwardTo(getPrimaryInfo(), req, frame);
+            return;
+        }
+        Map<Integer, List<UserRecord>> byOwner = new LinkedHashMap<>();
+        for (UserRecord record : records) {
+            byOwner.computeIfAbsent(map.ownerOf(record.getUsername()), owner -> new ArrayList<>()).add(record);
+        }
+        if (byOwner.size() > 1) {
+            splitWrite(byOwner, map, frame);
+            return;
+        }
+        int owner = byOwner.keySet().iterator().next();
+        if (owner == nodeId) {
+            submitOwned(records, block, map, frame);
+        } else {
+            forwardTo(map.getMember(owner), req, frame);
+        }
+    }
+
+    // A partition this node has just taken over only accepts writes once its previous owner has handed it
+    // off; until then they wait here rather than being refused
+    private void submitOwned(List<UserRecord> records, byte[] block, PartitionMap map, Frame frame) {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (UserRecord record : records) {
+            CompletableFuture<Void> handoff = handoffs.get(handoffKey(map.getVersion(), map.partitionOf(record.getUsername())));
+            if (handoff != null && !handoff.isDone()) {
+                pending.add(handoff);
+            }
+        }
+        if (pending.isEmpty()) {
+            writeBatcher.submit(records, block, frame);
+        } else {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenRun(() -> writeBatcher.submit(records, block, frame));
+        }
+    }
+
+    // Only reached when a client routed with an old partition map: each owner commits its own part. The
+    // reply is the first failure, or else the last part's acknowledgment.
+    private void splitWrite(Map<Integer, List<UserRecord>> byOwner, PartitionMap map, Frame frame) {
+        List<CompletableFuture<Message>> parts = new ArrayList<>();
+        for (Map.Entry<Integer, List<UserRecord>> entry : byOwner.entrySet()) {
+            parts.add(peers.get(map.getMember(entry.getKey())).request(new MultiPutRequest(entry.getValue()))
+                    .orTimeout(PeerConnection.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .exceptionally(error -> new ErrorMessage("Failed to write to Node " + entry.getKey() + ": " + error)));
+        }
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            Message reply = null;
+            for (CompletableFuture<Message> part : parts) {
+                reply = part.join();
+                if (!(reply instanceof Acknowledgment)) {
+                    break;
+                }
+            }
+            try {
+                frame.reply(reply);
+            } catch (IOException e) {
+                Log.error("Node " + nodeId + " failed to reply to a split MultiPutRequest", e);
+            }
+        });
+    }
+
+    // Forward a request to another node. The reply is relayed when that node answers; no thread waits for it.
+    private void forwardTo(NodeInfo target, Message req, Frame frame) {
+        peers.get(target).request(req)
+                .orTimeout(PeerConnection.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((resp, error) -> {
+                    try {
+                        if (error != null && election != null) {
+                            // Most likely the primary has gone: by the time the client is back another should be elected
+                            Log.warn("Node " + nodeId + " could not forward " + req.getClass().getSimpleName() + " to Node " + target.getId() + ": " + error);
+                            frame.reply(new RetryAfter(heartbeatMillis, "Failed to forward " + req.getClass().getSimpleName()
+                                    + " to Node " + target.getId() + "; the primary may be failing over."));
+                        } else if (error != null) {
+                            Log.warn("Node " + nodeId + " could not forward " + req.getClass().getSimpleName() + " to Node " + target.getId() + ": " + error);
+                            frame.reply(new ErrorMessage("Failed to forward " + req.getClass().getSimpleName() + " to Node " + target.getId() + "."));
+                        } else {
+                            frame.reply(resp);  // Send the other node's response back to the client
                         }
+                    } catch (IOException e) {
+                        Log.error("Node " + nodeId + " failed to reply to " + req.getClass().getSimpleName(), e);
+                    }
+                });
+    }
+
+    private void handleMultiGetRequest(MultiGetRequest req, Frame frame) throws IOException {
+        List<String> usernames = req.getUsernames();
+        int origin = req.getOrigin() >= 0 ? req.getOrigin() : originOf(usernames.isEmpty() ? "" : usernames.get(0));
+        SequenceGate applied = stream(origin).getApplied();
+        if (req.getMinSequence() > applied.current()) {
+            // Same rule as a single read, answered from the request pool too
+            applied.await(req.getMinSequence(), readWaitMillis).thenAcceptAsync(reached -> {
+                try {
+                    if (reached) {
+                        streamMultiGet(req, origin, frame);
+                    } else {
+                        frame.reply(redirectTo(origin, req.getMinSequence()));
                     }
+                } catch (IOException e) {
+                    Log.error("Node " + nodeId + " failed to reply to MultiGetRequest", e);
+                } catch (RuntimeException e) {
+                    handlerFailed(frame, e);
                 }
-                System.out.println("Node " + nodeId + " has received the token.");
+            }, requestPool);
+            return;
+        }
+        streamMultiGet(req, origin, frame);
+    }
+
+    // Answer in chunks of multiGetChunkSize users, waiting for each to drain before building the next,
+    // so a large request never has its whole answer in memory at once
+    private void streamMultiGet(MultiGetRequest req, int origin, Frame frame) throws IOException {
+        long sequence = stream(origin).getApplied().current(); // Read before the lookups, as in replyToRead
+        List<String> usernames = req.getUsernames();
+        int chunks = 0;
+        int from = 0;
+        do {
+            int to = Math.min(usernames.size(), from + multiGetChunkSize);
+            List<String> chunk = new ArrayList<>(usernames.subList(from, to)); // A view would not serialize
+            List<String> ssns = new ArrayList<>(chunk.size());
+            for (String username : chunk) {
+                ssns.add(userStore.get(username));
             }
-    
-            // Perform the write operation
-            performWrite(req);
-            // Replicate to backups
-            replicateToBackups(req);
-            // Release the token
-            releaseToken();
-            // Acknowledge to client
-            out.writeObject(new Acknowledgment("Write operation successful."));
-            System.out.println("Node " + nodeId + " acknowledged WriteRequest for user: " + req.getUsername());
-        } else {
-            System.out.println("Node " + nodeId + " is forwarding WriteRequest to the primary node.");
-            // Backup node: forward the write request to the primary node
-            NodeInfo primaryInfo = getPrimaryInfo();
-            try (Socket primarySocket = new Socket(primaryInfo.getHost(), primaryInfo.getPort());
-                 ObjectOutputStream primaryOut = new ObjectOutputStream(primarySocket.getOutputStream());
-                 ObjectInputStream primaryIn = new ObjectInputStream(primarySocket.getInputStream())) {
-                primaryOut.writeObject(req);
-                Message resp = (Message) primaryIn.readObject();
-                out.writeObject(resp);  // Send the primary's response back to the client
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-                out.writeObject(new ErrorMessage("Failed to forward write request to primary."));
+            frame.getConnection().awaitQueuedBelow(MULTI_GET_QUEUED_BYTES);
+            frame.reply(new MultiGetResponse(chunk, ssns, sequence, origin, to == usernames.size()));
+            chunks++;
+            from = to;
+        } while (from < usernames.size());
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " handled MultiGetRequest for " + usernames.size() + " users in " + chunks + " chunks.");
+        }
+    }
+
+    // Commit a batch of queued writes: one log append and one replication round for all of them
+    private void commitBatch(List<WriteBatcher.PendingWrite> queued) {
+        if (partitioned) {
+            handOffLostPartitions();
+        }
+        List<WriteBatcher.PendingWrite> batch = partitioned || election != null ? keepOwned(queued) : queued;
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<UserRecord> records = new ArrayList<>(batch.size());
+        for (WriteBatcher.PendingWrite pending : batch) {
+            if (pending.isIfAbsent()) {
+                pending.setRecords(absentFrom(records, pending.getRecords()));
+            }
+            records.addAll(pending.getRecords());
+        }
+        // Only the primary, or a partition's owner, commits, and only on this thread, so writers to the
+        // same user never race
+        long firstSequence = 0;
+        CompletableFuture<Void> replicated;
+        try {
+            if (records.isEmpty()) {
+                // Only puts-if-absent of users there are by now
+                firstSequence = stream(nodeId).getLastSequence().get() + 1;
+                replicated = CompletableFuture.completedFuture(null);
+            } else {
+                // Perform the write operation
+                firstSequence = performWrite(records);
+                // Replicate to backups; each link keeps batches in order, so the next batch need not wait for the acks
+                replicated = replicateBatch(firstSequence, batch, records);
+            }
+        } catch (RuntimeException e) {
+            Log.error("Node " + nodeId + " failed to commit a batch of " + records.size() + " writes", e);
+            replicated = CompletableFuture.failedFuture(e);
+        }
+        // Acknowledge to every client in the batch once the quorum has acked, without holding up the next batch.
+        // Each ack carries the sequence of its last record so the client can insist on reading at least that version.
+        long batchStart = firstSequence;
+        replicated.whenComplete((ignored, error) -> {
+            long sequence = batchStart - 1;
+            for (WriteBatcher.PendingWrite pending : batch) {
+                sequence += pending.getRecords().size();
+                Message reply = error == null
+                        ? new Acknowledgment("Write operation successful.", sequence, nodeId)
+                        : new ErrorMessage("Write applied on primary but not confirmed by replication quorum " + replicator.getQuorum() + ".");
+                try {
+                    pending.getFrame().reply(reply);
+                } catch (IOException e) {
+                    Log.warn("Node " + nodeId + " could not acknowledge a write of " + pending.getRecords().size() + " users: " + e.getMessage());
+                }
             }
+        });
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " committed a batch of " + records.size() + " writes.");
         }
     }
-    
 
-    private void performWrite(WriteRequest req) {
-        userStore.put(req.getUsername(), req.getSsn());
-        System.out.println("Node " + nodeId + " updated user: " + req.getUsername());
+    // The records of a put-if-absent for users neither in the store nor written earlier in the batch. Checked
+    // on the batcher thread, in commit order, so a write a client has been told of is never overwritten.
+    private List<UserRecord> absentFrom(List<UserRecord> earlier, List<UserRecord> candidates) {
+        Set<String> written = new HashSet<>();
+        for (UserRecord record : earlier) {
+            written.add(record.getUsername());
+        }
+        List<UserRecord> absent = new ArrayList<>();
+        for (UserRecord record : candidates) {
+            if (!written.contains(record.getUsername()) && userStore.get(record.getUsername()) == null) {
+                absent.add(record);
+            }
+        }
+        return absent;
     }
 
-    private void replicateToBackups(WriteRequest req) {
-        ReplicationMessage repMsg = new ReplicationMessage(req.getUsername(), req.getSsn());
-        for (NodeInfo node : otherNodes) {
+    // Writes queued before the partition map changed may belong to partitions this node no longer owns, and
+    // writes queued before an election to a primary this node no longer is: those are passed on to the new
+    // owner or primary instead of being committed here
+    private List<WriteBatcher.PendingWrite> keepOwned(List<WriteBatcher.PendingWrite> batch) {
+        PartitionMap map = partitionMap;
+        List<WriteBatcher.PendingWrite> owned = new ArrayList<>(batch.size());
+        for (WriteBatcher.PendingWrite pending : batch) {
+            List<UserRecord> records = pending.getRecords();
+            if (records.isEmpty()) {
+                continue; // A wake-up from WriteBatcher.wake()
+            }
+            boolean ownsAll = partitioned ? map != null : isPrimary;
+            for (int i = 0; partitioned && ownsAll && i < records.size(); i++) {
+                ownsAll = map.ownerOf(records.get(i).getUsername()) == nodeId;
+            }
+            if (ownsAll) {
+                owned.add(pending);
+            } else {
+                Message req = pending.getBlock() != null ? new BulkLoadRequest(pending.getBlock(), records.size())
+                        : pending.isIfAbsent() ? new MultiPutRequest(records, true)
+                        : records.size() == 1 ? new WriteRequest(records.get(0).getUsername(), records.get(0).getSsn())
+                        : new MultiPutRequest(records);
+                routeWrite(records, pending.getBlock(), req, pending.getFrame());
+            }
+        }
+        return owned;
+    }
+
+    // Runs on the batcher thread, so every write this node committed under the old map has been sequenced
+    // and sent to its replicas. Once they have all acked a fence behind those writes, the new owners are
+    // told they may start writing; otherwise a replica could apply a new owner's write to a user before an
+    // older one from here.
+    private void handOffLostPartitions() {
+        PartitionMap map = partitionMap;
+        PartitionMap previous = fencedMap;
+        if (map == previous || map == null) {
+            return;
+        }
+        fencedMap = map;
+        if (previous == null) {
+            return;
+        }
+        Map<Integer, List<Integer>> lostTo = new HashMap<>();
+        for (int p = 0; p < map.getPartitions(); p++) {
+            if (previous.ownerOfPartition(p) == nodeId && map.ownerOfPartition(p) != nodeId) {
+                lostTo.computeIfAbsent(map.ownerOfPartition(p), owner -> new ArrayList<>()).add(p);
+            }
+        }
+        if (lostTo.isEmpty()) {
+            return;
+        }
+        long fence = stream(nodeId).getLastSequence().get();
+        // An empty batch behind the last real one; each link delivers in order, so its ack covers them all
+        BatchReplicationMessage barrier = new BatchReplicationMessage(nodeId, fence + 1, Collections.emptyList());
+        replicator.replicate(barrier, getBackups(), ReplicationQuorum.ALL).whenComplete((ignored, error) -> {
+            if (error != null) {
+                Log.warn("Node " + nodeId + " could not confirm its fence at sequence " + fence
+                        + " on every replica; handing off anyway: " + error.getMessage());
+            }
+            for (Map.Entry<Integer, List<Integer>> entry : lostTo.entrySet()) {
+                NodeInfo owner = map.getMember(entry.getKey());
+                sendMessage(owner.getHost(), owner.getPort(), new PartitionHandoff(nodeId, map.getVersion(), entry.getValue(), fence));
+                Log.info("Node " + nodeId + " handed " + entry.getValue().size() + " partitions to Node " + owner.getId());
+            }
+        });
+    }
+
+    // Log and apply a batch, returning the sequence number given to its first record
+    private long performWrite(List<UserRecord> records) {
+        long firstSequence;
+        OriginStream own = stream(nodeId);
+        own.getApplyLock().lock();
+        try {
+            firstSequence = appendToLog(nodeId, records);
+            applyToStore(records);
+            own.getApplied().advance(own.getLastSequence().get());
+            if (Log.isDebugEnabled()) {
+                Log.debug("Node " + nodeId + " updated " + records.size() + " users.");
+            }
+        } finally {
+            own.getApplyLock().unlock();
+        }
+        publishInvalidations(records, false, nodeId, firstSequence + records.size() - 1);
+        return firstSequence;
+    }
+
+    private void applyToStore(List<UserRecord> records) {
+        userStore.putAll(records);
+    }
+
+    // Log writes before they are applied, so anything in userStore survives a restart. Each record takes
+    // the next sequence number of its origin; returns the first one used.
+    private long appendToLog(int origin, List<UserRecord> records) {
+        AtomicLong lastSequence = stream(origin).getLastSequence();
+        long firstSequence = lastSequence.get() + 1;
+        for (UserRecord record : records) {
+            logRecord(lastSequence.incrementAndGet(), origin, record);
+        }
+        endLogBatch();
+        return firstSequence;
+    }
+
+    private void logRecord(long seq, int origin, UserRecord record) {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            writeAheadLog.append(seq, origin, record.getUsername(), record.getSsn());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Node " + nodeId + " failed to append to its write-ahead log", e);
+        }
+    }
+
+    private void endLogBatch() {
+        if (writeAheadLog != null) {
+            writeAheadLog.endBatch();
+        }
+    }
+
+    // Bulk-load chunks go out in the compressed form the loader sent, and the plain writes between them as
+    // one BatchReplicationMessage per run; each link delivers them in order
+    private CompletableFuture<Void> replicateBatch(long firstSequence, List<WriteBatcher.PendingWrite> batch, List<UserRecord> records) {
+        boolean bulk = false;
+        for (WriteBatcher.PendingWrite pending : batch) {
+            bulk |= pending.getBlock() != null;
+        }
+        if (!bulk) {
+            return replicateToBackups(firstSequence, records);
+        }
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        List<UserRecord> run = new ArrayList<>();
+        long sequence = firstSequence;
+        for (WriteBatcher.PendingWrite pending : batch) {
+            if (pending.getBlock() == null) {
+                run.addAll(pending.getRecords());
+                continue;
+            }
+            if (!run.isEmpty()) {
+                sent.add(replicateToBackups(sequence, run));
+                sequence += run.size();
+                run = new ArrayList<>();
+            }
+            int rows = pending.getRecords().size();
+            sent.add(replicator.replicate(new BulkReplicationMessage(nodeId, sequence, pending.getBlock(), rows), getBackups()));
+            sequence += rows;
+            bulkRowsLoaded.add(rows);
+            bulkBytesLoaded.add(pending.getBlock().length);
+        }
+        if (!run.isEmpty()) {
+            sent.add(replicateToBackups(sequence, run));
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> replicateToBackups(long firstSequence, List<UserRecord> records) {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " sending replication batch of " + records.size() + " to backups");
+        }
+        return replicator.replicate(new BatchReplicationMessage(nodeId, firstSequence, records), getBackups());
+    }
+
+    // Every other member holds a full copy, including a joining node that owns nothing yet
+    private List<NodeInfo> getBackups() {
+        PartitionMap map = partitionMap;
+        List<NodeInfo> members = map != null ? map.getMembers() : otherNodes;
+        List<NodeInfo> backups = new ArrayList<>(members.size());
+        for (NodeInfo node : members) {
             if (node.getId() != nodeId) { // Skip self (primary)
-                System.out.println("Node " + nodeId + " sending replication message to Node " + node.getId());
-                sendMessage(node.getHost(), node.getPort(), repMsg);
+                backups.add(node);
             }
         }
+        return backups;
     }
-    
 
-    private void handleReplicationMessage(ReplicationMessage msg) {
+    private void handleReplicationMessage(ReplicationMessage msg, Frame frame) throws IOException {
         try {
-            System.out.println("Node " + nodeId + " is replicating user: " + msg.getUsername());
+            if (Log.isDebugEnabled()) {
+                Log.debug("Node " + nodeId + " is replicating user: " + msg.getUsername());
+            }
+            // Unsequenced, so it is logged without moving this node's replication position
+            int origin = getPrimaryInfo().getId();
+            long sequence = stream(origin).getLastSequence().get();
+            logRecord(sequence, origin, new UserRecord(msg.getUsername(), msg.getSsn()));
+            endLogBatch();
             userStore.put(msg.getUsername(), msg.getSsn());
-            System.out.println("Node " + nodeId + " replicated user: " + msg.getUsername());
+            if (Log.isDebugEnabled()) {
+                Log.debug("Node " + nodeId + " replicated user: " + msg.getUsername());
+            }
+            publishInvalidations(Collections.singletonList(new UserRecord(msg.getUsername(), msg.getSsn())), false,
+                    origin, sequence);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Node " + nodeId + " failed to apply replicated user: " + msg.getUsername(), e);
         }
+        acknowledgeReplication(frame);
     }
     
 
+    private void handleBatchReplicationMessage(BatchReplicationMessage msg, Frame frame) throws IOException {
+        handleReplicatedBatch(msg.getOriginId(), msg.getFirstSequence(), msg.getRecords(), frame);
+    }
+
+    private void handleBulkReplicationMessage(BulkReplicationMessage msg, Frame frame) throws IOException {
+        handleReplicatedBatch(msg.getOriginId(), msg.getFirstSequence(), RecordBlock.decompress(msg.getBlock()), frame);
+    }
+
+    private void handleCompressedBatchMessage(CompressedBatchMessage msg, Frame frame) throws IOException {
+        List<UserRecord> records = compressor.decompress(msg.getFrame());
+        if (records.size() != msg.getRows()) {
+            throw new IOException("Compressed batch from Node " + msg.getOriginId() + " holds " + records.size() + " rows, not " + msg.getRows());
+        }
+        handleReplicatedBatch(msg.getOriginId(), msg.getFirstSequence(), records, frame);
+    }
+
+    private void handleReplicatedBatch(int origin, long firstSequence, List<UserRecord> records, Frame frame) throws IOException {
+        if (election != null && origin != election.getLeaderId()) {
+            // From a primary that has been replaced, which must not reach a quorum
+            if (frame.getRequestId() != Frame.NO_REPLY) {
+                frame.reply(new ErrorMessage("Node " + nodeId + " does not follow Node " + origin + " as primary in term " + election.getTerm() + "."));
+            }
+            return;
+        }
+        if (election != null) {
+            election.heardFromLeader(origin);
+        }
+        if (!applyReplicated(origin, firstSequence, records)) {
+            Log.info("Node " + nodeId + " is missing writes before sequence " + firstSequence + "; catching up.");
+            scheduleCatchUp();
+            if (frame.getRequestId() != Frame.NO_REPLY) {
+                frame.reply(new ErrorMessage("Missing writes before sequence " + firstSequence + "."));
+            }
+            return;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " replicated " + records.size() + " users.");
+        }
+        acknowledgeReplication(frame);
+    }
+
+    // Apply a replicated batch if it continues this node's sequence, skipping any records already applied.
+    // Returns false without applying anything if earlier writes are missing, or if catch-up is busy applying.
+    private boolean applyReplicated(int origin, long firstSequence, List<UserRecord> records) {
+        OriginStream stream = stream(origin);
+        if (!stream.getApplyLock().tryLock()) {
+            return false;
+        }
+        List<UserRecord> fresh;
+        long applied;
+        try {
+            long next = stream.getLastSequence().get() + 1;
+            if (firstSequence > next) {
+                return false;
+            }
+            int skipped = (int) Math.min(records.size(), next - firstSequence);
+            fresh = records.subList(skipped, records.size());
+            appendToLog(origin, fresh);
+            applyToStore(fresh);
+            applied = stream.getLastSequence().get();
+            stream.getApplied().advance(applied);
+        } finally {
+            stream.getApplyLock().unlock();
+        }
+        publishInvalidations(fresh, false, origin, applied);
+        return true;
+    }
+
+    private void scheduleCatchUp() {
+        catchUpWanted.set(true);
+        if (catchUpRunning.compareAndSet(false, true)) {
+            catchUpPool.execute(this::runCatchUp);
+        }
+    }
+
+    private void runCatchUp() {
+        try {
+            while (catchUpWanted.getAndSet(false)) {
+                if (joining && partitionMap == null) {
+                    askToJoin(false);
+                }
+                boolean caughtUp = true;
+                for (NodeInfo source : catchUpSources()) {
+                    caughtUp &= catchUp(source, source.getId());
+                }
+                int lagging = election != null ? election.getLaggingOrigin() : -1;
+                if (lagging >= 0) {
+                    // Writes the previous primary replicated to the new one but not to this node
+                    caughtUp &= catchUp(getPrimaryInfo(), lagging);
+                }
+                PartitionMap map = partitionMap;
+                if (joining && caughtUp && map != null && !map.isOwner(nodeId)) {
+                    askToJoin(true);
+                }
+            }
+        } finally {
+            catchUpRunning.set(false);
+        }
+        // A request may have come in just as the loop finished
+        if (catchUpWanted.get()) {
+            scheduleCatchUp();
+        }
+    }
+
+    // Nodes whose writes this node follows: the primary, or with partitioning every other member
+    private List<NodeInfo> catchUpSources() {
+        if (!partitioned) {
+            NodeInfo primary = getPrimaryInfo();
+            return primary.getId() == nodeId ? Collections.emptyList() : Collections.singletonList(primary);
+        }
+        List<NodeInfo> sources = new ArrayList<>();
+        PartitionMap map = partitionMap;
+        for (NodeInfo node : map != null ? map.getMembers() : otherNodes) {
+            if (node.getId() != nodeId) {
+                sources.add(node);
+            }
+        }
+        return sources;
+    }
+
+    // Pull missing writes of an origin's stream from a source, the origin itself unless it has failed over,
+    // until this node has everything the source had when asked. Returns false if that could not be finished.
+    private boolean catchUp(NodeInfo sourceInfo, int origin) {
+        PeerConnection source = peers.get(sourceInfo);
+        AtomicLong lastSequence = stream(origin).getLastSequence();
+        int batchRecords = Config.getInt("userstore.catchup.batch.records", 10000);
+        try {
+            while (true) {
+                long from = lastSequence.get() + 1;
+                Message resp = source.call(new CatchUpRequest(origin, from, batchRecords));
+                if (!(resp instanceof CatchUpResponse)) {
+                    Log.warn("Node " + nodeId + " got unexpected catch-up reply: " + resp.getClass().getSimpleName());
+                    return false;
+                }
+                CatchUpResponse catchUp = (CatchUpResponse) resp;
+                if (catchUp.isSnapshotRequired()) {
+                    loadSnapshot(sourceInfo, source);
+                    continue;
+                }
+                applyCatchUp(origin, catchUp);
+                if (catchUp.getRecords().isEmpty() || lastSequence.get() >= catchUp.getPrimarySequence()) {
+                    return true;
+                }
+                Log.info("Node " + nodeId + " caught up to sequence " + lastSequence.get() + " of " + catchUp.getPrimarySequence()
+                        + " of Node " + origin + " from Node " + sourceInfo.getId());
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Node " + nodeId + " catch-up from Node " + sourceInfo.getId() + " failed: " + e);
+            return false;
+        }
+    }
+
+    // Logged writes can skip sequence numbers where compaction dropped overwritten values, so records are
+    // applied by their own sequence rather than by position
+    private void applyCatchUp(int origin, CatchUpResponse catchUp) {
+        long[] sequences = catchUp.getSequences();
+        List<UserRecord> records = catchUp.getRecords();
+        List<UserRecord> fresh = new ArrayList<>();
+        long applied;
+        OriginStream stream = stream(origin);
+        AtomicLong lastSequence = stream.getLastSequence();
+        stream.getApplyLock().lock();
+        try {
+            for (int i = 0; i < sequences.length; i++) {
+                if (sequences[i] > lastSequence.get()) {
+                    UserRecord record = records.get(i);
+                    logRecord(sequences[i], origin, record);
+                    userStore.put(record.getUsername(), record.getSsn());
+                    lastSequence.set(sequences[i]);
+                    fresh.add(record);
+                }
+            }
+            endLogBatch();
+            applied = lastSequence.get();
+            stream.getApplied().advance(applied);
+        } finally {
+            stream.getApplyLock().unlock();
+        }
+        publishInvalidations(fresh, false, origin, applied);
+    }
+
+    private void loadSnapshot(NodeInfo originInfo, PeerConnection origin) throws IOException {
+        Message resp = origin.call(new SnapshotRequest());
+        if (!(resp instanceof SnapshotOffer)) {
+            throw new IOException("Node " + originInfo.getId() + " refused snapshot: " + resp.getClass().getSimpleName());
+        }
+        SnapshotOffer offer = (SnapshotOffer) resp;
+        Log.info("Node " + nodeId + " loading " + offer.getSizeBytes() + " byte snapshot at sequence " + offer.getSequence()
+                + " from Node " + originInfo.getId());
+        long start = System.nanoTime();
+        long[] loaded = {0};
+        OriginStream stream = stream(originInfo.getId());
+        stream.getApplyLock().lock();
+        try {
+            SnapshotTransfer.receive(originInfo.getHost(), offer.getPort(), entry -> {
+                UserRecord record = new UserRecord(entry.getUsername(), entry.getSsn());
+                // Logged as the origin's, so a restart recovers this stream's position and no other
+                logRecord(offer.getSequence(), originInfo.getId(), record);
+                userStore.put(record.getUsername(), record.getSsn());
+                loaded[0]++;
+                return true;
+            });
+            endLogBatch();
+            stream.getLastSequence().accumulateAndGet(offer.getSequence(), Math::max);
+            stream.getApplied().advance(stream.getLastSequence().get());
+        } finally {
+            stream.getApplyLock().unlock();
+        }
+        publishInvalidations(Collections.emptyList(), true, originInfo.getId(), stream.getLastSequence().get());
+        Log.info("Node " + nodeId + " loaded " + loaded[0] + " users from snapshot in "
+                + (System.nanoTime() - start) / 1000000 + " ms.");
+    }
+
+    private void handleInvalidationSubscribe(Frame frame) throws IOException {
+        invalidationSubscribers.add(frame.getConnection());
+        Log.info("Node " + nodeId + " has " + invalidationSubscribers.size() + " invalidation subscribers.");
+        frame.reply(new Acknowledgment("Subscribed."));
+    }
+
+    // Tell near caches which users just changed. Called after applyLock is released, so a slow subscriber
+    // holds up only the thread that applied the batch; one whose connection has gone is dropped.
+    private void publishInvalidations(List<UserRecord> records, boolean clearAll, int origin, long sequence) {
+        if (invalidationSubscribers.isEmpty() || (records.isEmpty() && !clearAll)) {
+            return;
+        }
+        List<String> usernames = new ArrayList<>(records.size());
+        for (UserRecord record : records) {
+            usernames.add(record.getUsername());
+        }
+        Invalidation invalidation = new Invalidation(usernames, clearAll, origin, sequence, NearCache.currentTimeMicros());
+        for (Connection subscriber : invalidationSubscribers) {
+            try {
+                subscriber.write(Frame.NO_REPLY, invalidation);
+            } catch (IOException e) {
+                invalidationSubscribers.remove(subscriber);
+                subscriber.close();
+            }
+        }
+    }
+
+    // Serves this node's own stream, the writes it sequenced, or on a newly elected primary the previous
+    // primary's. Only its own can be served as a snapshot; for another, whatever the log still holds.
+    private void handleCatchUpRequest(CatchUpRequest req, Frame frame) throws IOException {
+        int origin = req.getOrigin();
+        long current = stream(origin).getLastSequence().get();
+        long behind = current - req.getFromSequence() + 1;
+        if (origin == nodeId && (writeAheadLog == null || behind > Config.getLong("userstore.catchup.snapshot.threshold", 1000000))) {
+            frame.reply(new CatchUpResponse(new long[0], Collections.emptyList(), current, true));
+            return;
+        }
+        List<WriteAheadLog.Entry> entries = writeAheadLog == null ? Collections.emptyList()
+                : writeAheadLog.readFrom(origin, req.getFromSequence(), Math.max(1, req.getMaxRecords()));
+        long[] sequences = new long[entries.size()];
+        List<UserRecord> records = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            WriteAheadLog.Entry entry = entries.get(i);
+            sequences[i] = entry.getSeq();
+            records.add(new UserRecord(entry.getUsername(), entry.getSsn()));
+        }
+        frame.reply(new CatchUpResponse(sequences, records, current, false));
+    }
+
+    // One page of a scan, at most scanMaxPage users. Each page is a short walk of the index with a lookup
+    // per user, so point reads never wait behind a long scan; the page shows every user as it was when
+    // that user was read.
+    private void handleScanRequest(ScanRequest req, Frame frame) throws IOException {
+        UsernameIndex index = userStore.getIndex();
+        if (index == null) {
+            frame.reply(new ErrorMessage("Node " + nodeId + " keeps no username index."));
+            return;
+        }
+        if (req.getStart() == null) {
+            frame.reply(new ErrorMessage("Scan needs a start."));
+            return;
+        }
+        int limit = Math.max(1, Math.min(req.getLimit(), scanMaxPage));
+        List<String> usernames = index.range(req.getStart(), req.getEnd(), limit);
+        List<UserRecord> records = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            String ssn = userStore.get(username);
+            if (ssn != null) {
+                records.add(new UserRecord(username, ssn));
+            }
+        }
+        // The smallest string after the last username is where the next page picks up
+        String nextStart = usernames.size() < limit ? null : usernames.get(usernames.size() - 1) + '\0';
+        frame.reply(new ScanResponse(records, nextStart));
+        if (Log.isDebugEnabled()) {
+            Log.debug("Node " + nodeId + " handled ScanRequest from " + req.getStart() + ": " + records.size() + " users.");
+        }
+    }
+
+    // Anti-entropy runs in the background and yields to foreground work: a round is skipped while
+    // catch-up is running, since the stores are known to differ then, or while reads are busy
+    private void scheduleAntiEntropy() {
+        if (joining || catchUpRunning.get() || (readLimit != null && readLimit.getInFlight() > readLimit.getLimit() / 2)) {
+            return;
+        }
+        if (antiEntropyRunning.compareAndSet(false, true)) {
+            catchUpPool.execute(() -> {
+                try {
+                    runAntiEntropy();
+                } finally {
+                    antiEntropyRunning.set(false);
+                }
+            });
+        }
+    }
+
+    // Compare with one replica per round, taking turns: the primary, or with partitioning every other
+    // member, each the authority on the users it sequences
+    private void runAntiEntropy() {
+        List<NodeInfo> sources = new ArrayList<>(catchUpSources());
+        sources.removeIf(node -> node.getId() == nodeId);
+        if (sources.isEmpty()) {
+            return;
+        }
+        NodeInfo replica = sources.get(Math.floorMod(antiEntropyRound++, sources.size()));
+        try {
+            List<Integer> leaves = antiEntropy.findDifferingLeaves(peers.get(replica));
+            if (leaves.isEmpty()) {
+                return;
+            }
+            Message resp = peers.get(replica).call(new TreeLeavesRequest(antiEntropy.getTree().getDepth(), new ArrayList<>(leaves)));
+            if (!(resp instanceof TreeLeavesResponse)) {
+                Log.warn("Node " + nodeId + " got unexpected anti-entropy reply: " + resp.getClass().getSimpleName());
+                return;
+            }
+            List<UserRecord> missing = new ArrayList<>();
+            int repaired = repairFrom((TreeLeavesResponse) resp, leaves, missing);
+            Log.info("Node " + nodeId + " found " + leaves.size() + " key ranges differing from Node " + replica.getId()
+                    + "; repaired " + repaired + " users" + (missing.isEmpty() ? "." : ", and " + missing.size() + " it lacks go to it."));
+            if (!missing.isEmpty()) {
+                Message ack = peers.get(replica).call(new MultiPutRequest(missing, true));
+                if (ack instanceof Acknowledgment) {
+                    antiEntropy.repaired(missing.size());
+                } else {
+                    Log.warn("Node " + nodeId + " could not write " + missing.size() + " users through Node " + replica.getId() + ": "
+                            + (ack instanceof ErrorMessage ? ((ErrorMessage) ack).getError() : ack.getClass().getSimpleName()));
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Node " + nodeId + " anti-entropy with Node " + replica.getId() + " failed: " + e.getMessage());
+        }
+    }
+
+    // Take the replica's value for every differing user it sequences. Skipped if this node has applied
+    // writes from the replica that the reply predates, since those could be newer than what it carries;
+    // a later round looks again.
+    //
+    // Unpartitioned, users in the leaves that the reply lacks go into missing, to be written through the
+    // primary if it still does not have them. Nothing is ever deleted, so these are writes a primary since
+    // deposed applied without reaching a quorum, whose clients were told they might not have happened, or
+    // writes newer than the reply. The primary checks as it commits them, after every write it has already
+    // sequenced, so none of its own values is overwritten, and the replicas converge on the union instead
+    // of differing for good.
+    private int repairFrom(TreeLeavesResponse resp, List<Integer> leaves, List<UserRecord> missing) {
+        int origin = resp.getOriginId();
+        OriginStream stream = stream(origin);
+        List<UserRecord> repaired = new ArrayList<>();
+        long sequence;
+        stream.getApplyLock().lock();
+        try {
+            sequence = stream.getLastSequence().get();
+            if (sequence > resp.getSequence()) {
+                return 0;
+            }
+            for (UserRecord record : resp.getRecords()) {
+                if (originOf(record.getUsername()) != origin || record.getSsn().equals(userStore.get(record.getUsername()))) {
+                    continue;
+                }
+                // Unsequenced, so it is logged without moving this node's replication position
+                logRecord(sequence, origin, record);
+                userStore.put(record.getUsername(), record.getSsn());
+                repaired.add(record);
+            }
+            endLogBatch();
+        } finally {
+            stream.getApplyLock().unlock();
+        }
+        if (!partitioned) {
+            // Outside the lock, which would otherwise hold up the primary's stream for the whole walk
+            collectMissing(resp, leaves, missing);
+        }
+        antiEntropy.repaired(repaired.size());
+        publishInvalidations(repaired, false, origin, sequence);
+        return repaired.size();
+    }
+
+    private void collectMissing(TreeLeavesResponse resp, List<Integer> leaves, List<UserRecord> missing) {
+        Set<String> present = new HashSet<>();
+        for (UserRecord record : resp.getRecords()) {
+            present.add(record.getUsername());
+        }
+        for (UserRecord record : usersIn(leaves)) {
+            if (!present.contains(record.getUsername())) {
+                missing.add(record);
+            }
+        }
+    }
+
+    // The users in the given leaves, read through the tree's per-leaf names rather than a walk of the store
+    private List<UserRecord> usersIn(List<Integer> leaves) {
+        HashTree tree = antiEntropy.getTree();
+        List<UserRecord> records = new ArrayList<>();
+        for (int leaf : new TreeSet<>(leaves)) {
+            for (String username : tree.usernamesIn(leaf)) {
+                String ssn = userStore.get(username);
+                if (ssn != null) {
+                    records.add(new UserRecord(username, ssn));
+                }
+            }
+        }
+        return records;
+    }
+
+    private void handleTreeHashRequest(TreeHashRequest req, Frame frame) throws IOException {
+        if (antiEntropy == null || req.getDepth() != antiEntropy.getTree().getDepth()) {
+            frame.reply(new ErrorMessage("No hash tree of depth " + req.getDepth() + " on Node " + nodeId + "."));
+            return;
+        }
+        HashTree tree = antiEntropy.getTree();
+        List<Integer> nodes = req.getNodes();
+        long[] hashes = new long[nodes.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            int node = nodes.get(i);
+            hashes[i] = node >= HashTree.ROOT && node < tree.getNodeCount() ? tree.get(node) : 0;
+        }
+        frame.reply(new TreeHashResponse(hashes));
+    }
+
+    private void handleTreeLeavesRequest(TreeLeavesRequest req, Frame frame) throws IOException {
+        if (antiEntropy == null || req.getDepth() != antiEntropy.getTree().getDepth()) {
+            frame.reply(new ErrorMessage("No hash tree of depth " + req.getDepth() + " on Node " + nodeId + "."));
+            return;
+        }
+        long sequence = stream(nodeId).getApplied().current(); // Read before the lookups, so every value is at least this new
+        frame.reply(new TreeLeavesResponse(nodeId, sequence, usersIn(req.getLeaves())));
+    }
+
+    // Streams the store as it was when the request arrived, in compressed chunks, while writes carry on: the
+    // view opens between two writes, and from then on writers only save the values they replace. With
+    // partitioning, only the partitions this node owned at the start, as in a snapshot.
+    private void handleExportRequest(ExportRequest req, Frame frame) throws IOException {
+        int chunkRows = Math.max(1, Math.min(req.getChunkRows(), exportMaxChunk));
+        PartitionMap map = partitionMap;
+        long start = System.nanoTime();
+        long[] exported = {0};
+        List<UserRecord> chunk = new ArrayList<>(chunkRows);
+        try (PointInTimeView view = openView()) {
+            view.forEach((username, ssn) -> {
+                if (map != null && map.ownerOf(username) != nodeId) {
+                    return;
+                }
+                chunk.add(new UserRecord(username, ssn));
+                if (chunk.size() == chunkRows) {
+                    try {
+                        sendExportChunk(chunk, false, frame);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    exported[0] += chunk.size();
+                    chunk.clear();
+                }
+            });
+            sendExportChunk(chunk, true, frame);
+            exported[0] += chunk.size();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Log.info("Node " + nodeId + " exported " + exported[0] + " users in " + millis + " ms ("
+                    + exported[0] * 1000 / Math.max(1, millis) + " rows/s); " + view.getPreservedCount() + " written meanwhile.");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            rowsExported.add(exported[0]);
+        }
+    }
+
+    private void sendExportChunk(List<UserRecord> chunk, boolean last, Frame frame) throws IOException {
+        frame.getConnection().awaitQueuedBelow(MULTI_GET_QUEUED_BYTES);
+        frame.reply(new ExportChunk(RecordBlock.compress(chunk), chunk.size(), last));
+    }
+
+    // Holds every origin's apply lock, in origin order, just while the view opens, so no write is half done
+    private PointInTimeView openView() {
+        List<Integer> origins = new ArrayList<>(streams.keySet());
+        Collections.sort(origins);
+        List<OriginStream> held = new ArrayList<>(origins.size());
+        try {
+            for (int origin : origins) {
+                OriginStream stream = stream(origin);
+                stream.getApplyLock().lock();
+                held.add(stream);
+            }
+            return userStore.openView();
+        } finally {
+            for (OriginStream stream : held) {
+                stream.getApplyLock().unlock();
+            }
+        }
+    }
+
+    // Snapshots are fuzzy: writes keep landing while the store is copied, so the copy holds everything up to
+    // the captured sequence and possibly some later writes, which catch-up from that sequence replays again.
+    // With partitioning a snapshot covers only the partitions this node owns, as only for those is this
+    // node's copy sure to be the newest.
+    private void handleSnapshotRequest(Frame frame) throws IOException {
+        OriginStream own = stream(nodeId);
+        long captured;
+        own.getApplyLock().lock();
+        try {
+            captured = own.getLastSequence().get(); // Every write up to here is already in userStore
+        } finally {
+            own.getApplyLock().unlock();
+        }
+        long sequence = captured;
+        PartitionMap map = partitionMap;
+        List<WriteAheadLog.Entry> entries = new ArrayList<>(userStore.size());
+        userStore.forEach((username, ssn) -> {
+            if (map == null || map.ownerOf(username) == nodeId) {
+                entries.add(new WriteAheadLog.Entry(sequence, nodeId, username, ssn));
+            }
+        });
+        Path file = Files.createTempFile("userstore-snapshot-" + nodeId + "-", ".wal");
+        int port;
+        try {
+            WriteAheadLog.writeRecords(file, entries);
+            port = SnapshotTransfer.serve(file, catchUpPool, 30000);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        frame.reply(new SnapshotOffer(port, Files.size(file), sequence));
+        Log.info("Node " + nodeId + " offered a snapshot of " + entries.size() + " users at sequence " + sequence);
+    }
+
+    private void acknowledgeReplication(Frame frame) throws IOException {
+        if (frame.getRequestId() != Frame.NO_REPLY) {
+            frame.reply(REPLICATION_ACK);
+        }
+    }
+
+    private OriginStream stream(int origin) {
+        return streams.computeIfAbsent(origin, id -> new OriginStream());
+    }
+
+    private String sequences() {
+        Map<Integer, Long> positions = new TreeMap<>();
+        for (Map.Entry<Integer, OriginStream> entry : streams.entrySet()) {
+            positions.put(entry.getKey(), entry.getValue().getLastSequence().get());
+        }
+        return positions.toString();
+    }
+
+    // The node that sequences writes to this user: its partition's owner, or the primary
+    private int originOf(String username) {
+        PartitionMap map = partitionMap;
+        return map != null ? map.ownerOf(username) : getPrimaryInfo().getId();
+    }
+
+    private static long handoffKey(long version, int partition) {
+        return (version << 20) | partition;
+    }
+
+    // Controller side: admit a node as a member, then later as an owner, and tell everyone
+    private synchronized void handleJoinRequest(JoinRequest req, Frame frame) throws IOException {
+        if (!partitioned) {
+            frame.reply(new ErrorMessage("Partitioning is not enabled."));
+            return;
+        }
+        if (!isPrimary) {
+            forwardTo(getPrimaryInfo(), req, frame);
+            return;
+        }
+        PartitionMap next = partitionMap.withMember(req.getNode(), req.isReady());
+        if (next != partitionMap) {
+            Log.info("Node " + nodeId + " admitting Node " + req.getNode().getId() + (req.isReady() ? " as an owner" : " as a member"));
+            applyPartitionMap(next);
+            PartitionMapUpdate update = new PartitionMapUpdate(next);
+            for (NodeInfo member : next.getMembers()) {
+                if (member.getId() != nodeId) {
+                    sendMessage(member.getHost(), member.getPort(), update);
+                }
+            }
+        }
+        frame.reply(new Acknowledgment("Partition map version " + next.getVersion() + "."));
+    }
+
+    private void askToJoin(boolean ready) {
+        NodeInfo controller = getPrimaryInfo();
+        try {
+            Message resp = peers.get(controller).call(new JoinRequest(new NodeInfo(nodeId, host, port, isPrimary), ready));
+            Log.info("Node " + nodeId + " asked Node " + controller.getId() + " to join" + (ready ? " as an owner: " : ": ")
+                    + (resp instanceof Acknowledgment ? ((Acknowledgment) resp).getMessage() : resp.getClass().getSimpleName()));
+        } catch (IOException e) {
+            Log.warn("Node " + nodeId + " could not reach controller Node " + controller.getId() + ": " + e.getMessage());
+        }
+    }
+
+    private void handlePartitionMapUpdate(PartitionMapUpdate update) {
+        if (partitioned) {
+            applyPartitionMap(update.toPartitionMap());
+        }
+    }
+
+    // Switch to a newer partition map. Partitions this node gains from another owner wait for that owner's
+    // handoff (or for handoffTimeoutMillis, should it never come); partitions it loses are fenced by the
+    // batcher thread, which is woken up to do so.
+    private synchronized void applyPartitionMap(PartitionMap next) {
+        PartitionMap current = partitionMap;
+        if (current != null && next.getVersion() <= current.getVersion()) {
+            return;
+        }
+        for (NodeInfo member : next.getMembers()) {
+            if (member.getId() != nodeId && otherNodes.stream().noneMatch(node -> node.getId() == member.getId())) {
+                otherNodes.add(member);
+            }
+        }
+        int gained = 0;
+        for (int p = 0; current != null && p < next.getPartitions(); p++) {
+            int previousOwner = current.ownerOfPartition(p);
+            if (next.ownerOfPartition(p) == nodeId && previousOwner != nodeId && previousOwner >= 0) {
+                handoffs.computeIfAbsent(handoffKey(next.getVersion(), p), key -> new CompletableFuture<>())
+                        .completeOnTimeout(null, handoffTimeoutMillis, TimeUnit.MILLISECONDS);
+                gained++;
+            }
+        }
+        handoffs.keySet().removeIf(key -> (key >>> 20) < next.getVersion());
+        partitionMap = next;
+        if (joining && next.isOwner(nodeId)) {
+            joining = false;
+        }
+        writeBatcher.wake();
+        Log.info("Node " + nodeId + " now on partition map version " + next.getVersion() + ": owns "
+                + next.countOwnedBy(nodeId) + " of " + next.getPartitions() + " partitions, " + gained + " newly");
+    }
+
+    // The new owner's side of a move: start writing once this node has applied the old owner's writes too
+    private void handlePartitionHandoff(PartitionHandoff handoff) {
+        SequenceGate applied = stream(handoff.getFromNodeId()).getApplied();
+        applied.await(handoff.getFenceSequence(), handoffTimeoutMillis).thenAccept(reached -> {
+            if (!reached) {
+                scheduleCatchUp();
+            }
+            for (int partition : handoff.getPartitions()) {
+                handoffs.computeIfAbsent(handoffKey(handoff.getVersion(), partition), key -> new CompletableFuture<>()).complete(null);
+            }
+            Log.info("Node " + nodeId + " took over " + handoff.getPartitions().size() + " partitions from Node "
+                    + handoff.getFromNodeId());
+        });
+    }
+
+    private void handlePartitionMapRequest(Frame frame) throws IOException {
+        PartitionMap map = partitionMap;
+        frame.reply(map != null ? new PartitionMapUpdate(map) : new ErrorMessage("Partitioning is not enabled."));
+    }
+
+    // The elected primary, or while one is being elected the last; without elections, the configured one
     private NodeInfo getPrimaryInfo() {
+        if (election != null) {
+            int leader = election.getKnownLeaderId();
+            return getNodeInfoById(leader != LeaderElection.NO_LEADER ? leader : configuredPrimaryId());
+        }
         for (NodeInfo node : otherNodes) {
             if (node.isPrimary()) {
                 return node;
@@ -184,91 +1825,108 @@ public class Node {
         return new NodeInfo(nodeId, host, port, isPrimary);
     }
 
-    private void handleTokenRequest(TokenRequest req) {
-        System.out.println("Node " + nodeId + " received TokenRequest from Node " + req.getRequesterId());
-        if (hasToken && !isTokenRequested) {
-            System.out.println("Node " + nodeId + " is granting the token to Node " + req.getRequesterId());
-            // Grant token
-            sendMessage(getNodeInfoById(req.getRequesterId()).getHost(),
-                        getNodeInfoById(req.getRequesterId()).getPort(),
-                        new TokenGrant());
-            hasToken = false;
-            tokenHolderId = req.getRequesterId();
-            broadcastTokenHolderUpdate(tokenHolderId);
-        } else {
-            // Add to queue
-            if (!requestQueue.contains(req.getRequesterId())) {
-                requestQueue.add(req.getRequesterId());
+    private int configuredPrimaryId() {
+        for (NodeInfo node : otherNodes) {
+            if (node.isPrimary()) {
+                return node.getId();
             }
         }
+        return nodeId;
     }
 
-    private void handleTokenGrant() {
-        hasToken = true;
-        isTokenRequested = false;
-        System.out.println("Node " + nodeId + " received the token.");
-        synchronized (this) {
-            notifyAll(); // Notify any waiting threads that the token has been granted
+    // Runs every heartbeatMillis: the primary sends its heartbeat, any other node checks whether it has
+    // gone without one long enough to stand
+    private void electionTick() {
+        try {
+            Heartbeat heartbeat = election.heartbeat();
+            if (heartbeat != null) {
+                sendHeartbeats(heartbeat);
+                return;
+            }
+            VoteRequest request = election.startElectionIfDue();
+            if (request != null) {
+                requestVotes(request);
+            }
+        } catch (RuntimeException e) {
+            // Thrown out of a scheduled task, it would stop the timer for good
+            Log.error("Node " + nodeId + " election tick failed", e);
         }
     }
 
-    private void handleTokenRelease() {
-        if (!requestQueue.isEmpty()) {
-            int nextHolder = requestQueue.poll();
-            sendMessage(getNodeInfoById(nextHolder).getHost(),
-                        getNodeInfoById(nextHolder).getPort(),
-                        new TokenGrant());
-            hasToken = false;
-            tokenHolderId = nextHolder;
-            broadcastTokenHolderUpdate(tokenHolderId);
-        } else {
-            // No pending requests; keep the token
-            hasToken = true;
-            tokenHolderId = nodeId;
-            // No need to broadcast if the token holder hasn't changed
+    // Sent from the catch-up pool, since reaching a dead node can block for the connect timeout
+    private void sendHeartbeats(Heartbeat heartbeat) {
+        for (NodeInfo other : otherNodes) {
+            if (!heartbeatsInFlight.add(other.getId())) {
+                continue;
+            }
+            catchUpPool.execute(() -> peers.get(other).request(heartbeat)
+                    .orTimeout(electionTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .whenComplete((resp, error) -> {
+                        heartbeatsInFlight.remove(other.getId());
+                        if (resp instanceof HeartbeatResponse) {
+                            election.onHeartbeatResponse(other.getId(), heartbeat.getTerm(), (HeartbeatResponse) resp);
+                        }
+                    }));
         }
     }
 
-    private void requestToken() {
-        if (!isTokenRequested) {
-            isTokenRequested = true;
-            System.out.println("Node " + nodeId + " requesting token from Node " + tokenHolderId);
-            if (tokenHolderId != nodeId && tokenHolderId != -1) {
-                // Send token request to current token holder
-                NodeInfo tokenHolderInfo = getNodeInfoById(tokenHolderId);
-                sendMessage(tokenHolderInfo.getHost(), tokenHolderInfo.getPort(), new TokenRequest(nodeId));
-            } else {
-                // Token holder ID is unknown or self, attempt to recover token
-                System.out.println("Token holder unknown or self; assuming token.");
-                hasToken = true;
-                tokenHolderId = nodeId;
-                broadcastTokenHolderUpdate(tokenHolderId);
-                synchronized (this) {
-                    notifyAll(); // Notify any waiting threads that the token has been granted
-                }
-            }
+    private void requestVotes(VoteRequest request) {
+        for (NodeInfo other : otherNodes) {
+            catchUpPool.execute(() -> peers.get(other).request(request)
+                    .orTimeout(electionTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .thenAccept(resp -> {
+                        if (resp instanceof VoteResponse && election.onVoteResponse(other.getId(), request.getTerm(), (VoteResponse) resp)) {
+                            // Tell the others at once rather than at the next tick; they confirm the win
+                            Heartbeat heartbeat = election.heartbeat();
+                            if (heartbeat != null) {
+                                sendHeartbeats(heartbeat);
+                            }
+                        }
+                    }));
         }
     }
 
-    private void releaseToken() {
-        // Send token release message
-        System.out.println("Node " + nodeId + " releasing the token.");
-        handleTokenRelease();
+    private void handleHeartbeat(Heartbeat heartbeat, Frame frame) throws IOException {
+        if (election == null) {
+            frame.reply(new ErrorMessage("Node " + nodeId + " does not take part in elections."));
+            return;
+        }
+        frame.reply(election.onHeartbeat(heartbeat));
+        if (election.getLaggingOrigin() >= 0) {
+            scheduleCatchUp();
+        }
     }
 
-    private void broadcastTokenHolderUpdate(int newTokenHolderId) {
-        // Broadcast to all nodes
-        TokenHolderUpdate updateMsg = new TokenHolderUpdate(newTokenHolderId);
-        for (NodeInfo node : otherNodes) {
-            if (node.getId() != nodeId) {
-                sendMessage(node.getHost(), node.getPort(), updateMsg);
-            }
+    private void handleVoteRequest(VoteRequest req, Frame frame) throws IOException {
+        frame.reply(election != null ? election.onVoteRequest(req) : new VoteResponse(0, false));
+    }
+
+    // Called by the election, under its lock, whenever the primary changes; NO_LEADER while one is being
+    // elected. Writes queued here go wherever they now belong.
+    private void leaderChanged(int leader) {
+        isPrimary = leader == nodeId;
+        if (leader == LeaderElection.NO_LEADER) {
+            return;
+        }
+        writeBatcher.wake();
+        if (leader != nodeId) {
+            Log.info("Node " + nodeId + " now follows Node " + leader + " as primary");
+            scheduleCatchUp();
         }
     }
 
-    private void handleTokenHolderUpdate(TokenHolderUpdate msg) {
-        tokenHolderId = msg.getNewTokenHolderId();
-        System.out.println("Node " + nodeId + " updated token holder to Node " + tokenHolderId);
+    private void replicaAcked(int backupId) {
+        if (election != null) {
+            election.acked(backupId);
+        }
+    }
+
+    private void retryLater(Frame frame, String reason) {
+        try {
+            frame.reply(new RetryAfter(heartbeatMillis, reason));
+        } catch (IOException e) {
+            Log.warn("Node " + nodeId + " could not turn away " + frame.getMessage().getClass().getSimpleName() + ": " + e);
+        }
     }
 
     private NodeInfo getNodeInfoById(int id) {
@@ -280,15 +1938,10 @@ public class Node {
     }
 
     private void sendMessage(String host, int port, Message msg) {
-        try (Socket socket = new Socket(host, port);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-            out.writeObject(msg);
-            out.flush(); // Ensure all data is sent
-            // If expecting a response, read it here
-            // Message response = (Message) in.readObject();
+        try {
+            peers.get(host, port).send(msg);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Node " + nodeId + " could not send " + msg.getClass().getSimpleName() + " to " + host + ":" + port, e);
         }
     }
     
@@ -1,4 +1,7 @@
-public class NodeInfo {
+import java.io.Serializable;
+
+public class NodeInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
     private int id;
     private String host;
     private int port;
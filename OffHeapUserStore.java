@@ -0,0 +1,338 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+// Compact store kept entirely in direct memory, so tens of millions of users add nothing for the GC to trace.
+//
+// Records live in append-only slabs as [u16 keyLength][key UTF-8][u16 ssnLength][ssn UTF-8]. An
+// open-addressed index of 8-byte slots points at them; each slot packs 24 bits of the key's hash (to skip
+// most key comparisons), a 14-bit slab number and a 26-bit offset. An empty slot is zero.
+//
+// Writers hold a StampedLock; readers run optimistically and only fall back to the read lock if a write
+// overlapped them. Overwriting an SSN of the same encoded length happens in place; otherwise the new record
+// is appended and the old one becomes garbage, which is counted but not reclaimed.
+public class OffHeapUserStore extends UserStore {
+    private static final int OFFSET_BITS = 26;
+    private static final int SLAB_BITS = 14;
+    private static final int MAX_SLAB_BYTES = 1 << OFFSET_BITS;
+    private static final int MAX_SLABS = 1 << SLAB_BITS;
+    private static final int PAGE_BITS = 24; // Index slots per direct buffer, keeping each under 2 GiB
+    private static final int PAGE_SLOTS = 1 << PAGE_BITS;
+    private static final double MAX_LOAD = 0.7;
+    private static final int RECORD_START = 8; // Nothing is stored at offset 0, so no slot encodes to zero
+    private static final int SCAN_CHUNK = 1024; // Records visited per read-lock hold in forEach
+
+    private StampedLock lock;
+    private int slabBytes;
+    private volatile Table table;
+    private volatile ByteBuffer[] slabs; // Replaced, never mutated, when a slab is added
+    private int size;
+    private long garbageBytes;
+
+    public OffHeapUserStore(int slabBytes, int initialCapacity) {
+        if (slabBytes > MAX_SLAB_BYTES) {
+            throw new IllegalArgumentException("Slab size is limited to " + MAX_SLAB_BYTES + " bytes");
+        }
+        this.lock = new StampedLock();
+        this.slabBytes = slabBytes;
+        this.table = new Table(Long.highestOneBit(Math.max(16, initialCapacity - 1)) << 1);
+        this.slabs = new ByteBuffer[] {newSlab()};
+    }
+
+    @Override
+    public String get(String username) {
+        byte[] key = username.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                String ssn = find(key, hash);
+                if (lock.validate(stamp)) {
+                    return ssn;
+                }
+            } catch (RuntimeException e) {
+                // Raced with a writer and read a half-updated structure; retry under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(String username, String ssn) {
+        long stamp = lock.writeLock();
+        try {
+            putLocked(username, ssn);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void putAll(List<UserRecord> records) {
+        long stamp = lock.writeLock();
+        try {
+            for (UserRecord record : records) {
+                putLocked(record.getUsername(), record.getSsn());
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Walks the slabs rather than the index: records never move, so a concurrent resize cannot make the
+    // walk skip anything. A record is live if the index still points at it.
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        List<String> keys = new ArrayList<>(SCAN_CHUNK);
+        List<String> values = new ArrayList<>(SCAN_CHUNK);
+        int slabIndex = 0;
+        int offset = RECORD_START;
+        while (true) {
+            long stamp = lock.readLock();
+            try {
+                ByteBuffer[] current = slabs;
+                if (slabIndex >= current.length) {
+                    return;
+                }
+                ByteBuffer slab = current[slabIndex];
+                int end = slab.position();
+                for (int visited = 0; offset < end && visited < SCAN_CHUNK; visited++) {
+                    int keyLength = slab.getShort(offset) & 0xFFFF;
+                    byte[] key = new byte[keyLength];
+                    slab.get(offset + 2, key);
+                    int ssnOffset = offset + 2 + keyLength;
+                    int ssnLength = slab.getShort(ssnOffset) & 0xFFFF;
+                    long slot = table.get(probe(table, key, hash(key)));
+                    if (slot != 0 && slabOf(slot) == slabIndex && offsetOf(slot) == offset) {
+                        keys.add(new String(key, StandardCharsets.UTF_8));
+                        values.add(readString(slab, ssnOffset));
+                    }
+                    offset = ssnOffset + 2 + ssnLength;
+                }
+                if (offset >= end) {
+                    if (slabIndex == current.length - 1 && keys.isEmpty()) {
+                        return;
+                    }
+                    if (slabIndex < current.length - 1) {
+                        slabIndex++;
+                        offset = RECORD_START;
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                action.accept(keys.get(i), values.get(i));
+            }
+            keys.clear();
+            values.clear();
+        }
+    }
+
+    @Override
+    public long memoryBytes() {
+        long stamp = lock.readLock();
+        try {
+            ByteBuffer[] current = slabs;
+            long slabBytesUsed = (long) (current.length - 1) * slabBytes + current[current.length - 1].position();
+            return table.capacity * Long.BYTES + slabBytesUsed;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    private void putLocked(String username, String ssn) {
+        byte[] key = username.getBytes(StandardCharsets.UTF_8);
+        byte[] value = ssn.getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xFFFF || value.length > 0xFFFF) {
+            throw new IllegalArgumentException("Username or SSN too long for the off-heap store");
+        }
+        int hash = hash(key);
+        long index = probe(table, key, hash);
+        long slot = table.get(index);
+        if (slot != 0) {
+            ByteBuffer slab = slabs[slabOf(slot)];
+            int ssnOffset = offsetOf(slot) + 2 + key.length;
+            int oldLength = slab.getShort(ssnOffset) & 0xFFFF;
+            if (getHashTree() != null || hasOpenViews()) {
+                String oldSsn = readString(slab, ssnOffset);
+                if (hasOpenViews()) {
+                    updating(username, oldSsn);
+                }
+                updated(username, oldSsn, ssn);
+            }
+            if (oldLength == value.length) {
+                slab.put(ssnOffset + 2, value);
+                return;
+            }
+            garbageBytes += 4 + key.length + oldLength;
+            table.set(index, append(key, value, hash));
+            return;
+        }
+        if (hasOpenViews()) {
+            updating(username, null);
+        }
+        if (size + 1 > table.capacity * MAX_LOAD) {
+            resize();
+            index = probe(table, key, hash);
+        }
+        table.set(index, append(key, value, hash));
+        size++;
+        updated(username, null, ssn);
+    }
+
+    // Index of the slot holding key, or of the empty slot where it would go
+    private long probe(Table t, byte[] key, int hash) {
+        long mask = t.capacity - 1;
+        long tag = tagOf(hash);
+        for (long i = hash & mask; ; i = (i + 1) & mask) {
+            long slot = t.get(i);
+            if (slot == 0 || ((slot >>> (OFFSET_BITS + SLAB_BITS)) == tag && keyEquals(slot, key))) {
+                return i;
+            }
+        }
+    }
+
+    private String find(byte[] key, int hash) {
+        long slot = table.get(probe(table, key, hash));
+        if (slot == 0) {
+            return null;
+        }
+        ByteBuffer slab = slabs[slabOf(slot)];
+        return readString(slab, offsetOf(slot) + 2 + key.length);
+    }
+
+    private boolean keyEquals(long slot, byte[] key) {
+        ByteBuffer slab = slabs[slabOf(slot)];
+        int offset = offsetOf(slot);
+        if ((slab.getShort(offset) & 0xFFFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(offset + 2 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long append(byte[] key, byte[] value, int hash) {
+        int needed = 4 + key.length + value.length;
+        ByteBuffer[] current = slabs;
+        ByteBuffer slab = current[current.length - 1];
+        if (slab.remaining() < needed) {
+            if (current.length >= MAX_SLABS) {
+                throw new IllegalStateException("Off-heap store is full");
+            }
+            ByteBuffer[] grown = new ByteBuffer[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            slab = newSlab();
+            grown[current.length] = slab;
+            slabs = grown;
+            current = grown;
+        }
+        int offset = slab.position();
+        slab.putShort((short) key.length).put(key).putShort((short) value.length).put(value);
+        return (tagOf(hash) << (OFFSET_BITS + SLAB_BITS)) | ((long) (current.length - 1) << OFFSET_BITS) | offset;
+    }
+
+    private void resize() {
+        Table old = table;
+        Table grown = new Table(old.capacity * 2);
+        for (long i = 0; i < old.capacity; i++) {
+            long slot = old.get(i);
+            if (slot != 0) {
+                ByteBuffer slab = slabs[slabOf(slot)];
+                int offset = offsetOf(slot);
+                byte[] key = new byte[slab.getShort(offset) & 0xFFFF];
+                slab.get(offset + 2, key);
+                long mask = grown.capacity - 1;
+                long j = hash(key) & mask;
+                while (grown.get(j) != 0) {
+                    j = (j + 1) & mask;
+                }
+                grown.set(j, slot);
+            }
+        }
+        table = grown;
+    }
+
+    private ByteBuffer newSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabBytes);
+        slab.position(RECORD_START);
+        return slab;
+    }
+
+    private static String readString(ByteBuffer slab, int offset) {
+        byte[] bytes = new byte[slab.getShort(offset) & 0xFFFF];
+        slab.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int slabOf(long slot) {
+        return (int) (slot >>> OFFSET_BITS) & (MAX_SLABS - 1);
+    }
+
+    private static int offsetOf(long slot) {
+        return (int) slot & (MAX_SLAB_BYTES - 1);
+    }
+
+    private static long tagOf(int hash) {
+        return (hash >>> 8) & 0xFFFFFFL;
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with a murmur3 mix so the low bits spread well
+    private static int hash(byte[] key) {
+        int h = 0x811C9DC5;
+        for (byte b : key) {
+            h = (h ^ b) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // The index: a power-of-two number of 8-byte slots spread over direct buffers of PAGE_SLOTS each
+    private static class Table {
+        private final long capacity;
+        private final ByteBuffer[] pages;
+
+        private Table(long capacity) {
+            this.capacity = capacity;
+            int pageCount = (int) ((capacity + PAGE_SLOTS - 1) >>> PAGE_BITS);
+            this.pages = new ByteBuffer[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                long slots = Math.min(PAGE_SLOTS, capacity - ((long) i << PAGE_BITS));
+                pages[i] = ByteBuffer.allocateDirect((int) slots * Long.BYTES);
+            }
+        }
+
+        private long get(long index) {
+            return pages[(int) (index >>> PAGE_BITS)].getLong((int) (index & (PAGE_SLOTS - 1)) * Long.BYTES);
+        }
+
+        private void set(long index, long slot) {
+            pages[(int) (index >>> PAGE_BITS)].putLong((int) (index & (PAGE_SLOTS - 1)) * Long.BYTES, slot);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// How far this node has got through the writes sequenced by one origin node. A single-primary cluster has
+// one origin, the primary; with partitioning every owner sequences the writes to its own partitions.
+public class OriginStream {
+    private AtomicLong lastSequence; // Highest sequence from this origin applied here
+    private SequenceGate applied; // Trails lastSequence until the write is visible in userStore
+    private ReentrantLock applyLock; // Orders log appends and store updates with this origin's sequence numbers
+
+    public OriginStream() {
+        this.lastSequence = new AtomicLong();
+        this.applied = new SequenceGate();
+        this.applyLock = new ReentrantLock();
+    }
+
+    public AtomicLong getLastSequence() {
+        return lastSequence;
+    }
+
+    public SequenceGate getApplied() {
+        return applied;
+    }
+
+    public ReentrantLock getApplyLock() {
+        return applyLock;
+    }
+}
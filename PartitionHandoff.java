@@ -0,0 +1,39 @@
+import java.util.List;
+
+// From a partition's previous owner to its new one: every replica has applied the previous owner's writes
+// up to fenceSequence, so the new owner may start writing to these partitions
+public class PartitionHandoff extends Message {
+    private static final long serialVersionUID = 1L;
+    private int fromNodeId;
+    private long version; // Partition map version the handoff belongs to
+    private List<Integer> partitions;
+    private long fenceSequence;
+
+    public PartitionHandoff(int fromNodeId, long version, List<Integer> partitions, long fenceSequence) {
+        this.fromNodeId = fromNodeId;
+        this.version = version;
+        this.partitions = partitions;
+        this.fenceSequence = fenceSequence;
+    }
+
+    public int getFromNodeId() {
+        return fromNodeId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Integer> getPartitions() {
+        return partitions;
+    }
+
+    public long getFenceSequence() {
+        return fenceSequence;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.PARTITION_HANDOFF;
+    }
+}
@@ -0,0 +1,135 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Splits the username keyspace into a fixed number of partitions and gives each one an owner by consistent
+// hashing: every owner has VIRTUAL_NODES points on a ring, and a partition belongs to the first point at or
+// after its own hash. Adding an owner only moves the partitions that now land on its points. Members that
+// are not owners yet (a node still catching up) receive replication but sequence nothing.
+public class PartitionMap {
+    private static final int VIRTUAL_NODES = 64;
+
+    private int partitions;
+    private long version;
+    private List<NodeInfo> members;
+    private List<Integer> owners;
+    private int[] ownerOfPartition;
+
+    public PartitionMap(int partitions, long version, List<NodeInfo> members, List<Integer> owners) {
+        this.partitions = partitions;
+        this.version = version;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        this.owners = Collections.unmodifiableList(new ArrayList<>(owners));
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int owner : owners) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash("node-" + owner + "#" + v), owner);
+            }
+        }
+        this.ownerOfPartition = new int[partitions];
+        for (int p = 0; p < partitions; p++) {
+            Map.Entry<Long, Integer> point = ring.ceilingEntry(hash("partition-" + p));
+            if (point == null) {
+                point = ring.firstEntry(); // Wrap around the ring
+            }
+            ownerOfPartition[p] = point == null ? -1 : point.getValue();
+        }
+    }
+
+    // Every configured node owns partitions from the start
+    public static PartitionMap initial(int partitions, List<NodeInfo> nodes) {
+        List<Integer> owners = new ArrayList<>(nodes.size());
+        for (NodeInfo node : nodes) {
+            owners.add(node.getId());
+        }
+        return new PartitionMap(partitions, 1, nodes, owners);
+    }
+
+    // The next version with node added as a member, and as an owner if requested. Returns this map if
+    // nothing would change; an owner is never demoted.
+    public PartitionMap withMember(NodeInfo node, boolean owner) {
+        boolean member = getMember(node.getId()) != null;
+        boolean owning = isOwner(node.getId());
+        if (member && (owning || !owner)) {
+            return this;
+        }
+        List<NodeInfo> nextMembers = new ArrayList<>(members);
+        if (!member) {
+            nextMembers.add(node);
+        }
+        List<Integer> nextOwners = new ArrayList<>(owners);
+        if (owner) {
+            nextOwners.add(node.getId());
+        }
+        return new PartitionMap(partitions, version + 1, nextMembers, nextOwners);
+    }
+
+    public int partitionOf(String username) {
+        return (int) Long.remainderUnsigned(hash(username), partitions);
+    }
+
+    public int ownerOf(String username) {
+        return ownerOfPartition[partitionOf(username)];
+    }
+
+    public int ownerOfPartition(int partition) {
+        return ownerOfPartition[partition];
+    }
+
+    public int countOwnedBy(int nodeId) {
+        int count = 0;
+        for (int owner : ownerOfPartition) {
+            if (owner == nodeId) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean isOwner(int nodeId) {
+        return owners.contains(nodeId);
+    }
+
+    public NodeInfo getMember(int nodeId) {
+        for (NodeInfo member : members) {
+            if (member.getId() == nodeId) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<NodeInfo> getMembers() {
+        return members;
+    }
+
+    public List<Integer> getOwners() {
+        return owners;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, finished with a mixer so nearby keys spread over the whole ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,9 @@
+// Asks a node for its current PartitionMapUpdate, e.g. so a client can send writes straight to their owners
+public class PartitionMapRequest extends Message {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.PARTITION_MAP_REQUEST;
+    }
+}
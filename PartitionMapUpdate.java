@@ -0,0 +1,46 @@
+import java.util.List;
+
+// A version of the partition map, broadcast by the controller whenever membership changes
+public class PartitionMapUpdate extends Message {
+    private static final long serialVersionUID = 1L;
+    private int partitions;
+    private long version;
+    private List<NodeInfo> members;
+    private List<Integer> owners;
+
+    public PartitionMapUpdate(int partitions, long version, List<NodeInfo> members, List<Integer> owners) {
+        this.partitions = partitions;
+        this.version = version;
+        this.members = members;
+        this.owners = owners;
+    }
+
+    public PartitionMapUpdate(PartitionMap map) {
+        this(map.getPartitions(), map.getVersion(), map.getMembers(), map.getOwners());
+    }
+
+    public PartitionMap toPartitionMap() {
+        return new PartitionMap(partitions, version, members, owners);
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<NodeInfo> getMembers() {
+        return members;
+    }
+
+    public List<Integer> getOwners() {
+        return owners;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.PARTITION_MAP_UPDATE;
+    }
+}
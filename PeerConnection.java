@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Client side of a persistent connection to one peer. Many requests can be in flight at once; replies
+// are matched to their callers by request ID. A broken connection is re-established on the next use.
+public class PeerConnection {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+
+    private String host;
+    private int port;
+    private AtomicLong nextRequestId;
+    private volatile Session session;
+    private volatile long generation; // Bumped on every (re)connect
+    private volatile Consumer<Message> pushHandler;
+
+    public PeerConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.nextRequestId = new AtomicLong(Frame.NO_REPLY);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // Receives messages the peer sends without being asked, e.g. invalidations
+    public void setPushHandler(Consumer<Message> pushHandler) {
+        this.pushHandler = pushHandler;
+    }
+
+    public boolean isConnected() {
+        return session != null;
+    }
+
+    // Changes whenever a new physical connection is made, so callers can tell that per-connection state
+    // such as a subscription has been lost
+    public long getGeneration() {
+        return generation;
+    }
+
+    // Requests sent and still waiting for their reply
+    public int getPendingCount() {
+        Session s = session;
+        return s != null ? s.pending.size() : 0;
+    }
+
+    // Fire-and-forget: no reply is expected
+    public void send(Message msg) throws IOException {
+        write(Frame.NO_REPLY, msg, null, null);
+    }
+
+    // Send a request; the returned future completes with the peer's reply
+    public CompletableFuture<Message> request(Message msg) {
+        return stream(msg, null);
+    }
+
+    // Send a request answered by a series of chunks. onChunk sees every chunk in order, on this connection's
+    // reader thread; the returned future completes with the last one.
+    public CompletableFuture<Message> stream(Message msg, Consumer<Message> onChunk) {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        try {
+            write(requestId, msg, reply, onChunk);
+        } catch (IOException e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    // Blocking form of request()
+    public Message call(Message msg, long timeoutMillis) throws IOException {
+        try {
+            return request(msg).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for reply from " + host + ":" + port);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for reply from " + host + ":" + port);
+        }
+    }
+
+    public Message call(Message msg) throws IOException {
+        return call(msg, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    private void write(long requestId, Message msg, CompletableFuture<Message> reply, Consumer<Message> onChunk) throws IOException {
+        // A connection that died since last use is replaced once before giving up
+        for (int attempt = 0; ; attempt++) {
+            Session s = connect();
+            if (reply != null) {
+                s.pending.put(requestId, reply);
+            }
+            if (onChunk != null) {
+                s.chunkListeners.put(requestId, onChunk);
+            }
+            try {
+                if (s.closed) {
+                    // Failed since connect() returned, perhaps after its pending requests were drained
+                    throw new IOException("Connection to " + host + ":" + port + " lost");
+                }
+                s.connection.write(requestId, msg);
+                if (reply != null) {
+                    // A caller that gives up, e.g. through orTimeout, leaves nothing behind for a reply that never comes
+                    reply.whenComplete((ignored, error) -> {
+                        if (error != null && s.pending.remove(requestId, reply)) {
+                            s.chunkListeners.remove(requestId);
+                        }
+                    });
+                }
+                return;
+            } catch (IOException e) {
+                s.pending.remove(requestId);
+                s.chunkListeners.remove(requestId);
+                disconnect(s, e);
+                if (attempt > 0 || (reply != null && reply.isDone())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private Session connect() throws IOException {
+        Session s = session;
+        if (s != null) {
+            return s;
+        }
+        synchronized (this) {
+            if (session == null) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                    session = new Session(new SocketConnection(socket));
+                    generation++;
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                Session started = session;
+                Thread reader = new Thread(() -> readLoop(started), "peer-" + host + ":" + port);
+                reader.setDaemon(true);
+                reader.start();
+            }
+            return session;
+        }
+    }
+
+    private void readLoop(Session s) {
+        try {
+            while (true) {
+                Frame frame = s.connection.readFrame();
+                if (frame.getRequestId() == Frame.NO_REPLY) {
+                    Consumer<Message> handler = pushHandler;
+                    if (handler != null) {
+                        handler.accept(frame.getMessage());
+                    }
+                    continue;
+                }
+                Message msg = frame.getMessage();
+                Consumer<Message> onChunk = s.chunkListeners.get(frame.getRequestId());
+                if (onChunk != null) {
+                    try {
+                        onChunk.accept(msg);
+                    } catch (RuntimeException e) {
+                        Log.error("Chunk listener for request " + frame.getRequestId() + " to " + host + ":" + port + " failed", e);
+                    }
+                }
+                if (!msg.isLastChunk()) {
+                    continue;
+                }
+                s.chunkListeners.remove(frame.getRequestId());
+                CompletableFuture<Message> reply = s.pending.remove(frame.getRequestId());
+                if (reply != null) {
+                    reply.complete(msg);
+                }
+            }
+        } catch (IOException e) {
+            disconnect(s, e);
+        } catch (RuntimeException e) {
+            // A frame that cannot be decoded leaves the stream out of step, so the connection is given up
+            Log.error("Reader for " + host + ":" + port + " failed", e);
+            disconnect(s, e);
+        }
+    }
+
+    private void disconnect(Session s, Exception cause) {
+        // Set before draining: a writer registers first and checks after, so one of them sees the other
+        s.closed = true;
+        synchronized (this) {
+            if (session == s) {
+                session = null;
+            }
+        }
+        s.connection.close();
+        s.chunkListeners.clear();
+        IOException failure = new IOException("Connection to " + host + ":" + port + " lost", cause);
+        for (Long requestId : s.pending.keySet()) {
+            CompletableFuture<Message> reply = s.pending.remove(requestId);
+            if (reply != null) {
+                reply.completeExceptionally(failure);
+            }
+        }
+    }
+
+    public void close() {
+        Session s = session;
+        if (s != null) {
+            disconnect(s, new IOException("Closed"));
+        }
+    }
+
+    // One physical connection and the requests still waiting on it
+    private static class Session {
+        private final SocketConnection connection;
+        private final Map<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+        private final Map<Long, Consumer<Message>> chunkListeners = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        private Session(SocketConnection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// The store as it was when the view was opened, readable while writes carry on. Every write after that
+// moment first saves the value it is about to replace, once per user; a walk of the live store then swaps
+// those saved values back in and skips users that did not exist yet. Costs memory only for the users
+// written while the view is open, and nothing at all once it is closed.
+public class PointInTimeView implements AutoCloseable {
+    private static final String ABSENT = new String(); // Saved for users created after the view opened; compared by identity
+
+    private UserStore store;
+    private ConcurrentHashMap<String, String> before;
+
+    public PointInTimeView(UserStore store) {
+        this.store = store;
+        this.before = new ConcurrentHashMap<>();
+    }
+
+    // Called by the store before a write changes the user
+    public void preserve(String username, String oldSsn) {
+        if (!before.containsKey(username)) {
+            before.putIfAbsent(username, oldSsn != null ? oldSsn : ABSENT);
+        }
+    }
+
+    // Visits every user in the view with the SSN it had when the view was opened, in username order if the
+    // store keeps an index. The saved value is looked up after the live one is read, so a write racing the
+    // walk is either not yet seen in the live value or already saved. The index is walked in preference to
+    // the store, as its iterator sees each user exactly once; without one, a user the off-heap store moves
+    // during the walk may be visited twice.
+    public void forEach(BiConsumer<String, String> action) {
+        UsernameIndex index = store.getIndex();
+        if (index == null) {
+            store.forEach((username, ssn) -> visit(username, ssn, action));
+            return;
+        }
+        for (String username : index.all()) {
+            visit(username, store.get(username), action);
+        }
+    }
+
+    private void visit(String username, String ssn, BiConsumer<String, String> action) {
+        String saved = before.get(username);
+        if (saved == null) {
+            if (ssn != null) {
+                action.accept(username, ssn);
+            }
+        } else if (saved != ABSENT) {
+            action.accept(username, saved);
+        }
+    }
+
+    // Users written since the view opened, whose old values it is holding on to
+    public int getPreservedCount() {
+        return before.size();
+    }
+
+    @Override
+    public void close() {
+        store.closeView(this);
+    }
+}
@@ -1,12 +1,33 @@
 public class ReadRequest extends Message {
     private static final long serialVersionUID = 1L;
     private String username;
+    private long minSequence; // Only serve from a node that has applied this sequence; 0 for any node
+    private int origin; // Node whose sequence minSequence is; -1 for whichever node sequences this user's writes
 
     public ReadRequest(String username) {
+        this(username, 0, -1);
+    }
+
+    public ReadRequest(String username, long minSequence, int origin) {
         this.username = username;
+        this.minSequence = minSequence;
+        this.origin = origin;
     }
-    
+
     public String getUsername() {
         return username;
     }
+
+    public long getMinSequence() {
+        return minSequence;
+    }
+
+    public int getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.READ_REQUEST;
+    }
 }
@@ -3,11 +3,19 @@ public class ReadResponse extends Message {
     private String username;
     private String ssn;
     private boolean found;
-    
+    private long sequence; // The serving node's applied sequence when it answered
+    private int origin; // Node whose writes that sequence counts
+
     public ReadResponse(String username, String ssn, boolean found){
+        this(username, ssn, found, 0, -1);
+    }
+
+    public ReadResponse(String username, String ssn, boolean found, long sequence, int origin){
         this.username = username;
         this.ssn = ssn;
         this.found = found;
+        this.sequence = sequence;
+        this.origin = origin;
     }
 
     public String getUsername(){
@@ -21,4 +29,17 @@ public class ReadResponse extends Message {
     public boolean isFound(){
         return found;
     }
+
+    public long getSequence(){
+        return sequence;
+    }
+
+    public int getOrigin(){
+        return origin;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.READ_RESPONSE;
+    }
 }
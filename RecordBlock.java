@@ -0,0 +1,78 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A batch of records in the binary record encoding, deflated as one block. Bulk loads travel in this form
+// from the loader to the primary and on to the backups unchanged, so a chunk is compressed once, by the
+// loader, however many replicas it reaches.
+public class RecordBlock {
+    private static final int LEVEL = Config.getInt("userstore.bulk.compression.level", Deflater.BEST_SPEED);
+
+    private RecordBlock() {
+    }
+
+    public static byte[] compress(List<UserRecord> records) throws IOException {
+        int estimate = 16;
+        for (UserRecord record : records) {
+            estimate += record.getUsername().length() + record.getSsn().length() + 4;
+        }
+        ByteBuffer raw = ByteBuffer.allocate(Math.min(estimate, Connection.MAX_FRAME_BYTES));
+        while (true) {
+            try {
+                BinaryMessageCodec.putRecords(raw, records);
+                break;
+            } catch (BufferOverflowException e) {
+                if (raw.capacity() >= Connection.MAX_FRAME_BYTES) {
+                    throw new IOException("Record block too large: " + records.size() + " records");
+                }
+                raw = ByteBuffer.allocate(Math.min(raw.capacity() * 2, Connection.MAX_FRAME_BYTES));
+            }
+        }
+        Deflater deflater = new Deflater(LEVEL);
+        try {
+            deflater.setInput(raw.array(), 0, raw.position());
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.position() / 2 + 64);
+            byte[] buf = new byte[1 << 16];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static List<UserRecord> decompress(byte[] block) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block);
+            byte[] raw = new byte[Math.max(1024, block.length * 4)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == raw.length) {
+                    if (raw.length >= Connection.MAX_FRAME_BYTES) {
+                        throw new IOException("Record block inflates past " + Connection.MAX_FRAME_BYTES + " bytes");
+                    }
+                    raw = Arrays.copyOf(raw, Math.min(raw.length * 2, Connection.MAX_FRAME_BYTES));
+                }
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated record block");
+                }
+                length += inflated;
+            }
+            return BinaryMessageCodec.getRecords(ByteBuffer.wrap(raw, 0, length));
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt record block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
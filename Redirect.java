@@ -0,0 +1,36 @@
+// Tells the client to retry its request on another node
+public class Redirect extends Message {
+    private static final long serialVersionUID = 1L;
+    private int nodeId;
+    private String host;
+    private int port;
+    private String reason;
+
+    public Redirect(int nodeId, String host, int port, String reason) {
+        this.nodeId = nodeId;
+        this.host = host;
+        this.port = port;
+        this.reason = reason;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.REDIRECT;
+    }
+}
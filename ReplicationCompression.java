@@ -0,0 +1,10 @@
+// Whether replication batches go to a backup as plain records or as compressed frames
+public enum ReplicationCompression {
+    OFF,  // Always plain
+    ON,   // Always compressed, for batches of at least userstore.replication.compression.min.bytes
+    AUTO; // Per link, whichever format has been delivering batches faster
+
+    public static ReplicationCompression fromConfig() {
+        return valueOf(Config.getString("userstore.replication.compression", "auto").toUpperCase());
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Encodes a replication batch as one compressed frame. Each username is written as the length of the
+// prefix it shares with the one before plus the rest, which removes most of it for batches of similar
+// names, and the whole frame is then deflated. Counts bytes in and out and the time spent either way,
+// so the cost can be weighed against what it saves.
+public class ReplicationCompressor {
+    private int level;
+    private ThreadLocal<Deflater> deflaters;
+    private ThreadLocal<Inflater> inflaters;
+    private LongAdder rawBytes; // Size of the frames compressed, as the plain batch encoding would have sent them
+    private LongAdder compressedBytes;
+    private Histogram encodeMicros;
+    private Histogram decodeMicros;
+
+    public ReplicationCompressor(int level) {
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level));
+        this.inflaters = ThreadLocal.withInitial(Inflater::new);
+        this.rawBytes = new LongAdder();
+        this.compressedBytes = new LongAdder();
+        this.encodeMicros = new Histogram();
+        this.decodeMicros = new Histogram();
+    }
+
+    // Bytes the records take in the plain binary encoding, near enough for ASCII names
+    public static int plainSize(List<UserRecord> records) {
+        int size = 16;
+        for (UserRecord record : records) {
+            size += record.getUsername().length() + record.getSsn().length() + 2;
+        }
+        return size;
+    }
+
+    public byte[] compress(List<UserRecord> records) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer raw = ByteBuffer.allocate(Math.min(plainSize(records), Connection.MAX_FRAME_BYTES));
+        while (true) {
+            try {
+                raw.clear();
+                putPrefixed(raw, records);
+                break;
+            } catch (BufferOverflowException e) {
+                if (raw.capacity() >= Connection.MAX_FRAME_BYTES) {
+                    throw new IOException("Replication frame too large: " + records.size() + " records");
+                }
+                raw = ByteBuffer.allocate(Math.min(raw.capacity() * 2, Connection.MAX_FRAME_BYTES));
+            }
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.position());
+        deflater.finish();
+        byte[] out = new byte[raw.position() / 2 + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        rawBytes.add(plainSize(records));
+        compressedBytes.add(length);
+        encodeMicros.record((System.nanoTime() - start) / 1000);
+        return Arrays.copyOf(out, length);
+    }
+
+    public List<UserRecord> decompress(byte[] frame) throws IOException {
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(frame);
+        byte[] raw = new byte[Math.max(1024, frame.length * 4)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == raw.length) {
+                    if (raw.length >= Connection.MAX_FRAME_BYTES) {
+                        throw new IOException("Replication frame inflates past " + Connection.MAX_FRAME_BYTES + " bytes");
+                    }
+                    raw = Arrays.copyOf(raw, Math.min(raw.length * 2, Connection.MAX_FRAME_BYTES));
+                }
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated replication frame");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt replication frame: " + e.getMessage());
+        }
+        List<UserRecord> records = getPrefixed(ByteBuffer.wrap(raw, 0, length));
+        decodeMicros.record((System.nanoTime() - start) / 1000);
+        return records;
+    }
+
+    public void addStats(Map<String, Long> stats) {
+        long raw = rawBytes.sum();
+        long compressed = compressedBytes.sum();
+        stats.put("replication.compression.raw.bytes", raw);
+        stats.put("replication.compression.compressed.bytes", compressed);
+        stats.put("replication.compression.ratio.permille", raw == 0 ? 0 : compressed * 1000 / raw);
+        Metrics.addHistogram(stats, "replication.compression.encode.us", encodeMicros);
+        Metrics.addHistogram(stats, "replication.compression.decode.us", decodeMicros);
+    }
+
+    private static void putPrefixed(ByteBuffer buf, List<UserRecord> records) {
+        BinaryMessageCodec.putVarInt(buf, records.size());
+        String previous = "";
+        for (UserRecord record : records) {
+            String username = record.getUsername();
+            int shared = 0;
+            int max = Math.min(previous.length(), username.length());
+            while (shared < max && previous.charAt(shared) == username.charAt(shared)) {
+                shared++;
+            }
+            // Never split a surrogate pair, or the suffix would not survive UTF-8
+            if (shared > 0 && Character.isHighSurrogate(username.charAt(shared - 1))) {
+                shared--;
+            }
+            BinaryMessageCodec.putVarInt(buf, shared);
+            BinaryMessageCodec.putString(buf, username.substring(shared));
+            BinaryMessageCodec.putString(buf, record.getSsn());
+            previous = username;
+        }
+    }
+
+    private static List<UserRecord> getPrefixed(ByteBuffer buf) throws IOException {
+        int count = BinaryMessageCodec.getVarInt(buf);
+        if (count < 0 || count > buf.remaining()) {
+            throw new IOException("Invalid record count: " + count);
+        }
+        List<UserRecord> records = new ArrayList<>(count);
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int shared = BinaryMessageCodec.getVarInt(buf);
+            String suffix = BinaryMessageCodec.getString(buf);
+            if (shared < 0 || shared > previous.length() || suffix == null) {
+                throw new IOException("Invalid username prefix in replication frame");
+            }
+            String username = shared == 0 ? suffix : previous.substring(0, shared) + suffix;
+            records.add(new UserRecord(username, BinaryMessageCodec.getString(buf)));
+            previous = username;
+        }
+        return records;
+    }
+}
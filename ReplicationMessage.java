@@ -15,4 +15,9 @@ public class ReplicationMessage extends Message {
     public String getSsn(){
         return ssn;
     }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.REPLICATION_MESSAGE;
+    }
 }
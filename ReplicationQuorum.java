@@ -0,0 +1,24 @@
+// How many backups must acknowledge a replicated write before the client is answered
+public enum ReplicationQuorum {
+    NONE,
+    ONE,
+    MAJORITY, // A majority of all copies, counting the primary's own
+    ALL;
+
+    public int required(int backups) {
+        switch (this) {
+            case NONE:
+                return 0;
+            case ONE:
+                return Math.min(1, backups);
+            case MAJORITY:
+                return (backups + 1) / 2;
+            default:
+                return backups;
+        }
+    }
+
+    public static ReplicationQuorum fromConfig() {
+        return valueOf(Config.getString("userstore.replication.quorum", "majority").toUpperCase());
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+// Sends replication messages to every backup at once and tracks their acknowledgments. The future returned
+// by replicate() completes as soon as the configured quorum has acked, so slower backups do not hold up
+// the write; their acks are still counted in the per-backup latency histograms. How far each backup trails
+// is the highest sequence sent to it minus the highest it has acked.
+//
+// Batches can go to a backup as compressed frames instead. Under AUTO each link keeps a moving average of
+// how fast each format delivers batches: plain bytes per microsecond from sending (compressing included)
+// to the ack. On a fast link the time spent compressing outweighs the bytes saved and plain wins; on a
+// slow one compression does. Every probeEvery-th eligible batch goes the other way, so the choice follows
+// changes in either.
+//
+// Each backup's frames go out from a thread of its own, in order, so reconnecting to a backup that is
+// down (which blocks for the connect timeout) never holds up the caller or the other backups. A frame
+// whose timeout has passed by the time its turn comes is not sent at all.
+public class Replicator {
+    private int nodeId;
+    private ConnectionManager peers;
+    private ReplicationQuorum quorum;
+    private long timeoutMillis;
+    private Map<Integer, Histogram> ackMicros;
+    private Map<Integer, AtomicLong> sentThrough; // Highest sequence sent to each backup
+    private Map<Integer, AtomicLong> ackedThrough; // Highest sequence each backup has acked
+    private ReplicationCompression compression;
+    private ReplicationCompressor compressor;
+    private int compressMinBytes; // Smaller batches always go plain: too little to gain
+    private int probeEvery;
+    private Map<Integer, LinkChoice> links;
+    private IntConsumer onAck; // Told of every ack, by backup id
+    private Map<Integer, ExecutorService> senders;
+
+    public Replicator(int nodeId, ConnectionManager peers, ReplicationQuorum quorum, long timeoutMillis,
+                      ReplicationCompression compression, ReplicationCompressor compressor, int compressMinBytes, int probeEvery,
+                      IntConsumer onAck) {
+        this.nodeId = nodeId;
+        this.peers = peers;
+        this.quorum = quorum;
+        this.timeoutMillis = timeoutMillis;
+        this.ackMicros = new ConcurrentHashMap<>();
+        this.sentThrough = new ConcurrentHashMap<>();
+        this.ackedThrough = new ConcurrentHashMap<>();
+        this.compression = compression;
+        this.compressor = compressor;
+        this.compressMinBytes = compressMinBytes;
+        this.probeEvery = Math.max(2, probeEvery);
+        this.links = new ConcurrentHashMap<>();
+        this.onAck = onAck;
+        this.senders = new ConcurrentHashMap<>();
+    }
+
+    public ReplicationQuorum getQuorum() {
+        return quorum;
+    }
+
+    public CompletableFuture<Void> replicate(Message msg, List<NodeInfo> backups) {
+        return replicate(msg, backups, quorum);
+    }
+
+    // With an explicit quorum, e.g. ALL for a fence every replica must have passed
+    public CompletableFuture<Void> replicate(Message msg, List<NodeInfo> backups, ReplicationQuorum quorum) {
+        int required = quorum.required(backups.size());
+        int tolerated = backups.size() - required; // Failures we can absorb and still reach the quorum
+        CompletableFuture<Void> reached = new CompletableFuture<>();
+        AtomicInteger acks = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        if (required == 0) {
+            reached.complete(null);
+        }
+        long lastSequence = lastSequenceOf(msg);
+        int plainBytes = compressible(msg) ? ReplicationCompressor.plainSize(((BatchReplicationMessage) msg).getRecords()) : 0;
+        Message compressed = null; // Built for the first link that wants it, then shared
+        long encodeMicros = 0;
+        for (NodeInfo backup : backups) {
+            long start = System.nanoTime();
+            LinkChoice link = plainBytes >= compressMinBytes ? link(backup.getId()) : null;
+            Message frame = msg;
+            if (link != null && (compression == ReplicationCompression.ON || link.preferCompressed(probeEvery))) {
+                if (compressed == null) {
+                    compressed = compress((BatchReplicationMessage) msg);
+                    encodeMicros = (System.nanoTime() - start) / 1000;
+                }
+                frame = compressed;
+            }
+            boolean sentCompressed = frame != msg;
+            long frameEncodeMicros = sentCompressed ? encodeMicros : 0;
+            long sent = System.nanoTime();
+            position(sentThrough, backup.getId()).accumulateAndGet(lastSequence, Math::max);
+            send(backup, frame)
+                    .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .whenComplete((resp, error) -> {
+                        if (error == null && resp instanceof Acknowledgment) {
+                            long micros = (System.nanoTime() - sent) / 1000;
+                            getAckMicros(backup.getId()).record(micros);
+                            if (link != null) {
+                                link.record(sentCompressed, plainBytes, micros + frameEncodeMicros);
+                            }
+                            position(ackedThrough, backup.getId()).accumulateAndGet(lastSequence, Math::max);
+                            onAck.accept(backup.getId());
+                            if (acks.incrementAndGet() == required) {
+                                reached.complete(null);
+                            }
+                        } else {
+                            Log.warn("Node " + nodeId + " replication to Node " + backup.getId() + " failed: "
+                                    + (error != null ? error : resp.getClass().getSimpleName()));
+                            if (failures.incrementAndGet() == tolerated + 1) {
+                                reached.completeExceptionally(new IOException("Replication quorum " + quorum + " not reached"));
+                            }
+                        }
+                    });
+        }
+        return reached;
+    }
+
+    private CompletableFuture<Message> send(NodeInfo backup, Message frame) {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        ExecutorService sender = senders.computeIfAbsent(backup.getId(), id -> Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replicator-" + nodeId + "-to-" + id);
+            thread.setDaemon(true);
+            return thread;
+        }));
+        sender.execute(() -> {
+            if (reply.isDone()) {
+                return; // Timed out while waiting its turn
+            }
+            peers.get(backup).request(frame).whenComplete((resp, error) -> {
+                if (error != null) {
+                    reply.completeExceptionally(error);
+                } else {
+                    reply.complete(resp);
+                }
+            });
+        });
+        return reply;
+    }
+
+    private boolean compressible(Message msg) {
+        return compression != ReplicationCompression.OFF && msg instanceof BatchReplicationMessage;
+    }
+
+    // Falls back to the plain batch if the frame cannot be built
+    private Message compress(BatchReplicationMessage batch) {
+        try {
+            return new CompressedBatchMessage(batch.getOriginId(), batch.getFirstSequence(), batch.getRecords().size(),
+                    compressor.compress(batch.getRecords()));
+        } catch (IOException e) {
+            Log.warn("Node " + nodeId + " could not compress a replication batch: " + e.getMessage());
+            return batch;
+        }
+    }
+
+    private LinkChoice link(int backupId) {
+        return links.computeIfAbsent(backupId, id -> new LinkChoice());
+    }
+
+    public Histogram getAckMicros(int backupId) {
+        return ackMicros.computeIfAbsent(backupId, id -> new Histogram());
+    }
+
+    // Records sent to the backup but not yet acked by it
+    public long getLag(int backupId) {
+        return position(sentThrough, backupId).get() - position(ackedThrough, backupId).get();
+    }
+
+    // Ends the sender threads; batches still waiting their turn are dropped and their replies never complete
+    public void close() {
+        for (ExecutorService sender : senders.values()) {
+            sender.shutdownNow();
+        }
+    }
+
+    public void reportStats() {
+        for (Map.Entry<Integer, Histogram> entry : ackMicros.entrySet()) {
+            Log.info("Node " + nodeId + " replication ack latency (us) from Node " + entry.getKey() + ": "
+                    + entry.getValue().summary() + ", lag " + getLag(entry.getKey()) + " records");
+        }
+    }
+
+    public void addStats(Map<String, Long> stats) {
+        for (Map.Entry<Integer, Histogram> entry : ackMicros.entrySet()) {
+            String prefix = "replication.node" + entry.getKey();
+            stats.put(prefix + ".lag.records", getLag(entry.getKey()));
+            Metrics.addHistogram(stats, prefix + ".ack.us", entry.getValue());
+        }
+        for (Map.Entry<Integer, LinkChoice> entry : links.entrySet()) {
+            entry.getValue().addStats(stats, "replication.node" + entry.getKey());
+        }
+        compressor.addStats(stats);
+    }
+
+    // Moving averages of how fast each format has delivered batches to one backup
+    private static class LinkChoice {
+        private double plainRate; // Plain bytes per microsecond; 0 until measured
+        private double compressedRate;
+        private long chosen;
+        private long plainFrames;
+        private long compressedFrames;
+
+        // Measures both formats first, then keeps to the faster but tries the other now and then
+        synchronized boolean preferCompressed(int probeEvery) {
+            chosen++;
+            if (plainRate == 0 || compressedRate == 0) {
+                return plainRate != 0;
+            }
+            boolean faster = compressedRate > plainRate;
+            return chosen % probeEvery == 0 ? !faster : faster;
+        }
+
+        synchronized void record(boolean compressed, long plainBytes, long micros) {
+            double rate = (double) plainBytes / Math.max(1, micros);
+            if (compressed) {
+                compressedFrames++;
+                compressedRate = compressedRate == 0 ? rate : compressedRate * 0.8 + rate * 0.2;
+            } else {
+                plainFrames++;
+                plainRate = plainRate == 0 ? rate : plainRate * 0.8 + rate * 0.2;
+            }
+        }
+
+        synchronized void addStats(Map<String, Long> stats, String prefix) {
+            stats.put(prefix + ".frames.plain", plainFrames);
+            stats.put(prefix + ".frames.compressed", compressedFrames);
+            stats.put(prefix + ".rate.plain.bytes.per.ms", Math.round(plainRate * 1000));
+            stats.put(prefix + ".rate.compressed.bytes.per.ms", Math.round(compressedRate * 1000));
+        }
+    }
+
+    private static AtomicLong position(Map<Integer, AtomicLong> positions, int backupId) {
+        return positions.computeIfAbsent(backupId, id -> new AtomicLong());
+    }
+
+    private static long lastSequenceOf(Message msg) {
+        if (msg instanceof BatchReplicationMessage) {
+            BatchReplicationMessage batch = (BatchReplicationMessage) msg;
+            return batch.getFirstSequence() + batch.getRecords().size() - 1;
+        }
+        if (msg instanceof BulkReplicationMessage) {
+            BulkReplicationMessage bulk = (BulkReplicationMessage) msg;
+            return bulk.getFirstSequence() + bulk.getRows() - 1;
+        }
+        return 0;
+    }
+}
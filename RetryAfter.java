@@ -0,0 +1,25 @@
+// The node is too busy to take the request: the client should wait retryAfterMillis and send it again,
+// to this node or another. Nothing was done, so retrying a write is safe.
+public class RetryAfter extends Message {
+    private static final long serialVersionUID = 1L;
+    private long retryAfterMillis;
+    private String reason;
+
+    public RetryAfter(long retryAfterMillis, String reason) {
+        this.retryAfterMillis = retryAfterMillis;
+        this.reason = reason;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.RETRY_AFTER;
+    }
+}
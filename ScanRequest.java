@@ -0,0 +1,47 @@
+// Asks for one page of users with usernames from start (inclusive) to end (exclusive; null means no end),
+// in username order. The reply says where the next page starts, and any node can serve it.
+public class ScanRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private String start;
+    private String end;
+    private int limit; // Users per page; the node may return fewer
+
+    public ScanRequest(String start, String end, int limit) {
+        this.start = start;
+        this.end = end;
+        this.limit = limit;
+    }
+
+    // Every username beginning with prefix
+    public static ScanRequest prefix(String prefix, int limit) {
+        return new ScanRequest(prefix, prefixEnd(prefix), limit);
+    }
+
+    // The first string after every string that starts with prefix, or null if there is none
+    public static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    public String getStart() {
+        return start;
+    }
+
+    public String getEnd() {
+        return end;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.SCAN_REQUEST;
+    }
+}
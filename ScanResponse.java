@@ -0,0 +1,26 @@
+import java.util.List;
+
+// One page of a scan. nextStart is where the following page begins, or null once the range is done.
+public class ScanResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private List<UserRecord> records;
+    private String nextStart;
+
+    public ScanResponse(List<UserRecord> records, String nextStart) {
+        this.records = records;
+        this.nextStart = nextStart;
+    }
+
+    public List<UserRecord> getRecords() {
+        return records;
+    }
+
+    public String getNextStart() {
+        return nextStart;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.SCAN_RESPONSE;
+    }
+}
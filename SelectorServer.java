@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+// Single-threaded non-blocking server: one Selector multiplexes every client and peer connection, so
+// the number of open connections is not tied to the number of threads.
+public class SelectorServer {
+    private int port;
+    private MessageCodec codec;
+    private Consumer<Frame> handler;
+    private volatile boolean running;
+    private Selector selector;
+
+    // handler runs on the event loop and must not block
+    public SelectorServer(int port, MessageCodec codec, Consumer<Frame> handler) {
+        this.port = port;
+        this.codec = codec;
+        this.handler = handler;
+        this.running = true; // Set here, not in run(), so a stop() that comes first still holds
+    }
+
+    public void run() throws IOException {
+        try (Selector sel = Selector.open();
+             ServerSocketChannel server = ServerSocketChannel.open()) {
+            selector = sel;
+            server.bind(new InetSocketAddress(port), 1024);
+            server.configureBlocking(false);
+            server.register(sel, SelectionKey.OP_ACCEPT);
+            while (running) {
+                sel.select();
+                Iterator<SelectionKey> keys = sel.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(server, sel);
+                    } else {
+                        service(key);
+                    }
+                }
+            }
+            // Stopped: the connections go with the listening socket
+            for (SelectionKey key : sel.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Selector sel) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            SelectionKey key = channel.register(sel, SelectionKey.OP_READ);
+            key.attach(new NioConnection(channel, key, codec));
+        }
+    }
+
+    private void service(SelectionKey key) {
+        NioConnection conn = (NioConnection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                conn.flushPending();
+            }
+            if (key.isValid() && key.isReadable() && !conn.readFrames(handler)) {
+                conn.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Closing connection after error: " + e);
+            conn.close();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+}
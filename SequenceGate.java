@@ -0,0 +1,67 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+// Tracks the highest sequence whose write is visible in the store, and lets callers wait for a given
+// sequence without holding a thread
+public class SequenceGate {
+    private volatile long current;
+    private ConcurrentSkipListMap<Long, Queue<CompletableFuture<Boolean>>> waiting;
+
+    public SequenceGate() {
+        this.waiting = new ConcurrentSkipListMap<>();
+    }
+
+    public long current() {
+        return current;
+    }
+
+    // Completes with true once the sequence is reached, or false after timeoutMillis
+    public CompletableFuture<Boolean> await(long sequence, long timeoutMillis) {
+        CompletableFuture<Boolean> reached = new CompletableFuture<>();
+        if (current >= sequence) {
+            reached.complete(true);
+            return reached;
+        }
+        synchronized (this) {
+            // advance() may have run since the check above
+            if (current >= sequence) {
+                reached.complete(true);
+                return reached;
+            }
+            waiting.computeIfAbsent(sequence, seq -> new ConcurrentLinkedQueue<>()).add(reached);
+        }
+        reached.completeOnTimeout(false, timeoutMillis, TimeUnit.MILLISECONDS);
+        // A waiter that gave up is dropped at once rather than kept until its sequence arrives, if it ever does
+        reached.whenComplete((ok, error) -> {
+            if (!Boolean.TRUE.equals(ok)) {
+                forget(sequence, reached);
+            }
+        });
+        return reached;
+    }
+
+    private synchronized void forget(long sequence, CompletableFuture<Boolean> waiter) {
+        Queue<CompletableFuture<Boolean>> queue = waiting.get(sequence);
+        if (queue != null && queue.remove(waiter) && queue.isEmpty()) {
+            waiting.remove(sequence);
+        }
+    }
+
+    public synchronized void advance(long sequence) {
+        if (sequence <= current) {
+            return;
+        }
+        current = sequence;
+        Map.Entry<Long, Queue<CompletableFuture<Boolean>>> first;
+        while ((first = waiting.firstEntry()) != null && first.getKey() <= sequence) {
+            waiting.remove(first.getKey());
+            for (CompletableFuture<Boolean> waiter : first.getValue()) {
+                waiter.complete(true);
+            }
+        }
+    }
+}
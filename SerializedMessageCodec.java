@@ -0,0 +1,24 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Java serialization, kept as a fallback and for comparison against the binary codec
+public class SerializedMessageCodec extends MessageCodec {
+    @Override
+    public void encode(Message msg, ByteBuffer buf) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(msg);
+        }
+        buf.put(bytes.toByteArray());
+    }
+
+    @Override
+    public Message decode(ByteBuffer buf) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        try (ObjectInputStream in = new ObjectInputStream(bytes)) {
+            return (Message) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown message class", e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+// Where to fetch a snapshot the primary has prepared: connect to the given port and read sizeBytes of
+// log-format records, which reflect every write up to at least the given sequence
+public class SnapshotOffer extends Message {
+    private static final long serialVersionUID = 1L;
+    private int port;
+    private long sizeBytes;
+    private long sequence;
+
+    public SnapshotOffer(int port, long sizeBytes, long sequence) {
+        this.port = port;
+        this.sizeBytes = sizeBytes;
+        this.sequence = sequence;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.SNAPSHOT_OFFER;
+    }
+}
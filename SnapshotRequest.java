@@ -0,0 +1,8 @@
+public class SnapshotRequest extends Message {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.SNAPSHOT_REQUEST;
+    }
+}
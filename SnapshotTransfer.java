@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+// Moves a snapshot file over a one-off socket. The sender uses FileChannel.transferTo, so the bytes go
+// from the page cache to the network without being copied through the Java heap.
+public class SnapshotTransfer {
+    private SnapshotTransfer() {
+    }
+
+    // Serve the file to the first connection on an ephemeral port, then delete it. Returns the port.
+    public static int serve(Path file, Executor executor, int acceptTimeoutMillis) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(0));
+        server.socket().setSoTimeout(acceptTimeoutMillis);
+        int port = server.socket().getLocalPort();
+        executor.execute(() -> {
+            try (ServerSocketChannel listener = server;
+                 FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 SocketChannel out = listener.socket().accept().getChannel()) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } catch (IOException e) {
+                Log.warn("Snapshot transfer of " + file + " failed: " + e);
+            } finally {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    Log.error("Could not delete snapshot " + file, e);
+                }
+            }
+        });
+        return port;
+    }
+
+    // Connect to a served snapshot and visit its records as they stream in
+    public static void receive(String host, int port, Predicate<WriteAheadLog.Entry> visitor) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            WriteAheadLog.readRecords(socket.getInputStream(), "snapshot from " + host + ":" + port, visitor);
+        }
+    }
+}
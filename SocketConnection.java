@@ -0,0 +1,58 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+// Connection over a blocking socket, read by one dedicated thread
+public class SocketConnection extends Connection {
+    private Socket socket;
+    private MessageCodec codec;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private ByteBuffer writeBuffer; // Reused for every outgoing frame, guarded by the write lock
+    private ByteBuffer readBuffer;  // Reused for every incoming frame, only touched by the reader
+
+    public SocketConnection(Socket socket) throws IOException {
+        this(socket, MessageCodec.configured());
+    }
+
+    public SocketConnection(Socket socket, MessageCodec codec) throws IOException {
+        this.socket = socket;
+        this.codec = codec;
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    }
+
+    // Writers on different threads share the socket, so frames must not interleave
+    @Override
+    public synchronized void write(long requestId, Message msg) throws IOException {
+        writeBuffer = encodeFrame(codec, requestId, msg, writeBuffer);
+        out.write(writeBuffer.array(), 0, writeBuffer.limit());
+        out.flush();
+    }
+
+    // Only one thread reads from a connection
+    public Frame readFrame() throws IOException {
+        int length = in.readInt();
+        checkFrameLength(length);
+        if (readBuffer.capacity() < length) {
+            readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+        }
+        in.readFully(readBuffer.array(), 0, length);
+        readBuffer.clear().limit(length);
+        long requestId = readBuffer.getLong();
+        return new Frame(requestId, codec.decode(readBuffer), this);
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,9 @@
+// Asks a node for a snapshot of its metrics, answered with a StatsResponse
+public class StatsRequest extends Message {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.STATS_REQUEST;
+    }
+}
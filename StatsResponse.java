@@ -0,0 +1,20 @@
+import java.util.Map;
+
+// A node's metrics by name, e.g. "messages.ReadRequest.latency.us.p99", in name order
+public class StatsResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private Map<String, Long> stats;
+
+    public StatsResponse(Map<String, Long> stats) {
+        this.stats = stats;
+    }
+
+    public Map<String, Long> getStats() {
+        return stats;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.STATS_RESPONSE;
+    }
+}
@@ -1,3 +0,0 @@
-public class TokenGrant extends Message {
-    
-}
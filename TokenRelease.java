@@ -1,3 +0,0 @@
-public class TokenRelease extends Message {
-    
-}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// The nodes of a cluster, each as "id=host:port". userstore.topology holds either the list itself, comma
+// separated, or the path of a file with one node per line ('#' starts a comment). The node named by
+// userstore.topology.primary starts out as primary, by default the one with the lowest id.
+public class Topology {
+    // The layout the cluster has always had
+    private static final String DEFAULT = "1=node1:5001,2=node2:5002,3=node3:5003,4=node4:5004";
+
+    private List<NodeInfo> nodes;
+
+    public Topology(List<NodeInfo> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A topology needs at least one node");
+        }
+        Set<Integer> ids = new HashSet<>();
+        int primaries = 0;
+        for (NodeInfo node : nodes) {
+            if (!ids.add(node.getId())) {
+                throw new IllegalArgumentException("Node " + node.getId() + " appears twice in the topology");
+            }
+            primaries += node.isPrimary() ? 1 : 0;
+        }
+        if (primaries != 1) {
+            throw new IllegalArgumentException("A topology needs exactly one primary, not " + primaries);
+        }
+        this.nodes = List.copyOf(nodes);
+    }
+
+    public static Topology fromConfig() {
+        String spec = Config.getString("userstore.topology", DEFAULT);
+        int primary = Config.getInt("userstore.topology.primary", -1);
+        if (spec.contains("=")) {
+            return parse(List.of(spec.split(",")), primary);
+        }
+        try {
+            return parse(Files.readAllLines(Paths.get(spec)), primary);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the topology from " + spec, e);
+        }
+    }
+
+    // size nodes on 127.0.0.1, ids 1 to size on consecutive ports from basePort, node 1 primary
+    public static Topology loopback(int size, int basePort) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (int id = 1; id <= size; id++) {
+            nodes.add(new NodeInfo(id, "127.0.0.1", basePort + id - 1, id == 1));
+        }
+        return new Topology(nodes);
+    }
+
+    // primary is -1 for the lowest id
+    public static Topology parse(List<String> entries, int primary) {
+        List<NodeInfo> parsed = new ArrayList<>();
+        for (String entry : entries) {
+            int comment = entry.indexOf('#');
+            String line = (comment >= 0 ? entry.substring(0, comment) : entry).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int equals = line.indexOf('=');
+            int colon = line.lastIndexOf(':');
+            if (equals < 0 || colon < equals) {
+                throw new IllegalArgumentException("Expected id=host:port in the topology: " + line);
+            }
+            try {
+                parsed.add(new NodeInfo(Integer.parseInt(line.substring(0, equals).trim()), line.substring(equals + 1, colon).trim(),
+                        Integer.parseInt(line.substring(colon + 1).trim()), false));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected id=host:port in the topology: " + line);
+            }
+        }
+        if (primary < 0) {
+            primary = parsed.stream().mapToInt(NodeInfo::getId).min().orElse(-1);
+        }
+        int primaryId = primary;
+        if (parsed.stream().noneMatch(node -> node.getId() == primaryId)) {
+            throw new IllegalArgumentException("Primary Node " + primary + " is not in the topology");
+        }
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (NodeInfo node : parsed) {
+            nodes.add(new NodeInfo(node.getId(), node.getHost(), node.getPort(), node.getId() == primary));
+        }
+        return new Topology(nodes);
+    }
+
+    public List<NodeInfo> getNodes() {
+        return nodes;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public NodeInfo get(int id) {
+        for (NodeInfo node : nodes) {
+            if (node.getId() == id) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("Node " + id + " is not in the topology");
+    }
+
+    // Every node but the given one, as passed to Node
+    public List<NodeInfo> others(int id) {
+        List<NodeInfo> others = new ArrayList<>(nodes);
+        others.remove(get(id));
+        return others;
+    }
+
+    // "host:port,host:port,...", as the client and tools take it
+    public String endpoints() {
+        StringBuilder sb = new StringBuilder();
+        for (NodeInfo node : nodes) {
+            sb.append(sb.length() > 0 ? "," : "").append(node.getHost()).append(':').append(node.getPort());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.List;
+
+// Asks a replica for the hashes of some of its hash tree's nodes, answered with a TreeHashResponse
+public class TreeHashRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private int depth; // The asker's tree depth; trees of different depths cannot be compared
+    private List<Integer> nodes;
+
+    public TreeHashRequest(int depth, List<Integer> nodes) {
+        this.depth = depth;
+        this.nodes = nodes;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public List<Integer> getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.TREE_HASH_REQUEST;
+    }
+}
@@ -0,0 +1,18 @@
+// The hashes asked for by a TreeHashRequest, in the same order
+public class TreeHashResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private long[] hashes;
+
+    public TreeHashResponse(long[] hashes) {
+        this.hashes = hashes;
+    }
+
+    public long[] getHashes() {
+        return hashes;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.TREE_HASH_RESPONSE;
+    }
+}
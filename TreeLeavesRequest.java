@@ -0,0 +1,26 @@
+import java.util.List;
+
+// Asks a replica for every user in some hash tree leaves, once a comparison has found they differ
+public class TreeLeavesRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private int depth;
+    private List<Integer> leaves;
+
+    public TreeLeavesRequest(int depth, List<Integer> leaves) {
+        this.depth = depth;
+        this.leaves = leaves;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public List<Integer> getLeaves() {
+        return leaves;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.TREE_LEAVES_REQUEST;
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.List;
+
+// The users in the requested leaves as the replica had them. Every write the replica sequenced up to
+// sequence was visible when it started collecting them, so they are at least that new.
+public class TreeLeavesResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private int originId; // The replica, as the origin of the writes it sequences
+    private long sequence;
+    private List<UserRecord> records;
+
+    public TreeLeavesResponse(int originId, long sequence, List<UserRecord> records) {
+        this.originId = originId;
+        this.sequence = sequence;
+        this.records = records;
+    }
+
+    public int getOriginId() {
+        return originId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public List<UserRecord> getRecords() {
+        return records;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.TREE_LEAVES_RESPONSE;
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.Serializable;
+
+// One username/SSN pair, as carried in batched messages
+public class UserRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String username;
+    private String ssn;
+
+    public UserRecord(String username, String ssn) {
+        this.username = username;
+        this.ssn = ssn;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getSsn() {
+        return ssn;
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+// Where a node keeps its username -> SSN map. Chosen with userstore.store: "concurrent" (default) for an
+// on-heap map with lock-free reads, or "offheap" for compact storage outside the Java heap.
+public abstract class UserStore {
+    private volatile HashTree hashTree; // Kept in step with every put once set
+    private volatile UsernameIndex index; // Gains every new username once set
+    private List<PointInTimeView> views = new CopyOnWriteArrayList<>(); // Open ones, told of every write
+    public static UserStore fromConfig() {
+        String type = Config.getString("userstore.store", "concurrent");
+        switch (type) {
+            case "concurrent":
+                return new ConcurrentUserStore();
+            case "offheap":
+                return new OffHeapUserStore(Config.getInt("userstore.store.offheap.slab.bytes", 64 * 1024 * 1024),
+                        Config.getInt("userstore.store.offheap.initial.capacity", 1 << 16));
+            default:
+                throw new IllegalArgumentException("Unknown store type: " + type);
+        }
+    }
+
+    // Returns the SSN, or null if the user is unknown
+    public abstract String get(String username);
+
+    public abstract void put(String username, String ssn);
+
+    public void putAll(List<UserRecord> records) {
+        for (UserRecord record : records) {
+            put(record.getUsername(), record.getSsn());
+        }
+    }
+
+    public abstract int size();
+
+    // From now on every put also updates the tree, atomically with the write itself
+    public void setHashTree(HashTree hashTree) {
+        this.hashTree = hashTree;
+    }
+
+    public HashTree getHashTree() {
+        return hashTree;
+    }
+
+    // From now on every new user is also added to the index
+    public void setIndex(UsernameIndex index) {
+        this.index = index;
+    }
+
+    public UsernameIndex getIndex() {
+        return index;
+    }
+
+    // Opens a view of the store as it is now. Writes that are in progress while it opens may or may not
+    // be in it, so callers wanting an exact point hold off writers until this returns.
+    public PointInTimeView openView() {
+        PointInTimeView view = new PointInTimeView(this);
+        views.add(view);
+        return view;
+    }
+
+    void closeView(PointInTimeView view) {
+        views.remove(view);
+    }
+
+    // For implementations: whether updating() needs calling, so puts can skip looking up the old SSN
+    protected boolean hasOpenViews() {
+        return !views.isEmpty();
+    }
+
+    // For implementations: while any view is open, call before a put changes anything, with the SSN it is
+    // about to replace (null if none). Relies on writes to the same user not running concurrently, which
+    // the node guarantees with its single committer and apply locks.
+    protected void updating(String username, String oldSsn) {
+        for (PointInTimeView view : views) {
+            view.preserve(username, oldSsn);
+        }
+    }
+
+    // For implementations: call on every put with the SSN that write itself replaced (null if none). The
+    // tree only adds, so concurrent puts may report in any order as long as each reports its own old value.
+    protected void updated(String username, String oldSsn, String newSsn) {
+        HashTree tree = hashTree;
+        if (tree != null) {
+            tree.update(username, oldSsn, newSsn);
+        }
+        UsernameIndex names = index;
+        if (names != null && oldSsn == null) {
+            names.add(username);
+        }
+    }
+
+    // Visits every user present when the call starts and not overwritten since. Writes that land during
+    // the walk may or may not be seen; the walk never blocks writers for long.
+    public abstract void forEach(BiConsumer<String, String> action);
+
+    // Approximate bytes of memory the store occupies
+    public abstract long memoryBytes();
+
+    public double bytesPerEntry() {
+        int entries = size();
+        return entries == 0 ? 0 : (double) memoryBytes() / entries;
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Every username in the store in sorted order, for range and prefix scans. A concurrent skip list, so
+// writers add without locks and a scan walks it while writes go on; there are no deletes to keep up with.
+// The index holds only names: scans look the SSNs up in the store.
+public class UsernameIndex {
+    private ConcurrentSkipListSet<String> usernames;
+
+    public UsernameIndex() {
+        this.usernames = new ConcurrentSkipListSet<>();
+    }
+
+    public void add(String username) {
+        usernames.add(username);
+    }
+
+    public int size() {
+        return usernames.size();
+    }
+
+    // Up to limit usernames from start (inclusive) to end (exclusive, null for no end), in order
+    public List<String> range(String start, String end, int limit) {
+        NavigableSet<String> range = end != null ? usernames.subSet(start, true, end, false) : usernames.tailSet(start, true);
+        List<String> page = new ArrayList<>(Math.min(limit, 1024));
+        for (String username : range) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(username);
+        }
+        return page;
+    }
+
+    // Every username in order; iterating sees each name present when it starts exactly once
+    public Iterable<String> all() {
+        return usernames;
+    }
+}
@@ -0,0 +1,37 @@
+// A node standing to be primary for a term. lastTerm and lastSequence describe how up to date it is: the
+// last term in which it followed a primary, and how far it got in that primary's stream.
+public class VoteRequest extends Message {
+    private static final long serialVersionUID = 1L;
+    private long term;
+    private int candidateId;
+    private long lastTerm;
+    private long lastSequence;
+
+    public VoteRequest(long term, int candidateId, long lastTerm, long lastSequence) {
+        this.term = term;
+        this.candidateId = candidateId;
+        this.lastTerm = lastTerm;
+        this.lastSequence = lastSequence;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    public int getCandidateId() {
+        return candidateId;
+    }
+
+    public long getLastTerm() {
+        return lastTerm;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.VOTE_REQUEST;
+    }
+}
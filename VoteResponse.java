@@ -0,0 +1,24 @@
+// Reply to a VoteRequest, with the voter's term so a candidate that is behind can step back
+public class VoteResponse extends Message {
+    private static final long serialVersionUID = 1L;
+    private long term;
+    private boolean granted;
+
+    public VoteResponse(long term, boolean granted) {
+        this.term = term;
+        this.granted = granted;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    public boolean isGranted() {
+        return granted;
+    }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.VOTE_RESPONSE;
+    }
+}
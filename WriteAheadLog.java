@@ -0,0 +1,435 @@
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Append-only log of user writes, split into fixed-size memory-mapped segment files. Each record is
+// [int length][int crc32][long seq][int origin][username][ssn], and a zero length marks the unwritten
+// tail of a segment. On startup the segments are replayed oldest first; a torn or corrupt record ends
+// its segment. Once enough segments are sealed they are compacted down to the latest value per username.
+public class WriteAheadLog implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES * 2;
+
+    private Path dir;
+    private int segmentBytes;
+    private FsyncPolicy fsyncPolicy;
+    private int compactThreshold;
+    private List<Path> sealedSegments;
+    private long activeIndex;
+    private FileChannel activeChannel;
+    private MappedByteBuffer active;
+    private ByteBuffer scratch;
+    private CRC32 crc;
+    private boolean dirty;
+    private ScheduledExecutorService syncer;
+    private ExecutorService compactor;
+    private Map<Path, Map<Integer, Long>> firstSequences; // Cached per segment and origin for readFrom()
+
+    public WriteAheadLog(Path dir, int segmentBytes, FsyncPolicy fsyncPolicy, long syncIntervalMillis, int compactThreshold) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.compactThreshold = compactThreshold;
+        this.sealedSegments = new ArrayList<>();
+        this.scratch = ByteBuffer.allocate(256);
+        this.crc = new CRC32();
+        this.compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "wal-compactor"));
+        this.firstSequences = new ConcurrentHashMap<>();
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "wal-sync"));
+            syncer.scheduleAtFixedRate(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // {id} in the directory stands for the node's id, so nodes sharing a JVM or a setting keep apart
+    public static WriteAheadLog fromConfig(int nodeId) {
+        return new WriteAheadLog(Paths.get(Config.getString("userstore.wal.dir", "data/node-{id}").replace("{id}", String.valueOf(nodeId))),
+                Config.getInt("userstore.wal.segment.bytes", 64 * 1024 * 1024),
+                FsyncPolicy.fromConfig(),
+                Config.getLong("userstore.wal.fsync.interval.millis", 100),
+                Config.getInt("userstore.wal.compact.threshold", 8));
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    // Replay every record, oldest first, then open the newest segment for appends
+    public synchronized void open(Consumer<Entry> visitor) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = listSegments();
+        long validEnd = 0;
+        for (Path segment : segments) {
+            validEnd = replaySegment(segment, visitor);
+        }
+        if (segments.isEmpty()) {
+            activeIndex = 1;
+            openActive(0);
+        } else {
+            Path last = segments.remove(segments.size() - 1);
+            sealedSegments.addAll(segments);
+            activeIndex = indexOf(last);
+            openActive((int) validEnd);
+            clearTail();
+        }
+        Log.info("Write-ahead log opened in " + dir + " with " + (sealedSegments.size() + 1) + " segments.");
+    }
+
+    public synchronized void append(long seq, int origin, String username, String ssn) throws IOException {
+        encode(seq, origin, username, ssn);
+        if (scratch.remaining() > segmentBytes) {
+            throw new IOException("Record larger than a log segment");
+        }
+        if (active.remaining() < scratch.remaining()) {
+            roll();
+        }
+        active.put(scratch);
+        dirty = true;
+        if (fsyncPolicy == FsyncPolicy.WRITE) {
+            sync();
+        }
+    }
+
+    // Marks the end of a batch of appends; forces them to disk under the BATCH policy
+    public void endBatch() {
+        if (fsyncPolicy == FsyncPolicy.BATCH) {
+            syncQuietly();
+        }
+    }
+
+    public synchronized void sync() {
+        if (dirty) {
+            active.force();
+            dirty = false;
+        }
+    }
+
+    // Rewrite all sealed segments into one holding only the latest record per username. Appends continue
+    // meanwhile: sealed segments are never written again, and the active one is not touched.
+    public void compact() throws IOException {
+        List<Path> inputs;
+        synchronized (this) {
+            inputs = new ArrayList<>(sealedSegments);
+        }
+        if (inputs.size() < 2) {
+            return;
+        }
+        // Re-inserting moves a username to the end, so entries stay ordered by their latest write
+        LinkedHashMap<String, Entry> latest = new LinkedHashMap<>();
+        for (Path segment : inputs) {
+            replaySegment(segment, entry -> {
+                latest.remove(entry.getUsername());
+                latest.put(entry.getUsername(), entry);
+            });
+        }
+        Path target = inputs.get(inputs.size() - 1);
+        Path temp = target.resolveSibling(target.getFileName() + ".compacting");
+        writeRecords(temp, latest.values());
+        // The compacted file replaces the newest input first, so a crash before the older inputs are
+        // deleted only leaves stale records that replay ahead of their replacements
+        synchronized (this) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Path segment : inputs) {
+                if (!segment.equals(target)) {
+                    Files.deleteIfExists(segment);
+                }
+            }
+            sealedSegments.removeAll(inputs);
+            sealedSegments.add(0, target);
+            firstSequences.keySet().removeAll(inputs);
+        }
+        Log.info("Write-ahead log compacted " + inputs.size() + " segments into " + latest.size() + " records.");
+    }
+
+    // Up to maxRecords records from origin with sequence fromSeq or later, in log order. Each origin's
+    // sequences only grow through the log, so segments that end before fromSeq are skipped without being read.
+    public List<Entry> readFrom(int origin, long fromSeq, int maxRecords) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            List<Path> segments;
+            synchronized (this) {
+                segments = new ArrayList<>(sealedSegments);
+                segments.add(segmentPath(activeIndex));
+            }
+            List<Entry> entries = new ArrayList<>();
+            try {
+                for (int i = 0; i < segments.size() && entries.size() < maxRecords; i++) {
+                    if (i + 1 < segments.size() && firstSequenceOf(segments.get(i + 1), origin, i + 2 < segments.size()) <= fromSeq) {
+                        continue;
+                    }
+                    try (InputStream in = Files.newInputStream(segments.get(i))) {
+                        readRecords(in, segments.get(i).toString(), entry -> {
+                            if (entry.getOrigin() == origin && entry.getSeq() >= fromSeq) {
+                                entries.add(entry);
+                            }
+                            return entries.size() < maxRecords;
+                        });
+                    }
+                }
+                return entries;
+            } catch (NoSuchFileException e) {
+                // A compaction swapped segments out from under us; read the new set
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Write records in log format to a standalone file, e.g. a compacted segment or a snapshot
+    public static void writeRecords(Path file, Iterable<Entry> entries) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            writeRecords(out, entries);
+        }
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            out.force(true);
+        }
+    }
+
+    // Append records in log format to a stream, e.g. a bulk export; readRecords() reads them back
+    public static void writeRecords(OutputStream out, Iterable<Entry> entries) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(256);
+        CRC32 checksum = new CRC32();
+        for (Entry entry : entries) {
+            record = encodeRecord(record, checksum, entry.getSeq(), entry.getOrigin(), entry.getUsername(), entry.getSsn());
+            out.write(record.array(), 0, record.limit());
+        }
+    }
+
+    // Visit the intact records in a stream of log records, stopping early if the visitor returns false.
+    // Returns the number of bytes the visited records span.
+    public static long readRecords(InputStream stream, String source, Predicate<Entry> visitor) throws IOException {
+        long offset = 0;
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        byte[] payload = new byte[256];
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                if (length <= 0 || length > Connection.MAX_FRAME_BYTES) {
+                    break; // Unwritten tail
+                }
+                checksum = in.readInt();
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                in.readFully(payload, 0, length);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                Log.warn("Write-ahead log: corrupt record in " + source + " at offset " + offset);
+                break;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(payload, 0, length);
+            offset += RECORD_HEADER_BYTES + length;
+            if (!visitor.test(new Entry(buf.getLong(), buf.getInt(), BinaryMessageCodec.getString(buf), BinaryMessageCodec.getString(buf)))) {
+                break;
+            }
+        }
+        return offset;
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        compactor.shutdown();
+        try {
+            activeChannel.close();
+        } catch (IOException e) {
+            Log.error("Write-ahead log could not be closed", e);
+        }
+    }
+
+    private void roll() throws IOException {
+        active.force();
+        dirty = false;
+        activeChannel.close();
+        sealedSegments.add(segmentPath(activeIndex));
+        activeIndex++;
+        openActive(0);
+        if (sealedSegments.size() >= compactThreshold) {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    Log.error("Write-ahead log compaction failed", e);
+                }
+            });
+        }
+    }
+
+    private void openActive(int position) throws IOException {
+        Path path = segmentPath(activeIndex);
+        activeChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(activeChannel.size(), segmentBytes);
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        active.position(position);
+    }
+
+    // Zero whatever follows the last intact record of the active segment, such as a torn or corrupt record,
+    // so records behind it cannot be replayed again once new appends have covered the damage
+    private void clearTail() {
+        boolean cleared = false;
+        for (int i = active.position(); i < active.limit(); i++) {
+            if (active.get(i) != 0) {
+                active.put(i, (byte) 0);
+                cleared = true;
+            }
+        }
+        if (cleared) {
+            active.force();
+            Log.warn("Write-ahead log: cleared unreadable records after offset " + active.position() + " of " + segmentPath(activeIndex).getFileName());
+        }
+    }
+
+        private void encode(long seq, int origin, String username, String ssn) throws IOException {
+        scratch = encodeRecord(scratch, crc, seq, origin, username, ssn);
+    }
+
+    private static ByteBuffer encodeRecord(ByteBuffer buf, CRC32 crc, long seq, int origin, String username, String ssn) throws IOException {
+        while (true) {
+            try {
+                buf.clear();
+                buf.position(RECORD_HEADER_BYTES);
+                buf.putLong(seq);
+                buf.putInt(origin);
+                BinaryMessageCodec.putString(buf, username);
+                BinaryMessageCodec.putString(buf, ssn);
+                int end = buf.position();
+                crc.reset();
+                crc.update(buf.array(), RECORD_HEADER_BYTES, end - RECORD_HEADER_BYTES);
+                buf.putInt(0, end - RECORD_HEADER_BYTES);
+                buf.putInt(Integer.BYTES, (int) crc.getValue());
+                buf.flip();
+                return buf;
+            } catch (BufferOverflowException e) {
+                if (buf.capacity() >= Connection.MAX_FRAME_BYTES) {
+                    throw new IOException("Log record too large");
+                }
+                buf = ByteBuffer.allocate(buf.capacity() * 2);
+            }
+        }
+    }
+
+    // Visit the intact records of one segment; returns the offset just past the last one
+    private static long replaySegment(Path segment, Consumer<Entry> visitor) throws IOException {
+        try (InputStream in = Files.newInputStream(segment)) {
+            return readRecords(in, segment.getFileName().toString(), entry -> {
+                visitor.accept(entry);
+                return true;
+            });
+        }
+    }
+
+    // Long.MAX_VALUE if the segment has nothing from origin (yet)
+    private long firstSequenceOf(Path segment, int origin, boolean sealed) throws IOException {
+        Map<Integer, Long> cached = firstSequences.computeIfAbsent(segment, path -> new ConcurrentHashMap<>());
+        Long first = cached.get(origin);
+        if (first != null) {
+            return first;
+        }
+        long[] found = {Long.MAX_VALUE};
+        try (InputStream in = Files.newInputStream(segment)) {
+            readRecords(in, segment.toString(), entry -> {
+                if (entry.getOrigin() != origin) {
+                    return true;
+                }
+                found[0] = entry.getSeq();
+                return false;
+            });
+        }
+        // The active segment may not have reached this origin's records yet, so only cache a final answer
+        if (found[0] != Long.MAX_VALUE || sealed) {
+            cached.put(origin, found[0]);
+        }
+        return found[0];
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::indexOf));
+        return segments;
+    }
+
+    private Path segmentPath(long index) {
+        return dir.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private static long indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            Log.error("Write-ahead log sync failed", e);
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // One replayed log record
+    public static class Entry {
+        private long seq;
+        private int origin;
+        private String username;
+        private String ssn;
+
+        public Entry(long seq, int origin, String username, String ssn) {
+            this.seq = seq;
+            this.origin = origin;
+            this.username = username;
+            this.ssn = ssn;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public int getOrigin() {
+            return origin;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getSsn() {
+            return ssn;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Group commit stage on the primary. Writes queue up here; a single committer thread takes whatever has
+// arrived within the linger window (or up to maxBatchSize records) and commits them as one batch, so one
+// log append and one replication round cover many writes. A multi-put is never split across batches.
+public class WriteBatcher {
+    // Queued by stop(); everything ahead of it is committed first
+    private static final PendingWrite STOP = new PendingWrite(Collections.emptyList(), null, null);
+
+    private BlockingQueue<PendingWrite> queue;
+    private int maxBatchSize;
+    private long lingerNanos;
+    private Consumer<List<PendingWrite>> committer;
+    private Histogram batchSizes;
+    private Thread thread;
+
+    public WriteBatcher(int maxBatchSize, long lingerMicros, Consumer<List<PendingWrite>> committer) {
+        this.queue = new LinkedBlockingQueue<>();
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        this.committer = committer;
+        this.batchSizes = new Histogram();
+    }
+
+    public void start(String name) {
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Commits the writes already queued, then ends the committer thread and waits for it. Writes
+    // submitted after this are never committed.
+    public void stop() throws InterruptedException {
+        queue.add(STOP);
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public void submit(List<UserRecord> records, Frame frame) {
+        queue.add(new PendingWrite(records, null, frame));
+    }
+
+    // A bulk-load chunk: block is the records as the loader compressed them, to be replicated as they are
+    public void submit(List<UserRecord> records, byte[] block, Frame frame) {
+        queue.add(new PendingWrite(records, block, frame));
+    }
+
+    // Records for users the store may already have; the committer drops those before they are sequenced
+    public void submitIfAbsent(List<UserRecord> records, Frame frame) {
+        PendingWrite pending = new PendingWrite(records, null, frame);
+        pending.ifAbsent = true;
+        queue.add(pending);
+    }
+
+    // Run the committer soon even if no writes arrive, with an empty entry it can skip
+    public void wake() {
+        queue.add(new PendingWrite(Collections.emptyList(), null, null));
+    }
+
+    // Writes and multi-puts waiting for the committer
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                PendingWrite first = queue.take();
+                if (first == STOP) {
+                    return;
+                }
+                batch.add(first);
+                int records = first.getRecords().size();
+                long deadline = System.nanoTime() + lingerNanos;
+                while (records < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == STOP) {
+                        stopping = true;
+                        break;
+                    }
+                    batch.add(next);
+                    records += next.getRecords().size();
+                }
+                batchSizes.record(records);
+                committer.accept(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                Log.error("Write batch of " + batch.size() + " failed", e);
+            }
+            batch = new ArrayList<>();
+        }
+    }
+
+    // A client write, multi-put or bulk-load chunk waiting for its batch to commit
+    public static class PendingWrite {
+        private List<UserRecord> records;
+        private byte[] block; // Compressed records of a bulk-load chunk, else null
+        private Frame frame;
+        private boolean ifAbsent;
+
+        public PendingWrite(List<UserRecord> records, byte[] block, Frame frame) {
+            this.records = records;
+            this.block = block;
+            this.frame = frame;
+        }
+
+        public List<UserRecord> getRecords() {
+            return records;
+        }
+
+        public void setRecords(List<UserRecord> records) {
+            this.records = records;
+        }
+
+        public boolean isIfAbsent() {
+            return ifAbsent;
+        }
+
+        public byte[] getBlock() {
+            return block;
+        }
+
+        public Frame getFrame() {
+            return frame;
+        }
+    }
+}
@@ -14,4 +14,9 @@ public class WriteRequest extends Message {
     public String getSsn() {
         return ssn;
     }
+
+    @Override
+    public byte getTypeTag() {
+        return MessageCodec.WRITE_REQUEST;
+    }
 }
@@ -0,0 +1,42 @@
+// Picks ranks 0..items-1 with probability proportional to 1 / (rank + 1)^theta, so rank 0 is the most
+// popular. Same method as YCSB's zipfian generator (Gray et al., "Quickly generating billion-record
+// synthetic databases"): zeta is summed once up front, after which every draw is O(1).
+public class ZipfianGenerator {
+    private long items;
+    private double theta;
+    private double zetan;
+    private double alpha;
+    private double eta;
+
+    // theta in (0, 1); 0.99 is the usual choice
+    public ZipfianGenerator(long items, double theta) {
+        if (items < 2 || theta <= 0 || theta >= 1) {
+            throw new IllegalArgumentException("Zipfian needs at least 2 items and 0 < theta < 1");
+        }
+        this.items = items;
+        this.theta = theta;
+        this.zetan = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+    }
+
+    // u is uniform in [0, 1)
+    public long next(double u) {
+        double uz = u * zetan;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1.0 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
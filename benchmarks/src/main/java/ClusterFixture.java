@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import userstore.benchmarks.ClusterOps;
+
+// A primary and its backups in this JVM on loopback ports, driven through Client. Each trial starts a
+// fresh cluster and tearDown() stops it, so the next one can bind the same ports.
+public class ClusterFixture implements ClusterOps {
+    private List<Node> started;
+    private Client client;
+    private String[] usernames;
+    private String[] ssns;
+
+    @Override
+    public void setUp(int nodes, int basePort, int keys, boolean wal) throws Exception {
+        // Nodes log connections and stats at info; only warnings are worth the measurement's time. Read
+        // once when Log is first used, so set before any node starts.
+        if (Config.getString("userstore.log.level", null) == null) {
+            System.setProperty("userstore.log.level", "warn");
+        }
+        System.setProperty("userstore.wal.enabled", String.valueOf(wal));
+        List<NodeInfo> all = new ArrayList<>();
+        for (int id = 1; id <= nodes; id++) {
+            all.add(new NodeInfo(id, "127.0.0.1", basePort + id, id == 1));
+            deleteRecursively(Paths.get("data", "node-" + id)); // Logs left by an earlier run
+        }
+        List<String> endpoints = new ArrayList<>();
+        this.started = new ArrayList<>();
+        for (NodeInfo node : all) {
+            List<NodeInfo> others = new ArrayList<>(all);
+            others.remove(node);
+            Node instance = new Node(node.getId(), node.isPrimary(), node.getHost(), node.getPort(), others);
+            instance.start();
+            started.add(instance);
+            endpoints.add(node.getHost() + ":" + node.getPort());
+        }
+        for (NodeInfo node : all) {
+            awaitListening(node);
+        }
+        this.client = new Client(endpoints);
+        this.usernames = new String[keys];
+        this.ssns = new String[keys];
+        List<UserRecord> records = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            usernames[i] = "user" + i;
+            ssns[i] = String.format("%09d", i);
+            records.add(new UserRecord(usernames[i], ssns[i]));
+            if (records.size() == 10000 || i == keys - 1) {
+                if (!(client.multiPut(records) instanceof Acknowledgment)) {
+                    throw new IOException("Could not preload the cluster");
+                }
+                records = new ArrayList<>();
+            }
+        }
+    }
+
+    @Override
+    public Object read(int key) throws Exception {
+        return client.readAsync(usernames[key]).get();
+    }
+
+    @Override
+    public Object write(int key) throws Exception {
+        return client.writeAsync(usernames[key], ssns[key]).get();
+    }
+
+    @Override
+    public void tearDown() {
+        client.close();
+        for (Node node : started) {
+            node.stop();
+        }
+    }
+
+    private static void awaitListening(NodeInfo node) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(node.getHost(), node.getPort()), 1000);
+                return;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import userstore.benchmarks.CodecOps;
+
+// A typical message of each kind, encoded into a reused buffer and decoded from a ready-made payload
+public class CodecFixture implements CodecOps {
+    private MessageCodec codec;
+    private Message message;
+    private ByteBuffer buffer;
+    private ByteBuffer encoded;
+
+    @Override
+    public void setUp(String codecName, String messageName) throws Exception {
+        this.codec = MessageCodec.forFormat(codecName);
+        switch (messageName) {
+            case "read":
+                this.message = new ReadRequest("user123456", 4242, 1);
+                break;
+            case "write":
+                this.message = new WriteRequest("user123456", "123-45-6789");
+                break;
+            case "batch": {
+                // A full write batch as it goes to the backups, userstore.batch.max.size records
+                List<UserRecord> records = new ArrayList<>();
+                for (int i = 0; i < 256; i++) {
+                    records.add(new UserRecord("user" + (100000 + i), String.format("%09d", i)));
+                }
+                this.message = new BatchReplicationMessage(1, 4242, records);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown message: " + messageName);
+        }
+        this.buffer = ByteBuffer.allocate(1024 * 1024);
+        codec.encode(message, buffer);
+        buffer.flip();
+        this.encoded = ByteBuffer.allocate(buffer.remaining());
+        encoded.put(buffer).flip();
+    }
+
+    @Override
+    public Object encode() throws Exception {
+        buffer.clear();
+        codec.encode(message, buffer);
+        return buffer;
+    }
+
+    @Override
+    public Object decode() throws Exception {
+        encoded.rewind();
+        return codec.decode(encoded);
+    }
+}
@@ -0,0 +1,32 @@
+import userstore.benchmarks.StoreOps;
+
+// A store built the way a node builds it, filled with every user up front. Usernames and SSNs are made
+// once, so only the store is measured.
+public class StoreFixture implements StoreOps {
+    private UserStore userStore;
+    private String[] usernames;
+    private String[] ssns;
+
+    @Override
+    public void setUp(String store, int keys) {
+        System.setProperty("userstore.store", store);
+        this.userStore = UserStore.fromConfig();
+        this.usernames = new String[keys];
+        this.ssns = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            usernames[i] = "user" + i;
+            ssns[i] = String.format("%09d", i);
+            userStore.put(usernames[i], ssns[i]);
+        }
+    }
+
+    @Override
+    public Object get(int key) {
+        return userStore.get(usernames[key]);
+    }
+
+    @Override
+    public void put(int key) {
+        userStore.put(usernames[key], ssns[key]);
+    }
+}
@@ -0,0 +1,65 @@
+package userstore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// End-to-end reads and writes through Client against a cluster of Node instances in the same JVM, on
+// loopback ports. Every thread waits for its own reply, so the thread count is the number in flight.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(16)
+public class ClusterBenchmark {
+    @Param({"3"})
+    public int nodes;
+
+    @Param({"7400"})
+    public int basePort;
+
+    @Param({"100000"})
+    public int keys;
+
+    @Param({"true"})
+    public boolean wal;
+
+    private ClusterOps ops;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setUp() {
+            next = (int) Thread.currentThread().getId() * 7919;
+        }
+
+        int next(int keys) {
+            next = (next + 104729) % keys;
+            return next;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ops = Fixtures.load(ClusterOps.class);
+        ops.setUp(nodes, basePort, keys, wal);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ops.tearDown();
+    }
+
+    @Benchmark
+    public Object read(Cursor cursor) throws Exception {
+        return ops.read(cursor.next(keys));
+    }
+
+    @Benchmark
+    public Object write(Cursor cursor) throws Exception {
+        return ops.write(cursor.next(keys));
+    }
+}
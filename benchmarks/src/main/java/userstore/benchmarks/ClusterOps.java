@@ -0,0 +1,12 @@
+package userstore.benchmarks;
+
+public interface ClusterOps {
+    // Starts nodes Node instances on loopback ports from basePort up, with keys users already written
+    void setUp(int nodes, int basePort, int keys, boolean wal) throws Exception;
+
+    Object read(int key) throws Exception;
+
+    Object write(int key) throws Exception;
+
+    void tearDown();
+}
@@ -0,0 +1,37 @@
+package userstore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of turning one message into a frame payload and back
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"binary", "java"})
+    public String codec;
+
+    @Param({"read", "write", "batch"})
+    public String message;
+
+    private CodecOps ops;
+
+    @Setup
+    public void setUp() throws Exception {
+        ops = Fixtures.load(CodecOps.class);
+        ops.setUp(codec, message);
+    }
+
+    @Benchmark
+    public Object encode() throws Exception {
+        return ops.encode();
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return ops.decode();
+    }
+}
@@ -0,0 +1,10 @@
+package userstore.benchmarks;
+
+public interface CodecOps {
+    // codec: "binary" or "java"; message: "read", "write" or "batch"
+    void setUp(String codec, String message) throws Exception;
+
+    Object encode() throws Exception;
+
+    Object decode() throws Exception;
+}
@@ -0,0 +1,16 @@
+package userstore.benchmarks;
+
+import java.util.ServiceLoader;
+
+// JMH will not generate benchmarks in the default package, and classes in a named package cannot refer
+// to the store's classes, which all live there. So each benchmark drives the store through a small
+// interface, implemented by a default-package fixture (CodecFixture, StoreFixture, ...) found here.
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static <T> T load(Class<T> type) {
+        return ServiceLoader.load(type).findFirst()
+                .orElseThrow(() -> new IllegalStateException("No fixture implements " + type.getName()));
+    }
+}
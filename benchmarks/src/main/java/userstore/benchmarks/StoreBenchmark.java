@@ -0,0 +1,69 @@
+package userstore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// userStore lookups and updates from several threads at once, alone and mixed
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    @Param({"concurrent", "offheap"})
+    public String store;
+
+    @Param({"100000"})
+    public int keys;
+
+    private StoreOps ops;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setUp() {
+            next = (int) Thread.currentThread().getId() * 7919;
+        }
+
+        // Strides through the keys so threads rarely touch the same user at the same moment
+        int next(int keys) {
+            next = (next + 104729) % keys;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        ops = Fixtures.load(StoreOps.class);
+        ops.setUp(store, keys);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object get(Cursor cursor) {
+        return ops.get(cursor.next(keys));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void put(Cursor cursor) {
+        ops.put(cursor.next(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Object mixedGet(Cursor cursor) {
+        return ops.get(cursor.next(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPut(Cursor cursor) {
+        ops.put(cursor.next(keys));
+    }
+}
@@ -0,0 +1,10 @@
+package userstore.benchmarks;
+
+public interface StoreOps {
+    // store: "concurrent" or "offheap"; every one of the keys users is written before the run
+    void setUp(String store, int keys);
+
+    Object get(int key);
+
+    void put(int key);
+}
@@ -0,0 +1,170 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+// Every message through the binary codec and back. Messages have no equals(), so a round trip is checked
+// by encoding the decoded message again and comparing bytes, and a few messages field by field.
+class BinaryMessageCodecTest {
+    private static final List<UserRecord> RECORDS = List.of(new UserRecord("alice", "123456789"),
+            new UserRecord("bob", null), new UserRecord("zoë", "987654321"));
+
+    private final MessageCodec codec = new BinaryMessageCodec();
+
+    @Test
+    void everyMessageTypeRoundTrips() throws IOException {
+        Set<Byte> covered = new TreeSet<>();
+        for (Message msg : samples()) {
+            byte[] encoded = encode(msg);
+            Message decoded = codec.decode(ByteBuffer.wrap(encoded));
+            assertEquals(msg.getClass(), decoded.getClass());
+            assertArrayEquals(encoded, encode(decoded), msg.getClass().getSimpleName());
+            covered.add(msg.getTypeTag());
+        }
+        assertEquals(declaredTags(), covered, "every tag in MessageCodec needs a sample here");
+    }
+
+    @Test
+    void keepsFieldsThatDecideBehaviour() throws IOException {
+        MultiPutRequest put = (MultiPutRequest) roundTrip(new MultiPutRequest(RECORDS, true));
+        assertTrue(put.isIfAbsent());
+        assertEquals(3, put.getRecords().size());
+        assertEquals("zoë", put.getRecords().get(2).getUsername());
+        assertNull(put.getRecords().get(1).getSsn());
+        assertFalse(((MultiPutRequest) roundTrip(new MultiPutRequest(RECORDS))).isIfAbsent());
+
+        ReadResponse read = (ReadResponse) roundTrip(new ReadResponse("alice", null, false, 42, 3));
+        assertEquals("alice", read.getUsername());
+        assertNull(read.getSsn());
+        assertFalse(read.isFound());
+        assertEquals(42, read.getSequence());
+        assertEquals(3, read.getOrigin());
+
+        CatchUpResponse catchUp = (CatchUpResponse) roundTrip(new CatchUpResponse(new long[] {7, 8, 9}, RECORDS, 9, true));
+        assertArrayEquals(new long[] {7, 8, 9}, catchUp.getSequences());
+        assertEquals(9, catchUp.getPrimarySequence());
+        assertTrue(catchUp.isSnapshotRequired());
+    }
+
+    @Test
+    void overflowsRatherThanTruncating() {
+        ByteBuffer small = ByteBuffer.allocate(16);
+        assertThrows(BufferOverflowException.class, () -> codec.encode(new MultiPutRequest(RECORDS), small));
+    }
+
+    @Test
+    void rejectsUnknownTagsAndBadCounts() {
+        assertThrows(IOException.class, () -> codec.decode(ByteBuffer.wrap(new byte[] {(byte) 99})));
+        // A multi-put claiming 1000 records in a three-byte payload
+        ByteBuffer lying = ByteBuffer.allocate(8);
+        lying.put(MessageCodec.MULTI_PUT_REQUEST);
+        BinaryMessageCodec.putVarInt(lying, 1000);
+        lying.flip();
+        assertThrows(IOException.class, () -> codec.decode(lying));
+    }
+
+    @Test
+    void varIntsRoundTrip() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1};
+        for (int value : values) {
+            BinaryMessageCodec.putVarInt(buf, value);
+        }
+        buf.flip();
+        for (int value : values) {
+            assertEquals(value, BinaryMessageCodec.getVarInt(buf));
+        }
+    }
+
+    private static List<Message> samples() {
+        Map<String, Long> stats = new TreeMap<>();
+        stats.put("store.users", 3L);
+        stats.put("queue.request", 0L);
+        NodeInfo node = new NodeInfo(2, "127.0.0.1", 5002, false);
+        byte[] block = {1, 2, 3, 4, 5};
+        return List.of(
+                new ReadRequest("alice", 17, 2),
+                new ReadResponse("alice", "123456789", true, 17, 2),
+                new WriteRequest("alice", "123456789"),
+                new Acknowledgment("Write successful.", 18, 1),
+                new ErrorMessage("Not the primary."),
+                new ReplicationMessage("alice", "123456789"),
+                new BatchReplicationMessage(1, 100, RECORDS),
+                new CatchUpRequest(1, 100, 500),
+                new CatchUpResponse(new long[] {100, 101, 102}, RECORDS, 102, false),
+                new SnapshotRequest(),
+                new SnapshotOffer(6001, 1L << 33, 102),
+                new Redirect(1, "127.0.0.1", 5001, "Writes go to the primary."),
+                new InvalidationSubscribe(),
+                new Invalidation(List.of("alice", "bob"), false, 1, 102, 1234567890123L),
+                new MultiGetRequest(List.of("alice", "bob"), 102, 1),
+                new MultiGetResponse(List.of("alice", "bob"), Arrays.asList("123456789", null), 102, 1, true),
+                new MultiPutRequest(RECORDS, true),
+                new JoinRequest(node, true),
+                new PartitionMapRequest(),
+                new PartitionMapUpdate(2, 5, List.of(new NodeInfo(1, "127.0.0.1", 5001, true), node), List.of(1, 2)),
+                new PartitionHandoff(1, 5, List.of(0, 1), 102),
+                new StatsRequest(),
+                new StatsResponse(stats),
+                new RetryAfter(250, "Too many reads in flight."),
+                new TreeHashRequest(12, List.of(1, 2, 3)),
+                new TreeHashResponse(new long[] {Long.MIN_VALUE, 0, Long.MAX_VALUE}),
+                new TreeLeavesRequest(12, List.of(4095)),
+                new TreeLeavesResponse(1, 102, RECORDS),
+                new ScanRequest("a", "c", 1000),
+                new ScanResponse(RECORDS, "carol"),
+                new BulkLoadRequest(block, 3),
+                new BulkReplicationMessage(1, 103, block, 3),
+                new ExportRequest(50000),
+                new ExportChunk(block, 3, true),
+                new CompressedBatchMessage(1, 106, 3, block),
+                new Heartbeat(4, 1, 1, 106),
+                new HeartbeatResponse(4, true),
+                new VoteRequest(5, 2, 4, 106),
+                new VoteResponse(5, false));
+    }
+
+    // The values of MessageCodec's byte constants, which are the type tags
+    private static Set<Byte> declaredTags() {
+        Set<Byte> tags = new TreeSet<>();
+        for (Field field : MessageCodec.class.getFields()) {
+            if (field.getType() == byte.class && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    tags.add(field.getByte(null));
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        return tags;
+    }
+
+    private Message roundTrip(Message msg) throws IOException {
+        return codec.decode(ByteBuffer.wrap(encode(msg)));
+    }
+
+    private byte[] encode(Message msg) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        codec.encode(msg, buf);
+        buf.flip();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
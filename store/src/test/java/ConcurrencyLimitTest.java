@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+// Windows are simulated: a number of requests is let in together, released with a chosen latency, and
+// adjust() is called as the timer would
+class ConcurrencyLimitTest {
+    private static final long MILLIS = 1000000;
+
+    @Test
+    void rejectsOnceEverySlotIsTaken() {
+        ConcurrencyLimit limit = new ConcurrencyLimit("reads", 4, 1, 100, 2.0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limit.tryAcquire());
+        }
+        assertFalse(limit.tryAcquire());
+        assertEquals(1, limit.getRejected());
+        limit.release(MILLIS, true);
+        assertTrue(limit.tryAcquire());
+        assertEquals(4, limit.getInFlight());
+    }
+
+    @Test
+    void growsWhileLatencyHoldsAndTheLimitIsUsed() {
+        ConcurrencyLimit limit = new ConcurrencyLimit("reads", 16, 1, 1000, 2.0);
+        for (int i = 0; i < 10; i++) {
+            window(limit, limit.getLimit(), MILLIS);
+        }
+        assertTrue(limit.getLimit() > 16, "limit " + limit.getLimit());
+    }
+
+    @Test
+    void staysPutWhenMostlyIdle() {
+        ConcurrencyLimit limit = new ConcurrencyLimit("reads", 16, 1, 1000, 2.0);
+        for (int i = 0; i < 10; i++) {
+            window(limit, 2, MILLIS);
+        }
+        assertEquals(16, limit.getLimit());
+    }
+
+    @Test
+    void shrinksWhenLatencyClimbsButNotBelowTheMinimum() {
+        ConcurrencyLimit limit = new ConcurrencyLimit("writes", 100, 10, 1000, 2.0);
+        window(limit, 50, MILLIS); // The baseline
+        window(limit, 50, 10 * MILLIS);
+        int shrunk = limit.getLimit();
+        assertTrue(shrunk < 100, "limit " + shrunk);
+        assertEquals(10, limit.getRetryAfterMillis());
+        for (int i = 0; i < 100; i++) {
+            window(limit, 10, 10 * MILLIS);
+        }
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    void neverGrowsPastTheMaximum() {
+        ConcurrencyLimit limit = new ConcurrencyLimit("reads", 16, 1, 40, 2.0);
+        for (int i = 0; i < 100; i++) {
+            window(limit, limit.getLimit(), MILLIS);
+        }
+        assertEquals(40, limit.getLimit());
+    }
+
+    @Test
+    void concurrentRequestsNeverExceedTheLimit() throws InterruptedException {
+        ConcurrencyLimit limit = new ConcurrencyLimit("reads", 8, 1, 8, 2.0);
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger mostInside = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    if (limit.tryAcquire()) {
+                        mostInside.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                        inside.decrementAndGet();
+                        limit.release(1, false);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(mostInside.get() <= 8, mostInside.get() + " requests at once");
+        assertEquals(0, limit.getInFlight());
+    }
+
+    // Lets in up to count requests at once, releases them with the given latency, and ends the window
+    private static void window(ConcurrencyLimit limit, int count, long latencyNanos) {
+        int acquired = 0;
+        while (acquired < count && limit.tryAcquire()) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limit.release(latencyNanos, true);
+        }
+        limit.adjust();
+    }
+}
@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Three nodes, each in a process of its own so the primary can be killed outright, and a client that
+// keeps writing and reading its own writes across the failover
+class FailoverTest {
+    private static final long DEADLINE_MILLIS = 30000;
+
+    private Path dir;
+    private Map<Integer, Process> nodes;
+    private List<String> endpoints;
+
+    @BeforeEach
+    void startCluster() throws Exception {
+        dir = Files.createTempDirectory("userstore-failover-");
+        nodes = new TreeMap<>();
+        endpoints = new ArrayList<>();
+        StringBuilder topology = new StringBuilder();
+        for (int id = 1; id <= 3; id++) {
+            int port = freePort();
+            topology.append(id > 1 ? "," : "").append(id).append("=127.0.0.1:").append(port);
+            endpoints.add("127.0.0.1:" + port);
+        }
+        String classpath = Paths.get(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        for (int id = 1; id <= 3; id++) {
+            nodes.put(id, new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-Xmx256m",
+                    "-Duserstore.topology=" + topology, "-Duserstore.wal.dir=" + dir.resolve("node-{id}"),
+                    "-cp", classpath, "Main", String.valueOf(id))
+                    .redirectErrorStream(true)
+                    .redirectOutput(dir.resolve("node-" + id + ".log").toFile())
+                    .start());
+        }
+    }
+
+    @AfterEach
+    void stopCluster() throws Exception {
+        for (Process node : nodes.values()) {
+            node.destroyForcibly().waitFor();
+        }
+        try (var files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void readsOwnWritesAfterPrimaryFails() throws Exception {
+        Client client = new Client(endpoints);
+        try {
+            for (int i = 0; i < 20; i++) {
+                writeUntilAcked(client, "before" + i, "b" + i);
+                assertRead(client, "before" + i, "b" + i);
+            }
+
+            nodes.remove(1).destroyForcibly().waitFor(); // The primary
+
+            for (int i = 0; i < 20; i++) {
+                writeUntilAcked(client, "after" + i, "a" + i);
+                assertRead(client, "after" + i, "a" + i);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertRead(client, "before" + i, "b" + i);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    // Writes are turned away while there is no primary, before the first election and after the failover
+    private static void writeUntilAcked(Client client, String username, String ssn) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        Message resp = client.write(username, ssn);
+        while (!(resp instanceof Acknowledgment) && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            resp = client.write(username, ssn);
+        }
+        assertTrue(resp instanceof Acknowledgment, "Write of " + username + " was not acknowledged: " + resp);
+    }
+
+    private static void assertRead(Client client, String username, String ssn) {
+        Message resp = client.read(username);
+        assertTrue(resp instanceof ReadResponse, "Read of " + username + " failed: " + resp);
+        assertEquals(ssn, ((ReadResponse) resp).getSsn(), "Read of " + username);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class HashTreeTest {
+    private static final int DEPTH = 8;
+
+    @Test
+    void sameUsersGiveTheSameTreeWhateverTheOrder() {
+        HashTree forward = new HashTree(DEPTH);
+        for (int i = 0; i < 1000; i++) {
+            forward.update("user" + i, null, "ssn" + i);
+        }
+        // Backwards, and through an intermediate value for every other user
+        HashTree backward = new HashTree(DEPTH);
+        for (int i = 999; i >= 0; i--) {
+            if (i % 2 == 0) {
+                backward.update("user" + i, null, "old" + i);
+                backward.update("user" + i, "old" + i, "ssn" + i);
+            } else {
+                backward.update("user" + i, null, "ssn" + i);
+            }
+        }
+        for (int node = HashTree.ROOT; node < forward.getNodeCount(); node++) {
+            assertEquals(forward.get(node), backward.get(node), "node " + node);
+        }
+    }
+
+    @Test
+    void oneDifferingUserOnlyChangesItsLeafAndAncestors() {
+        HashTree a = new HashTree(DEPTH);
+        HashTree b = new HashTree(DEPTH);
+        for (int i = 0; i < 1000; i++) {
+            a.update("user" + i, null, "ssn" + i);
+            b.update("user" + i, null, i == 42 ? "other" : "ssn" + i);
+        }
+        Set<Integer> path = new HashSet<>();
+        for (int node = a.leafOf("user42"); node >= HashTree.ROOT; node >>>= 1) {
+            path.add(node);
+        }
+        assertEquals(DEPTH + 1, path.size());
+        for (int node = HashTree.ROOT; node < a.getNodeCount(); node++) {
+            if (path.contains(node)) {
+                assertNotEquals(a.get(node), b.get(node), "node " + node);
+            } else {
+                assertEquals(a.get(node), b.get(node), "node " + node);
+            }
+        }
+    }
+
+    @Test
+    void everyInnerNodeIsTheSumOfItsChildren() {
+        HashTree tree = new HashTree(DEPTH);
+        for (int i = 0; i < 1000; i++) {
+            tree.update("user" + i, null, "ssn" + i);
+        }
+        for (int node = HashTree.ROOT; !tree.isLeaf(node); node++) {
+            assertEquals(tree.get(node), tree.get(2 * node) + tree.get(2 * node + 1), "node " + node);
+        }
+    }
+
+    @Test
+    void leavesKnowTheirUsersOnce() {
+        HashTree tree = new HashTree(DEPTH);
+        for (int i = 0; i < 1000; i++) {
+            tree.update("user" + i, null, "ssn" + i);
+            tree.update("user" + i, "ssn" + i, "new" + i);
+        }
+        int named = 0;
+        for (int leaf = 1 << DEPTH; leaf < tree.getNodeCount(); leaf++) {
+            for (String username : tree.usernamesIn(leaf)) {
+                assertEquals(leaf, tree.leafOf(username));
+                named++;
+            }
+        }
+        assertEquals(1000, named);
+        assertTrue(tree.usernamesIn(HashTree.ROOT).isEmpty());
+        assertTrue(tree.usernamesIn(tree.getNodeCount()).isEmpty());
+        int leaf = tree.leafOf("user0");
+        assertThrows(UnsupportedOperationException.class, () -> tree.usernamesIn(leaf).add("intruder"));
+    }
+
+    @Test
+    void bothStoresKeepTheTreeTheSame() {
+        UserStore onHeap = new ConcurrentUserStore();
+        UserStore offHeap = new OffHeapUserStore(64 * 1024, 16);
+        onHeap.setHashTree(new HashTree(DEPTH));
+        offHeap.setHashTree(new HashTree(DEPTH));
+        for (UserStore store : new UserStore[] {onHeap, offHeap}) {
+            for (int i = 0; i < 1000; i++) {
+                store.put("user" + i, "ssn" + i);
+            }
+            for (int i = 0; i < 1000; i += 3) {
+                store.put("user" + i, "changed" + i);
+            }
+        }
+        assertEquals(onHeap.getHashTree().get(HashTree.ROOT), offHeap.getHashTree().get(HashTree.ROOT));
+    }
+
+    @Test
+    void rejectsDepthsOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new HashTree(0));
+        assertThrows(IllegalArgumentException.class, () -> new HashTree(25));
+    }
+}
@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class NearCacheTest {
+    @Test
+    void invalidationRemovesOnlyTheNamedUsers() {
+        NearCache cache = new NearCache(10);
+        cache.put("alice", "1", 1, 5);
+        cache.put("bob", "2", 1, 5);
+        cache.apply(invalidation(List.of("alice"), false, 1, 6));
+        assertNull(cache.get("alice"));
+        assertEquals("2", cache.get("bob"));
+    }
+
+    @Test
+    void clearAllEmptiesTheCache() {
+        NearCache cache = new NearCache(10);
+        cache.put("alice", "1", 1, 5);
+        cache.put("bob", "2", 2, 5);
+        cache.apply(invalidation(List.of(), true, 1, 6));
+        assertNull(cache.get("alice"));
+        assertNull(cache.get("bob"));
+    }
+
+    @Test
+    void refusesValuesServedBeforeTheLastInvalidation() {
+        NearCache cache = new NearCache(10);
+        cache.apply(invalidation(List.of("alice"), false, 1, 10));
+
+        cache.put("alice", "stale", 1, 9); // From a node that has not applied sequence 10 yet
+        assertNull(cache.get("alice"));
+
+        cache.put("alice", "fresh", 1, 10);
+        assertEquals("fresh", cache.get("alice"));
+
+        // Each origin's sequences are separate
+        cache.put("bob", "2", 2, 3);
+        assertEquals("2", cache.get("bob"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsed() {
+        NearCache cache = new NearCache(2);
+        cache.put("alice", "1", 1, 0);
+        cache.put("bob", "2", 1, 0);
+        cache.get("alice");
+        cache.put("carol", "3", 1, 0);
+        assertNull(cache.get("bob"));
+        assertEquals("1", cache.get("alice"));
+        assertEquals("3", cache.get("carol"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        NearCache cache = new NearCache(10);
+        cache.put("alice", "1", 1, 0);
+        cache.get("alice");
+        cache.get("alice");
+        cache.get("alice");
+        cache.get("bob");
+        assertEquals(0.75, cache.getHitRate());
+    }
+
+    private static Invalidation invalidation(List<String> usernames, boolean clearAll, int origin, long sequence) {
+        return new Invalidation(usernames, clearAll, origin, sequence, NearCache.currentTimeMicros());
+    }
+}
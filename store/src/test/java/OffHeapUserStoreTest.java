@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+// Small slabs and a tiny initial index, so a few thousand users already resize the index many times and
+// fill many slabs
+class OffHeapUserStoreTest {
+    private static final int SLAB_BYTES = 64 * 1024;
+
+    @Test
+    void keepsEveryUserAcrossResizes() {
+        OffHeapUserStore store = new OffHeapUserStore(SLAB_BYTES, 16);
+        for (int i = 0; i < 50000; i++) {
+            store.put(username(i), ssn(i, 0));
+        }
+        assertEquals(50000, store.size());
+        for (int i = 0; i < 50000; i++) {
+            assertEquals(ssn(i, 0), store.get(username(i)));
+        }
+        assertNull(store.get("nobody"));
+        assertNull(store.get(username(50000)));
+    }
+
+    @Test
+    void overwritesInPlaceOrByMovingTheRecord() {
+        OffHeapUserStore store = new OffHeapUserStore(SLAB_BYTES, 16);
+        store.put("alice", "123456789");
+        store.put("zoë", "987654321");
+        long memory = store.memoryBytes();
+
+        store.put("alice", "111111111"); // Same length: rewritten where it is
+        assertEquals("111111111", store.get("alice"));
+        assertEquals(0, store.getGarbageBytes());
+        assertEquals(memory, store.memoryBytes());
+
+        store.put("alice", "12-345-6789"); // Longer: appended, the old record left as garbage
+        assertEquals("12-345-6789", store.get("alice"));
+        assertTrue(store.getGarbageBytes() > 0);
+        assertEquals(2, store.size());
+
+        Map<String, String> seen = new HashMap<>();
+        store.forEach((username, ssn) -> assertNull(seen.put(username, ssn), "visited twice: " + username));
+        assertEquals(Map.of("alice", "12-345-6789", "zoë", "987654321"), seen);
+    }
+
+    @Test
+    void forEachSeesEveryUserWhileOthersMoveAndArrive() throws Exception {
+        OffHeapUserStore store = new OffHeapUserStore(SLAB_BYTES, 16);
+        int stable = 20000;
+        int churned = 2000;
+        for (int i = 0; i < stable + churned; i++) {
+            store.put(username(i), ssn(i, 0));
+        }
+        // Rewrites the churned users with values of changing length, moving their records, and adds new
+        // users, resizing the index, for as long as the walk runs
+        AtomicBoolean walking = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            int next = stable + churned;
+            for (int round = 1; walking.get(); round++) {
+                for (int i = stable; i < stable + churned; i++) {
+                    store.put(username(i), ssn(i, round));
+                }
+                store.put(username(next), ssn(next, 0));
+                next++;
+            }
+        });
+        writer.start();
+        Map<String, Integer> visits = new HashMap<>();
+        Map<String, String> values = new HashMap<>();
+        try {
+            store.forEach((username, ssn) -> {
+                visits.merge(username, 1, Integer::sum);
+                values.put(username, ssn);
+                if (visits.size() % 500 == 0) {
+                    Thread.yield();
+                }
+            });
+        } finally {
+            walking.set(false);
+            writer.join();
+        }
+
+        for (int i = 0; i < stable; i++) {
+            assertEquals(1, visits.get(username(i)), username(i));
+            assertEquals(ssn(i, 0), values.get(username(i)));
+        }
+        for (int i = stable; i < stable + churned; i++) {
+            assertTrue(visits.containsKey(username(i)), username(i));
+            assertTrue(values.get(username(i)).startsWith(i + "-"), values.get(username(i)));
+        }
+    }
+
+    private static String username(int i) {
+        return "user" + i;
+    }
+
+    // Each round makes the value one character longer, so an overwrite never fits in place
+    private static String ssn(int i, int round) {
+        return i + "-" + "x".repeat(round % 50);
+    }
+}
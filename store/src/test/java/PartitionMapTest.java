@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class PartitionMapTest {
+    private static final int PARTITIONS = 256;
+
+    @Test
+    void everyPartitionHasAnOwnerAndEveryNodeSomeShare() {
+        PartitionMap map = PartitionMap.initial(PARTITIONS, nodes(3));
+        int total = 0;
+        for (int id = 1; id <= 3; id++) {
+            int owned = map.countOwnedBy(id);
+            // 64 virtual nodes each keep the split near a third
+            assertTrue(owned > PARTITIONS / 6 && owned < PARTITIONS / 2, "node " + id + " owns " + owned);
+            total += owned;
+        }
+        assertEquals(PARTITIONS, total);
+        for (int i = 0; i < 1000; i++) {
+            String username = "user" + i;
+            assertEquals(map.ownerOfPartition(map.partitionOf(username)), map.ownerOf(username));
+        }
+    }
+
+    @Test
+    void addingAnOwnerOnlyMovesPartitionsToIt() {
+        PartitionMap before = PartitionMap.initial(PARTITIONS, nodes(3));
+        PartitionMap after = before.withMember(new NodeInfo(4, "127.0.0.1", 5004, false), true);
+        assertEquals(before.getVersion() + 1, after.getVersion());
+        int moved = 0;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (before.ownerOfPartition(p) != after.ownerOfPartition(p)) {
+                assertEquals(4, after.ownerOfPartition(p), "partition " + p + " moved between old owners");
+                moved++;
+            }
+        }
+        assertEquals(after.countOwnedBy(4), moved);
+        assertTrue(moved > PARTITIONS / 8 && moved < PARTITIONS / 2, moved + " partitions moved");
+    }
+
+    @Test
+    void aMemberOwnsNothingUntilPromoted() {
+        PartitionMap before = PartitionMap.initial(PARTITIONS, nodes(3));
+        NodeInfo joining = new NodeInfo(4, "127.0.0.1", 5004, false);
+
+        PartitionMap member = before.withMember(joining, false);
+        assertNotNull(member.getMember(4));
+        assertFalse(member.isOwner(4));
+        assertEquals(0, member.countOwnedBy(4));
+        for (int p = 0; p < PARTITIONS; p++) {
+            assertEquals(before.ownerOfPartition(p), member.ownerOfPartition(p));
+        }
+
+        PartitionMap owner = member.withMember(joining, true);
+        assertTrue(owner.isOwner(4));
+        assertEquals(4, owner.getMembers().size());
+        assertEquals(before.getVersion() + 2, owner.getVersion());
+    }
+
+    @Test
+    void unchangedMembershipKeepsTheMap() {
+        PartitionMap map = PartitionMap.initial(PARTITIONS, nodes(3));
+        NodeInfo existing = map.getMember(2);
+        assertSame(map, map.withMember(existing, true));
+        assertSame(map, map.withMember(existing, false)); // An owner is never demoted
+    }
+
+    @Test
+    void ownershipDoesNotDependOnTheOrderOfOwners() {
+        PartitionMap one = PartitionMap.initial(PARTITIONS, nodes(5));
+        PartitionMap other = new PartitionMap(PARTITIONS, 7, nodes(5), List.of(5, 4, 3, 2, 1));
+        for (int p = 0; p < PARTITIONS; p++) {
+            assertEquals(one.ownerOfPartition(p), other.ownerOfPartition(p));
+        }
+    }
+
+    private static List<NodeInfo> nodes(int count) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (int id = 1; id <= count; id++) {
+            nodes.add(new NodeInfo(id, "127.0.0.1", 5000 + id, id == 1));
+        }
+        return nodes;
+    }
+}
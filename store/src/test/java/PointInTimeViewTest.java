@@ -0,0 +1,117 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+// Each case runs against both stores, with and without a username index, as the view walks either
+class PointInTimeViewTest {
+    @ParameterizedTest(name = "{0} store, index {1}")
+    @CsvSource({"concurrent, false", "concurrent, true", "offheap, false", "offheap, true"})
+    void showsTheStoreAsItWasWhenOpened(String type, boolean indexed) {
+        UserStore store = store(type, indexed);
+        Map<String, String> expected = fill(store, 100);
+        try (PointInTimeView view = store.openView()) {
+            for (int i = 0; i < 50; i++) {
+                store.put("user" + i, "changed-" + i);
+            }
+            for (int i = 100; i < 150; i++) {
+                store.put("user" + i, "new-" + i);
+            }
+            assertEquals(100, view.getPreservedCount());
+            assertEquals(expected, walk(view));
+        }
+        assertEquals("changed-0", store.get("user0"));
+        assertEquals("new-100", store.get("user100"));
+    }
+
+    @ParameterizedTest(name = "{0} store, index {1}")
+    @CsvSource({"concurrent, false", "concurrent, true", "offheap, false", "offheap, true"})
+    void stopsPreservingOnceClosed(String type, boolean indexed) {
+        UserStore store = store(type, indexed);
+        fill(store, 10);
+        PointInTimeView view = store.openView();
+        store.put("user0", "changed");
+        view.close();
+        store.put("user1", "changed");
+        store.put("user10", "new");
+        assertEquals(1, view.getPreservedCount());
+    }
+
+    @ParameterizedTest(name = "{0} store, index {1}")
+    @CsvSource({"concurrent, false", "concurrent, true", "offheap, false", "offheap, true"})
+    void ignoresWritesMadeDuringTheWalk(String type, boolean indexed) throws InterruptedException {
+        UserStore store = store(type, indexed);
+        Map<String, String> expected = fill(store, 20000);
+        try (PointInTimeView view = store.openView()) {
+            // Overwrites with values of changing length, so off-heap records move, and adds users
+            AtomicBoolean walking = new AtomicBoolean(true);
+            Thread writer = new Thread(() -> {
+                for (int round = 1; walking.get(); round++) {
+                    for (int i = 0; i < 20000 && walking.get(); i += 7) {
+                        store.put("user" + i, "x".repeat(round % 20));
+                    }
+                    store.put("late" + round, "late");
+                }
+            });
+            writer.start();
+            Map<String, String> seen = new TreeMap<>();
+            List<String> order = new ArrayList<>();
+            try {
+                view.forEach((username, ssn) -> {
+                    seen.put(username, ssn);
+                    order.add(username);
+                });
+            } finally {
+                walking.set(false);
+                writer.join();
+            }
+            assertEquals(expected, seen);
+            if (indexed) {
+                // The index walk visits each user once, in username order
+                assertEquals(new ArrayList<>(seen.keySet()), order);
+            }
+        }
+    }
+
+    @ParameterizedTest(name = "{0} store, index {1}")
+    @CsvSource({"concurrent, false", "concurrent, true", "offheap, false", "offheap, true"})
+    void leavesOutUsersCreatedAfterOpening(String type, boolean indexed) {
+        UserStore store = store(type, indexed);
+        try (PointInTimeView view = store.openView()) {
+            store.put("alice", "1");
+            store.put("alice", "2");
+            assertEquals(Map.of(), walk(view));
+        }
+        assertEquals("2", store.get("alice"));
+    }
+
+    private static UserStore store(String type, boolean indexed) {
+        UserStore store = type.equals("offheap") ? new OffHeapUserStore(64 * 1024, 16) : new ConcurrentUserStore();
+        if (indexed) {
+            store.setIndex(new UsernameIndex());
+        }
+        return store;
+    }
+
+    private static Map<String, String> fill(UserStore store, int users) {
+        Map<String, String> written = new TreeMap<>();
+        for (int i = 0; i < users; i++) {
+            store.put("user" + i, "ssn" + i);
+            written.put("user" + i, "ssn" + i);
+        }
+        return written;
+    }
+
+    private static Map<String, String> walk(PointInTimeView view) {
+        Map<String, String> seen = new HashMap<>();
+        view.forEach(seen::put);
+        return seen;
+    }
+}
@@ -0,0 +1,144 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Replay across segments and restarts, compaction, and what a damaged record does to the replay. Small
+// segments make the log roll often; the compaction threshold is out of reach so only compact() compacts.
+class WriteAheadLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysEveryRecordInOrderAfterReopening() throws IOException {
+        WriteAheadLog log = open(new ArrayList<>());
+        for (int i = 0; i < 500; i++) {
+            log.append(i + 1, 1, "user" + i, "ssn" + i);
+        }
+        log.close();
+        assertTrue(segments().size() > 1, "the records should span several segments");
+
+        List<WriteAheadLog.Entry> replayed = new ArrayList<>();
+        log = open(replayed);
+        assertEquals(500, replayed.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i + 1, replayed.get(i).getSeq());
+            assertEquals("user" + i, replayed.get(i).getUsername());
+            assertEquals("ssn" + i, replayed.get(i).getSsn());
+        }
+
+        // Appends resume after the last record instead of overwriting it
+        log.append(501, 1, "late", "ssn-late");
+        log.close();
+        replayed.clear();
+        open(replayed).close();
+        assertEquals(501, replayed.size());
+        assertEquals("late", replayed.get(500).getUsername());
+    }
+
+    @Test
+    void compactionKeepsTheLatestValuePerUser() throws IOException {
+        WriteAheadLog log = open(new ArrayList<>());
+        long seq = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int user = 0; user < 50; user++) {
+                log.append(++seq, 1, "user" + user, "round" + round);
+            }
+        }
+        int before = segments().size();
+        log.compact();
+        log.close();
+        assertTrue(segments().size() < before);
+
+        List<WriteAheadLog.Entry> replayed = new ArrayList<>();
+        open(replayed).close();
+        Map<String, String> latest = new LinkedHashMap<>();
+        for (WriteAheadLog.Entry entry : replayed) {
+            latest.put(entry.getUsername(), entry.getSsn());
+        }
+        assertEquals(50, latest.size());
+        for (int user = 0; user < 50; user++) {
+            assertEquals("round9", latest.get("user" + user));
+        }
+        assertTrue(replayed.size() < 500, "compacted segments should hold one record per user");
+    }
+
+    @Test
+    void corruptRecordEndsReplayOfItsSegment() throws IOException {
+        WriteAheadLog log = open(new ArrayList<>());
+        log.append(1, 1, "first", "1");
+        log.append(2, 1, "second", "2");
+        log.append(3, 1, "third", "3");
+        log.close();
+
+        Path segment = segments().get(0);
+        long firstRecordBytes;
+        try (InputStream in = Files.newInputStream(segment)) {
+            firstRecordBytes = WriteAheadLog.readRecords(in, "test", entry -> false);
+        }
+        // Flip a byte of the second record's payload, past its length and checksum
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long position = firstRecordBytes + 2 * Integer.BYTES + 3;
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, position);
+        }
+
+        List<WriteAheadLog.Entry> replayed = new ArrayList<>();
+        log = open(replayed);
+        assertEquals(1, replayed.size());
+        assertEquals("first", replayed.get(0).getUsername());
+
+        // The damaged tail is written over by the next append
+        log.append(4, 1, "fourth", "4");
+        log.close();
+        replayed.clear();
+        open(replayed).close();
+        assertEquals(List.of("first", "fourth"), replayed.stream().map(WriteAheadLog.Entry::getUsername).toList());
+    }
+
+    @Test
+    void readFromReturnsOneOriginFromASequence() throws IOException {
+        WriteAheadLog log = open(new ArrayList<>());
+        for (int i = 1; i <= 300; i++) {
+            log.append(i, i % 2 == 0 ? 2 : 1, "user" + i, "ssn" + i);
+        }
+        List<WriteAheadLog.Entry> entries = log.readFrom(2, 101, 20);
+        log.close();
+        assertEquals(20, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(2, entries.get(i).getOrigin());
+            assertEquals(102 + 2 * i, entries.get(i).getSeq());
+        }
+    }
+
+    private WriteAheadLog open(List<WriteAheadLog.Entry> replayed) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(dir, SEGMENT_BYTES, FsyncPolicy.BATCH, 100, Integer.MAX_VALUE);
+        log.open(replayed::add);
+        return log;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".wal")).sorted().toList();
+        }
+    }
+}